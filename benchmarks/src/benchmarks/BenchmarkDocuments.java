@@ -0,0 +1,66 @@
+package benchmarks;
+
+/**
+ * Documents and queries shared by the benchmarks, generated so that their
+ * size can be given as a benchmark parameter
+ */
+final class BenchmarkDocuments {
+
+	private BenchmarkDocuments() {}
+
+	/**
+	 * Generates an HTML document with the given number of div elements,
+	 * each with attributes, a link and text
+	 */
+	static String html(int elements) {
+		StringBuilder sb = new StringBuilder("<html><head><title>t</title></head><body>");
+		for (int i = 0; i < elements; i++) {
+			sb.append("<div id=\"d").append(i).append("\" class=\"c").append(i % 10)
+				.append("\"><a href=\"/page/").append(i).append("\">link ").append(i)
+				.append("</a><p>paragraph ").append(i).append("</p></div>");
+		}
+		return sb.append("</body></html>").toString();
+	}
+
+	/**
+	 * Generates an XML document with the given number of item elements,
+	 * each with an attribute and nested text
+	 */
+	static String xml(int elements) {
+		StringBuilder sb = new StringBuilder("<?xml version=\"1.0\"?><catalog>");
+		for (int i = 0; i < elements; i++) {
+			sb.append("<item id=\"i").append(i).append("\"><name>item ").append(i)
+				.append("</name><price>").append(i % 100).append("</price></item>");
+		}
+		return sb.append("</catalog>").toString();
+	}
+
+	/**
+	 * Generates queries over the documents of html(), cycling through
+	 * attribute, text, contains and step tests. Queries refer to elements up
+	 * to twice the given number, so about half of them match a document of
+	 * that size.
+	 */
+	static String[] htmlQueries(int count, int elements) {
+		String[] queries = new String[count];
+		for (int i = 0; i < count; i++) {
+			int n = (int) ((i * 7919L) % (2L * elements));
+			switch (i % 4) {
+			case 0:
+				queries[i] = "/html/body/div[@id=\"d" + n + "\"]/a";
+				break;
+			case 1:
+				queries[i] = "/html/body/div/a[text()=\"link " + n + "\"]";
+				break;
+			case 2:
+				queries[i] = "/html/body/div[@class=\"c" + (n % 10) 
+						+ "\"]/p[contains(text(),\"" + n + "\")]";
+				break;
+			default:
+				queries[i] = "/html/body/div[a[@href=\"/page/" + n + "\"]]/p";
+				break;
+			}
+		}
+		return queries;
+	}
+}
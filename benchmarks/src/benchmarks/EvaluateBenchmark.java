@@ -0,0 +1,53 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+
+import models.Doc;
+import xpathengine.XPathEngineImpl;
+
+/**
+ * Evaluating a set of queries against a parsed HTML document, by number of
+ * queries and number of elements in the document
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EvaluateBenchmark {
+
+	@Param({ "1", "100", "1000" })
+	public int queryCount;
+
+	@Param({ "10", "100", "1000" })
+	public int documentSize;
+
+	private XPathEngineImpl engine;
+	private Document document;
+
+	@Setup
+	public void setUp() {
+		engine = new XPathEngineImpl();
+		engine.setXPaths(BenchmarkDocuments.htmlQueries(queryCount, documentSize));
+		document = Doc.getDOM(BenchmarkDocuments.html(documentSize), false);
+	}
+
+	@Benchmark
+	public boolean[] evaluate() {
+		return engine.evaluate(document);
+	}
+}
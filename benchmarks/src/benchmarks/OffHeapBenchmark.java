@@ -0,0 +1,103 @@
+package benchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+
+import models.Doc;
+import models.PackedDocument;
+
+/**
+ * Garbage collection cost of keeping many parsed HTML documents reachable,
+ * as JTidy DOMs or as off-heap packed documents: full collections, and
+ * allocating garbage that triggers young collections. Reports the heap
+ * used after a full collection and the bytes held off-heap as the
+ * heapBytes and offHeapBytes secondary results. Run with -prof gc for
+ * collection counts.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class OffHeapBenchmark {
+
+	@Param({ "dom", "packed" })
+	public String representation;
+
+	@Param({ "200" })
+	public int documentCount;
+
+	@Param({ "2000" })
+	public int documentSize;
+
+	private Document[] doms;
+	private PackedDocument[] packed;
+	private long heapBytes;
+	private long offHeapBytes;
+
+	/**
+	 * Memory held by the documents kept reachable
+	 */
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class Footprint {
+		public double heapBytes;
+		public double offHeapBytes;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			heapBytes = 0;
+			offHeapBytes = 0;
+		}
+	}
+
+	@Setup
+	public void setUp() {
+		String html = BenchmarkDocuments.html(documentSize);
+		doms = new Document[documentCount];
+		for (int i = 0; i < documentCount; i++) {
+			doms[i] = Doc.getDOM(html, false);
+		}
+		if (representation.equals("packed")) {
+			packed = new PackedDocument[documentCount];
+			for (int i = 0; i < documentCount; i++) {
+				packed[i] = PackedDocument.pack(doms[i]);
+				offHeapBytes += packed[i].getByteSize();
+			}
+			doms = null;
+		}
+		System.gc();
+		heapBytes = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public void fullCollection(Footprint footprint) {
+		System.gc();
+		footprint.heapBytes = heapBytes;
+		footprint.offHeapBytes = offHeapBytes;
+	}
+
+	@Benchmark
+	public byte[] allocate(Footprint footprint) {
+		footprint.heapBytes = heapBytes;
+		footprint.offHeapBytes = offHeapBytes;
+		return new byte[256 * 1024];
+	}
+}
@@ -0,0 +1,75 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import models.Doc;
+import models.PackedDocumentStore;
+import xpathengine.XPathEngineImpl;
+
+/**
+ * Loading a stored HTML document and evaluating a query against it, by
+ * re-parsing it through JTidy or by memory-mapping its packed encoding,
+ * by number of elements
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PackedLoadBenchmark {
+
+	@Param({ "100", "2000" })
+	public int documentSize;
+
+	private Doc doc;
+	private XPathEngineImpl engine;
+	private Path directory;
+	private PackedDocumentStore store;
+
+	@Setup
+	public void setUp() throws IOException {
+		doc = new Doc(BenchmarkDocuments.html(documentSize), Doc.DocType.HTML, 
+				"http://example.com/bench");
+		engine = new XPathEngineImpl();
+		engine.setXPaths(new String[] { "/html/body/div[@id=\"d7\"]/a" });
+		directory = Files.createTempDirectory("packed-bench");
+		store = new PackedDocumentStore(directory);
+		store.put(doc);
+		if (!reparse() || !map()) {
+			throw new IllegalStateException("results differ");
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		store.remove(doc);
+		Files.delete(directory);
+	}
+
+	@Benchmark
+	public boolean reparse() {
+		return engine.evaluate(Doc.getDOM(doc.getDocumentString(), false))[0];
+	}
+
+	@Benchmark
+	public boolean map() throws IOException {
+		return engine.evaluate(store.get(doc))[0];
+	}
+}
@@ -0,0 +1,50 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+
+import models.Doc;
+
+/**
+ * Parsing HTML and XML documents through JTidy, by number of elements
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParseBenchmark {
+
+	@Param({ "HTML", "XML" })
+	public Doc.DocType type;
+
+	@Param({ "10", "100", "1000" })
+	public int documentSize;
+
+	private String document;
+
+	@Setup
+	public void setUp() {
+		document = type == Doc.DocType.XML
+				? BenchmarkDocuments.xml(documentSize)
+				: BenchmarkDocuments.html(documentSize);
+	}
+
+	@Benchmark
+	public Document getDOM() {
+		return Doc.getDOM(document, type == Doc.DocType.XML);
+	}
+}
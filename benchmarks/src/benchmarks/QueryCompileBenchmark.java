@@ -0,0 +1,41 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import xpathengine.Token;
+import xpathengine.XPathQuery;
+
+/**
+ * Tokenizing and checking single XPaths of increasing complexity
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QueryCompileBenchmark {
+
+	@Param({
+		"/html/body/div",
+		"/html/body/div[@id=\"d7\"]/a",
+		"/html/body/div[a[@href=\"/page/7\"]][@class=\"c7\"]/p[contains(text(),\"7\")]"
+	})
+	public String query;
+
+	@Benchmark
+	public Token[] getCheckedTokens() {
+		return XPathQuery.getCheckedTokens(query);
+	}
+}
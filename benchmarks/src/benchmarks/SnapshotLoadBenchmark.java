@@ -0,0 +1,109 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+
+import models.Doc;
+import models.Doc.DocType;
+import workload.DocumentGenerator;
+import workload.QueryGenerator;
+import xpathengine.XPathEngineImpl;
+
+/**
+ * Cold start of an engine, compiling generated XPaths through setXPaths()
+ * against loading a saved snapshot of them, by number of XPaths. Each fork
+ * times a single call in a fresh JVM, before the JIT has compiled either
+ * path. The snapshot is written by a separate JVM, so that compiling the
+ * XPaths to save it does not warm up the code restoring them.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(5)
+@State(Scope.Benchmark)
+public class SnapshotLoadBenchmark {
+
+	@Param({ "10000", "200000" })
+	public int queryCount;
+
+	private String[] xpaths;
+	private Path snapshot;
+
+	@Setup
+	public void setUp() throws IOException, InterruptedException {
+		xpaths = generate(queryCount);
+		snapshot = Files.createTempFile("queries", ".snapshot");
+		String java = System.getProperty("java.home") + File.separator + "bin" 
+				+ File.separator + "java";
+		Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+				SnapshotLoadBenchmark.class.getName(), String.valueOf(queryCount), 
+				snapshot.toString()).inheritIO().start();
+		if (process.waitFor() != 0) {
+			throw new IOException("snapshot not written");
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(snapshot);
+	}
+
+	@Benchmark
+	public XPathEngineImpl setXPaths() {
+		XPathEngineImpl engine = new XPathEngineImpl();
+		engine.setXPaths(xpaths);
+		return engine;
+	}
+
+	@Benchmark
+	public XPathEngineImpl loadSnapshot() throws IOException {
+		XPathEngineImpl engine = new XPathEngineImpl();
+		engine.loadSnapshot(snapshot);
+		return engine;
+	}
+
+	/**
+	 * @return
+	 * 		XPaths generated from a sample HTML document, the same for a
+	 * 		given count in every JVM
+	 */
+	static String[] generate(int count) {
+		DocumentGenerator documents = new DocumentGenerator(1);
+		documents.setDepth(5);
+		documents.setFanOut(5);
+		documents.setAttributes(3);
+		documents.setAttributeCardinality(1000);
+		Document sample = Doc.getDOM(documents.generate(DocType.HTML), false);
+		return new QueryGenerator(2).generate(sample, count);
+	}
+
+	/**
+	 * Writes the snapshot timed by the benchmark.
+	 * 
+	 * Usage: SnapshotLoadBenchmark queries file
+	 */
+	public static void main(String[] args) throws IOException {
+		XPathEngineImpl engine = new XPathEngineImpl();
+		engine.setXPaths(generate(Integer.parseInt(args[0])));
+		engine.saveSnapshot(Paths.get(args[1]));
+	}
+}
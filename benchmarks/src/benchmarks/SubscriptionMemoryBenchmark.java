@@ -0,0 +1,88 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+
+import models.Doc;
+import models.Doc.DocType;
+import workload.DocumentGenerator;
+import workload.QueryGenerator;
+import xpathengine.SubscriptionStore;
+
+/**
+ * Adding generated XPaths to a SubscriptionStore, by number of XPaths and
+ * the fraction of them sharing a prefix with an earlier one. Besides the
+ * time to add them, reports the bytes of the arrays holding the store per
+ * subscription, as the bytesPerSubscription secondary result.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SubscriptionMemoryBenchmark {
+
+	@Param({ "100000", "1000000" })
+	public int subscriptionCount;
+
+	@Param({ "0.0", "0.5" })
+	public double prefixOverlap;
+
+	private String[] xpaths;
+
+	/**
+	 * Footprint of the last store built in an iteration
+	 */
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class Footprint {
+		public double bytesPerSubscription;
+		public double cellsPerSubscription;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			bytesPerSubscription = 0;
+			cellsPerSubscription = 0;
+		}
+	}
+
+	@Setup
+	public void setUp() {
+		DocumentGenerator documents = new DocumentGenerator(1);
+		documents.setDepth(5);
+		documents.setFanOut(5);
+		documents.setAttributes(3);
+		documents.setAttributeCardinality(100);
+		Document sample = Doc.getDOM(documents.generate(DocType.HTML), false);
+		QueryGenerator generator = new QueryGenerator(2);
+		generator.setPrefixOverlap(prefixOverlap);
+		xpaths = generator.generate(sample, subscriptionCount);
+	}
+
+	@Benchmark
+	public SubscriptionStore add(Footprint footprint) {
+		SubscriptionStore store = new SubscriptionStore();
+		for (String xpath : xpaths) {
+			store.add(xpath);
+		}
+		store.trim();
+		footprint.bytesPerSubscription = (double) store.getBytes() / store.size();
+		footprint.cellsPerSubscription = (double) store.getCellCount() / store.size();
+		return store;
+	}
+}
@@ -0,0 +1,113 @@
+package benchmarks;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import models.TextMatcher;
+
+/**
+ * contains() checks of a pattern that does not occur, so that the whole
+ * text is scanned, by text size and pattern length: String.contains against
+ * TextMatcher on Strings, and a byte by byte search against TextMatcher on
+ * UTF-8 bytes in a direct buffer
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TextMatchBenchmark {
+
+	@Param({ "100", "1000", "10000", "100000", "1000000" })
+	public int textSize;
+
+	@Param({ "8", "32" })
+	public int patternLength;
+
+	private String text;
+	private String pattern;
+	private TextMatcher matcher;
+	private ByteBuffer buffer;
+	private int length;
+	private byte[] utf8;
+
+	@Setup
+	public void setUp() {
+		text = text(textSize, new Random(textSize));
+		// occurs nowhere, but its characters do
+		pattern = text.substring(0, patternLength - 1) + "#";
+		if (text.contains(pattern)) {
+			throw new IllegalStateException("pattern should not occur");
+		}
+		matcher = new TextMatcher(pattern);
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		buffer = ByteBuffer.allocateDirect(bytes.length).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.put(bytes);
+		length = bytes.length;
+		utf8 = pattern.getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Benchmark
+	public boolean stringContains() {
+		return text.contains(pattern);
+	}
+
+	@Benchmark
+	public boolean matcherString() {
+		return matcher.containedIn(text);
+	}
+
+	@Benchmark
+	public boolean naiveBytes() {
+		return naiveContains(buffer, 0, length, utf8);
+	}
+
+	@Benchmark
+	public boolean matcherBytes() {
+		return matcher.containedIn(buffer, 0, length);
+	}
+
+	/**
+	 * Generates lower-case words separated by spaces
+	 */
+	private static String text(int size, Random r) {
+		StringBuilder sb = new StringBuilder(size);
+		while (sb.length() < size) {
+			sb.append(sb.length() % 7 == 0 ? ' ' : (char) ('a' + r.nextInt(26)));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Byte by byte search, as done before TextMatcher
+	 */
+	private static boolean naiveContains(ByteBuffer b, int offset, int length, byte[] utf8) {
+		int last = offset + length - utf8.length;
+		for (int start = offset; start <= last; start++) {
+			int i = 0;
+			while (i < utf8.length && b.get(start + i) == utf8[i]) {
+				i++;
+			}
+			if (i == utf8.length) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -54,6 +54,14 @@ public class Doc {
 		return this.docType;
 	}
 
+	/**
+	 * @return
+	 * 		whether the document should be parsed as XML, rather than HTML
+	 */
+	public boolean isXML() {
+		return docType == DocType.XML || docType == DocType.RSS;
+	}
+
 	public String getDocumentString() {
 		return document;
 	}
@@ -89,6 +97,8 @@ public class Doc {
 	 * 		DOM root node representing the document
 	 */
 	public static Document getDOM(String doc, boolean isXML) {
+		ParseEvent event = new ParseEvent();
+		event.begin();
 		InputStream docStream = new ByteArrayInputStream(doc.getBytes());
 		OutputStream parsedStream = new ByteArrayOutputStream();
 		Tidy tidy = new Tidy();
@@ -97,7 +107,14 @@ public class Doc {
 		tidy.setQuiet(true);
 		tidy.setShowErrors(0);
 		tidy.setShowWarnings(false);
-		return tidy.parseDOM(docStream, parsedStream);
+		Document dom = tidy.parseDOM(docStream, parsedStream);
+		event.end();
+		if (event.shouldCommit()) {
+			event.documentSize = doc.length();
+			event.xml = isXML;
+			event.commit();
+		}
+		return dom;
 	}
 	
 	
@@ -118,10 +135,17 @@ public class Doc {
 	}
 	
 	public static String getDocHash(Document document) {
+		HashEvent event = new HashEvent();
+		event.begin();
 		try {
 			String docString = getDocString(document);
 			MessageDigest digest = MessageDigest.getInstance(HASH_ALGO);
 			byte[] hash = digest.digest(docString.getBytes(StandardCharsets.UTF_8));
+			event.end();
+			if (event.shouldCommit()) {
+				event.documentSize = docString.length();
+				event.commit();
+			}
 			return new String(hash);
 		} catch (NoSuchAlgorithmException e) {
 			System.err.println("Invalid hash algorithm");
@@ -0,0 +1,23 @@
+package models;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event for hashing a DOM, including serializing it
+ */
+@Name("xpathengine.Hash")
+@Label("Document Hash")
+@Category({ "XPath Engine", "Documents" })
+@Description("Serializing and hashing a DOM")
+final class HashEvent extends Event {
+
+	@Label("Document Size")
+	@Description("Length of the serialized document in characters")
+	@DataAmount(DataAmount.BYTES)
+	long documentSize;
+}
@@ -0,0 +1,497 @@
+package models;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.DOMException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Push parser for XML documents arriving in chunks. Each call to feed()
+ * consumes the bytes given, advances the parser as far as the input allows
+ * and returns without waiting for more input. The DOM is built as elements
+ * are parsed, and the handler is notified whenever an element is closed,
+ * at which point its subtree is complete.
+ *
+ * Text is built as Doc.getDOM() builds it in XML mode: each run of text
+ * between two constructs is a separate text node, with runs of whitespace
+ * collapsed to a single space, leading spaces removed, and trailing spaces
+ * removed before the end tag of its element. Whitespace-only text is
+ * dropped. CDATA sections become CDATA section nodes. For malformed input,
+ * the parser closes unclosed elements and ignores stray end tags.
+ */
+public class IncrementalParser {
+
+	public interface Handler {
+
+		/**
+		 * Called when an element and all of its descendants have been parsed
+		 */
+		void elementClosed(Element e);
+	}
+
+	private final Handler handler;
+	private final CharsetDecoder decoder;
+	private final Document document;
+	private final Deque<Element> open = new ArrayDeque<>();
+
+	// bytes of an incomplete character at the end of the last chunk
+	private ByteBuffer pendingBytes = ByteBuffer.allocate(0);
+	// decoded characters not yet consumed by the lexer
+	private final StringBuilder buffer = new StringBuilder();
+	// text seen since the last tag
+	private final StringBuilder text = new StringBuilder();
+	// length of the incomplete construct at the start of the buffer that
+	// has already been searched for its end, and the quote open at that point
+	private int scanned = 0;
+	private char scannedQuote = 0;
+	private boolean finished = false;
+
+	/**
+	 * @param charset
+	 * 		encoding of the bytes fed to the parser
+	 * @param handler
+	 * 		notified of closed elements, may be null
+	 */
+	public IncrementalParser(Charset charset, Handler handler) {
+		this.handler = handler;
+		this.decoder = charset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		try {
+			this.document = DocumentBuilderFactory.newInstance()
+					.newDocumentBuilder().newDocument();
+		} catch (ParserConfigurationException e) {
+			throw new IllegalStateException(e);
+		}
+		// like JTidy in XML mode, allow more than one element at the top level
+		this.document.setStrictErrorChecking(false);
+	}
+
+	/**
+	 * @return
+	 * 		document built so far. Complete once finish() has been called.
+	 */
+	public Document getDocument() {
+		return document;
+	}
+
+	public void feed(byte[] chunk) {
+		feed(chunk, 0, chunk.length);
+	}
+
+	public void feed(byte[] chunk, int offset, int length) {
+		feed(ByteBuffer.wrap(chunk, offset, length));
+	}
+
+	/**
+	 * Consumes the remaining bytes of a chunk
+	 */
+	public void feed(ByteBuffer chunk) {
+		if (finished) {
+			throw new IllegalStateException("parser is finished");
+		}
+		ByteBuffer in = chunk;
+		if (pendingBytes.hasRemaining()) {
+			in = ByteBuffer.allocate(pendingBytes.remaining() + chunk.remaining());
+			in.put(pendingBytes).put(chunk).flip();
+		}
+		decode(in, false);
+		pendingBytes = ByteBuffer.allocate(in.remaining());
+		pendingBytes.put(in).flip();
+		lex(false);
+	}
+
+	/**
+	 * Signals the end of the document, closing all elements that are
+	 * still open
+	 * @return
+	 * 		the complete document
+	 */
+	public Document finish() {
+		if (finished) {
+			return document;
+		}
+		decode(pendingBytes, true);
+		CharBuffer out = CharBuffer.allocate(16);
+		decoder.flush(out);
+		out.flip();
+		buffer.append(out);
+		lex(true);
+		flushText(true);
+		while (!open.isEmpty()) {
+			close(open.pop());
+		}
+		finished = true;
+		return document;
+	}
+
+	private void decode(ByteBuffer in, boolean endOfInput) {
+		CharBuffer out = CharBuffer.allocate(Math.max(16, in.remaining()));
+		while (true) {
+			CoderResult result = decoder.decode(in, out, endOfInput);
+			out.flip();
+			buffer.append(out);
+			out.clear();
+			if (!result.isOverflow()) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Consumes all complete constructs in the buffer
+	 * @param endOfInput
+	 * 		whether incomplete constructs at the end of the buffer can be
+	 * 		treated as text, as no more input will arrive
+	 */
+	private void lex(boolean endOfInput) {
+		int pos = 0;
+		while (pos < buffer.length()) {
+			int lt = buffer.indexOf("<", pos);
+			if (lt < 0) {
+				text.append(buffer, pos, buffer.length());
+				pos = buffer.length();
+				break;
+			}
+			text.append(buffer, pos, lt);
+			pos = lt;
+			int end = findConstructEnd(pos);
+			if (end < 0) {
+				if (endOfInput) {
+					text.append(buffer, pos, buffer.length());
+					pos = buffer.length();
+				}
+				break;
+			}
+			if (end == pos) {
+				// '<' that does not start markup
+				text.append('<');
+				pos++;
+				continue;
+			}
+			handleConstruct(pos, end);
+			pos = end;
+		}
+		buffer.delete(0, pos);
+	}
+
+	/**
+	 * @param start
+	 * 		position of a '<' in the buffer
+	 * @return
+	 * 		position after the construct starting at the given position,
+	 * 		-1 if more input is needed, or the given position if the
+	 * 		'<' does not start markup
+	 */
+	private int findConstructEnd(int start) {
+		int remaining = buffer.length() - start;
+		if (remaining < 2) {
+			return -1;
+		}
+		char c = buffer.charAt(start + 1);
+		if (c == '!') {
+			if (isPartial("<!--", start, remaining) || isPartial("<![CDATA[", start, remaining)) {
+				// prefix of a comment or CDATA section, not complete yet
+				return -1;
+			}
+			if (startsWith(start, "<!--")) {
+				return endAfter("-->", start, start + 4);
+			}
+			if (startsWith(start, "<![CDATA[")) {
+				return endAfter("]]>", start, start + 9);
+			}
+			return endAfter(">", start, start + 2);
+		}
+		if (c == '?') {
+			return endAfter(">", start, start + 2);
+		}
+		if (c == '/' || Character.isLetter(c) || c == '_' || c == ':') {
+			// tag, '>' inside quoted attribute values does not end it
+			char quote = scannedQuote;
+			for (int i = Math.max(start + 1, start + scanned); i < buffer.length(); i++) {
+				char ch = buffer.charAt(i);
+				if (quote != 0) {
+					if (ch == quote) {
+						quote = 0;
+					}
+				} else if (ch == '"' || ch == '\'') {
+					quote = ch;
+				} else if (ch == '>') {
+					scanned = 0;
+					scannedQuote = 0;
+					return i + 1;
+				}
+			}
+			// resume after the scanned part when more input arrives
+			scanned = buffer.length() - start;
+			scannedQuote = quote;
+			return -1;
+		}
+		return start;
+	}
+
+	/**
+	 * Checks whether the remaining buffer is a proper prefix of markup
+	 */
+	private boolean isPartial(String markup, int start, int remaining) {
+		if (remaining >= markup.length()) {
+			return false;
+		}
+		for (int i = 0; i < remaining; i++) {
+			if (buffer.charAt(start + i) != markup.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean startsWith(int start, String markup) {
+		return buffer.length() - start >= markup.length()
+				&& buffer.substring(start, start + markup.length()).equals(markup);
+	}
+
+	/**
+	 * @param start
+	 * 		position of the construct the terminator ends
+	 * @param from
+	 * 		position at which the terminator may start
+	 */
+	private int endAfter(String terminator, int start, int from) {
+		int idx = buffer.indexOf(terminator, Math.max(from, start + scanned));
+		if (idx < 0) {
+			// the terminator may begin within its length of the end
+			scanned = Math.max(0, buffer.length() - start - terminator.length() + 1);
+			return -1;
+		}
+		scanned = 0;
+		return idx + terminator.length();
+	}
+
+	private void handleConstruct(int start, int end) {
+		char c = buffer.charAt(start + 1);
+		// text before an end tag is the last text of its element
+		flushText(c == '/');
+		if (startsWith(start, "<![CDATA[")) {
+			if (!open.isEmpty()) {
+				open.peek().appendChild(document.createCDATASection(
+						buffer.substring(start + 9, end - 3)));
+			}
+			return;
+		}
+		if (c == '!' || c == '?') {
+			// comments, doctype and processing instructions are not kept,
+			// but end the text before them
+			return;
+		}
+		String tag = buffer.substring(start + 1, end - 1);
+		if (c == '/') {
+			endTag(tag.substring(1).trim());
+		} else {
+			startTag(tag);
+		}
+	}
+
+	private void startTag(String tag) {
+		boolean selfClosing = tag.endsWith("/");
+		if (selfClosing) {
+			tag = tag.substring(0, tag.length() - 1);
+		}
+		int i = 0;
+		while (i < tag.length() && !Character.isWhitespace(tag.charAt(i))) {
+			i++;
+		}
+		String name = tag.substring(0, i);
+		Element e;
+		try {
+			e = document.createElement(name);
+		} catch (DOMException ex) {
+			// not a valid element name, skip the tag
+			return;
+		}
+		parseAttributes(e, tag, i);
+		if (open.isEmpty()) {
+			document.appendChild(e);
+		} else {
+			open.peek().appendChild(e);
+		}
+		if (selfClosing) {
+			close(e);
+			return;
+		}
+		open.push(e);
+	}
+
+	private void parseAttributes(Element e, String tag, int pos) {
+		int len = tag.length();
+		while (pos < len) {
+			while (pos < len && Character.isWhitespace(tag.charAt(pos))) {
+				pos++;
+			}
+			int nameStart = pos;
+			while (pos < len && tag.charAt(pos) != '='
+					&& !Character.isWhitespace(tag.charAt(pos))) {
+				pos++;
+			}
+			String name = tag.substring(nameStart, pos);
+			while (pos < len && Character.isWhitespace(tag.charAt(pos))) {
+				pos++;
+			}
+			String value = "";
+			if (pos < len && tag.charAt(pos) == '=') {
+				pos++;
+				while (pos < len && Character.isWhitespace(tag.charAt(pos))) {
+					pos++;
+				}
+				if (pos < len && (tag.charAt(pos) == '"' || tag.charAt(pos) == '\'')) {
+					char quote = tag.charAt(pos);
+					int close = tag.indexOf(quote, pos + 1);
+					if (close < 0) {
+						close = len;
+					}
+					value = tag.substring(pos + 1, close);
+					pos = Math.min(len, close + 1);
+				} else {
+					int valueStart = pos;
+					while (pos < len && !Character.isWhitespace(tag.charAt(pos))) {
+						pos++;
+					}
+					value = tag.substring(valueStart, pos);
+				}
+			}
+			if (name.length() > 0) {
+				try {
+					e.setAttribute(name, decodeEntities(value));
+				} catch (DOMException ex) {
+					// not a valid attribute name, skip the attribute
+				}
+			}
+		}
+	}
+
+	private void endTag(String name) {
+		boolean isOpen = false;
+		for (Element e : open) {
+			if (e.getTagName().equals(name)) {
+				isOpen = true;
+				break;
+			}
+		}
+		// stray end tags are ignored, unclosed elements inside are closed
+		if (isOpen) {
+			Element e;
+			do {
+				e = open.pop();
+				close(e);
+			} while (!e.getTagName().equals(name));
+		}
+	}
+
+	private void close(Element e) {
+		if (handler != null) {
+			handler.elementClosed(e);
+		}
+	}
+
+	/**
+	 * Adds the text seen since the last construct as a text node
+	 * @param last
+	 * 		whether the text is followed by the end of its element, in which
+	 * 		case trailing spaces are removed
+	 */
+	private void flushText(boolean last) {
+		// collapse whitespace in the source, but not character references
+		StringBuilder collapsed = new StringBuilder(text.length());
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (isWhitespace(c)) {
+				if (collapsed.length() == 0 
+						|| collapsed.charAt(collapsed.length() - 1) != ' ') {
+					collapsed.append(' ');
+				}
+			} else {
+				collapsed.append(c);
+			}
+		}
+		text.setLength(0);
+		String value = decodeEntities(collapsed.toString());
+		int start = 0;
+		int end = value.length();
+		while (start < end && value.charAt(start) == ' ') {
+			start++;
+		}
+		while (last && end > start && value.charAt(end - 1) == ' ') {
+			end--;
+		}
+		if (start < end && !open.isEmpty()) {
+			open.peek().appendChild(document.createTextNode(value.substring(start, end)));
+		}
+	}
+
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+	}
+
+	/**
+	 * Decodes character references and the predefined entities
+	 */
+	static String decodeEntities(String s) {
+		int amp = s.indexOf('&');
+		if (amp < 0) {
+			return s;
+		}
+		StringBuilder sb = new StringBuilder(s.length());
+		int pos = 0;
+		while (amp >= 0) {
+			sb.append(s, pos, amp);
+			int semi = s.indexOf(';', amp);
+			String decoded = semi < 0 ? null : decodeEntity(s.substring(amp + 1, semi));
+			if (decoded == null) {
+				sb.append('&');
+				pos = amp + 1;
+			} else {
+				sb.append(decoded);
+				pos = semi + 1;
+			}
+			amp = s.indexOf('&', pos);
+		}
+		return sb.append(s, pos, s.length()).toString();
+	}
+
+	private static String decodeEntity(String entity) {
+		switch (entity) {
+		case "amp":
+			return "&";
+		case "lt":
+			return "<";
+		case "gt":
+			return ">";
+		case "quot":
+			return "\"";
+		case "apos":
+			return "'";
+		case "nbsp":
+			return "\u00a0";
+		}
+		try {
+			if (entity.startsWith("#x") || entity.startsWith("#X")) {
+				return new String(Character.toChars(Integer.parseInt(entity.substring(2), 16)));
+			} else if (entity.startsWith("#")) {
+				return new String(Character.toChars(Integer.parseInt(entity.substring(1))));
+			}
+		} catch (IllegalArgumentException e) {
+			// not a valid character reference
+		}
+		return null;
+	}
+}
@@ -0,0 +1,61 @@
+package models;
+
+import java.util.Arrays;
+
+/**
+ * Result of evaluating a set of XPaths against a document: the id of the
+ * document and the indexes of the XPaths it matches
+ */
+public class MatchResult {
+	
+	private final String docId;
+	private final int[] matches;
+	
+	public MatchResult(String docId, int[] matches) {
+		this.docId = docId;
+		this.matches = matches;
+	}
+	
+	/**
+	 * @param result
+	 * 		i'th element is true if the document matches the i'th XPath,
+	 * 		as returned by XPathEngine.evaluate()
+	 */
+	public static MatchResult fromBooleans(String docId, boolean[] result) {
+		int count = 0;
+		for (boolean b : result) {
+			if (b) {
+				count++;
+			}
+		}
+		int[] matches = new int[count];
+		count = 0;
+		for (int i = 0; i < result.length; i++) {
+			if (result[i]) {
+				matches[count++] = i;
+			}
+		}
+		return new MatchResult(docId, matches);
+	}
+	
+	public String getDocId() {
+		return docId;
+	}
+	
+	/**
+	 * @return
+	 * 		indexes of the matching XPaths, in increasing order
+	 */
+	public int[] getMatches() {
+		return matches;
+	}
+	
+	public boolean matches(int i) {
+		return Arrays.binarySearch(matches, i) >= 0;
+	}
+	
+	@Override
+	public String toString() {
+		return docId + ": " + Arrays.toString(matches);
+	}
+}
@@ -0,0 +1,584 @@
+package models;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Parsed document encoded into a single off-heap buffer, so that holding
+ * many parsed documents does not keep large DOM object graphs on the heap.
+ * 
+ * Only elements are encoded, together with their attributes and their
+ * text value (the value of the first text child, as used by text() tests).
+ * Nodes are numbered in document order, with node 0 being the document
+ * node itself. Element and attribute names are interned, and text and
+ * attribute values are pooled, as UTF-8 strings.
+ * 
+ * The encoding can be written to a file and memory-mapped back, so that
+ * stored documents can be evaluated without parsing them again.
+ * There is nothing to close: both allocated and mapped buffers are
+ * released by the garbage collector once the document is unreachable.
+ * 
+ * Every table of the encoding is validated once when a buffer is wrapped,
+ * so that a corrupt buffer (e.g. received by a shard) is rejected up front
+ * instead of failing, or looping, in the middle of an evaluation.
+ */
+public class PackedDocument {
+	
+	public static final int MAGIC = 0x58504b44;
+	public static final int VERSION = 1;
+	
+	// header: magic, version, node count, attribute count, string count,
+	// name count, byte count
+	private static final int HEADER_INTS = 7;
+	// per node: name, parent, first child, next sibling, text, first 
+	// attribute, attribute count
+	private static final int NODE_INTS = 7;
+	private static final int NAME = 0;
+	private static final int PARENT = 1;
+	private static final int FIRST_CHILD = 2;
+	private static final int NEXT_SIBLING = 3;
+	private static final int TEXT = 4;
+	private static final int ATT_START = 5;
+	private static final int ATT_COUNT = 6;
+	// per attribute: name, value
+	private static final int ATT_INTS = 2;
+	// per string: byte offset, byte length
+	private static final int STRING_INTS = 2;
+	
+	public static final int NONE = -1;
+	public static final int ROOT = 0;
+
+	private final ByteBuffer buffer;
+	private final int nodeCount;
+	private final int attCount;
+	private final int stringCount;
+	private final int nameCount;
+	private final int nodeBase;
+	private final int attBase;
+	private final int stringBase;
+	private final int byteBase;
+	
+	/**
+	 * Wraps a buffer holding an encoded document
+	 * @param buffer
+	 * 		buffer positioned at the start of the encoding
+	 * @throws IllegalArgumentException
+	 * 		if the buffer does not hold a supported, well-formed encoding
+	 */
+	public PackedDocument(ByteBuffer buffer) {
+		ByteBuffer b = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+		if (b.remaining() < HEADER_INTS * 4 || b.getInt(0) != MAGIC) {
+			throw new IllegalArgumentException("not a packed document");
+		}
+		if (b.getInt(4) != VERSION) {
+			throw new IllegalArgumentException("unsupported version: " + b.getInt(4));
+		}
+		int nodes = b.getInt(8);
+		int atts = b.getInt(12);
+		int strings = b.getInt(16);
+		int names = b.getInt(20);
+		int byteCount = b.getInt(24);
+		if (nodes < 1 || atts < 0 || strings < 0 || names < 0 || names > strings 
+				|| byteCount < 0) {
+			throw corrupt("invalid header counts");
+		}
+		// computed as long, so that huge counts cannot overflow into a 
+		// size that passes the check
+		long size = HEADER_INTS * 4L + (long) nodes * NODE_INTS * 4 
+				+ (long) atts * ATT_INTS * 4 + (long) strings * STRING_INTS * 4 + byteCount;
+		if (b.remaining() < size) {
+			throw new IllegalArgumentException("truncated packed document");
+		}
+		this.buffer = b;
+		this.nodeCount = nodes;
+		this.attCount = atts;
+		this.stringCount = strings;
+		this.nameCount = names;
+		this.nodeBase = HEADER_INTS * 4;
+		this.attBase = nodeBase + nodeCount * NODE_INTS * 4;
+		this.stringBase = attBase + attCount * ATT_INTS * 4;
+		this.byteBase = stringBase + stringCount * STRING_INTS * 4;
+		validate(byteCount);
+	}
+	
+	/**
+	 * Checks that every reference in the tables is in range. Children and
+	 * siblings must follow, and parents precede, a node in document order,
+	 * so that no traversal of a corrupt encoding can loop.
+	 */
+	private void validate(int byteCount) {
+		if (nodeInt(ROOT, NAME) != NONE || nodeInt(ROOT, PARENT) != NONE) {
+			throw corrupt("node 0 is not the document node");
+		}
+		for (int n = 0; n < nodeCount; n++) {
+			if (n > 0) {
+				int name = nodeInt(n, NAME);
+				int parent = nodeInt(n, PARENT);
+				if (name < 0 || name >= nameCount) {
+					throw corrupt("invalid name of node " + n);
+				}
+				if (parent < 0 || parent >= n) {
+					throw corrupt("invalid parent of node " + n);
+				}
+			}
+			int child = nodeInt(n, FIRST_CHILD);
+			int sibling = nodeInt(n, NEXT_SIBLING);
+			int text = nodeInt(n, TEXT);
+			if (child != NONE && (child <= n || child >= nodeCount)) {
+				throw corrupt("invalid first child of node " + n);
+			}
+			if (sibling != NONE && (sibling <= n || sibling >= nodeCount)) {
+				throw corrupt("invalid next sibling of node " + n);
+			}
+			if (text != NONE && (text < 0 || text >= stringCount)) {
+				throw corrupt("invalid text of node " + n);
+			}
+			int start = nodeInt(n, ATT_START);
+			int count = nodeInt(n, ATT_COUNT);
+			if (start < 0 || count < 0 || (long) start + count > attCount) {
+				throw corrupt("invalid attributes of node " + n);
+			}
+		}
+		for (int a = 0; a < attCount; a++) {
+			int name = buffer.getInt(attBase + a * ATT_INTS * 4);
+			int value = buffer.getInt(attBase + a * ATT_INTS * 4 + 4);
+			if (name < 0 || name >= nameCount || value < 0 || value >= stringCount) {
+				throw corrupt("invalid attribute " + a);
+			}
+		}
+		for (int i = 0; i < stringCount; i++) {
+			int offset = buffer.getInt(stringBase + i * STRING_INTS * 4);
+			int length = buffer.getInt(stringBase + i * STRING_INTS * 4 + 4);
+			if (offset < 0 || length < 0 || (long) offset + length > byteCount) {
+				throw corrupt("invalid string " + i);
+			}
+		}
+	}
+	
+	private static IllegalArgumentException corrupt(String message) {
+		return new IllegalArgumentException("corrupt packed document: " + message);
+	}
+	
+	/**
+	 * Encodes a DOM document into a newly allocated off-heap buffer
+	 */
+	public static PackedDocument pack(Document d) {
+		return new Encoder().encode(d);
+	}
+	
+	/**
+	 * Memory-maps a document written by write(). The file is unmapped when
+	 * the document is no longer reachable.
+	 * @throws IllegalArgumentException
+	 * 		if the file does not hold a supported encoding
+	 */
+	public static PackedDocument map(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			ByteBuffer mapped = channel.map(MapMode.READ_ONLY, 0, channel.size());
+			return new PackedDocument(mapped);
+		}
+	}
+	
+	/**
+	 * Writes the encoding to a file, replacing it if it exists. The file
+	 * is written to a temporary file first, so that readers never map a
+	 * partially written document.
+	 */
+	public void write(Path file) throws IOException {
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, 
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer b = view(buffer);
+			while (b.hasRemaining()) {
+				channel.write(b);
+			}
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, 
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	/**
+	 * @return
+	 * 		copy of the encoded document on the heap, which can be wrapped
+	 * 		into a new PackedDocument
+	 */
+	public byte[] getBytes() {
+		ByteBuffer b = view(buffer);
+		byte[] bytes = new byte[b.remaining()];
+		b.get(bytes);
+		return bytes;
+	}
+	
+	/**
+	 * @return
+	 * 		number of nodes, including the document node
+	 */
+	public int getNodeCount() {
+		return nodeCount;
+	}
+	
+	/**
+	 * @return
+	 * 		size of the encoding in bytes
+	 */
+	public int getByteSize() {
+		return byteBase + buffer.getInt(24);
+	}
+	
+	public int getParent(int node) {
+		return nodeInt(node, PARENT);
+	}
+	
+	/**
+	 * @return
+	 * 		first child element, NONE if the node has no child elements
+	 */
+	public int getFirstChild(int node) {
+		return nodeInt(node, FIRST_CHILD);
+	}
+	
+	/**
+	 * @return
+	 * 		next sibling element, NONE if the node is the last element
+	 */
+	public int getNextSibling(int node) {
+		return nodeInt(node, NEXT_SIBLING);
+	}
+	
+	/**
+	 * @return
+	 * 		interned name id of an element, NONE for the document node
+	 */
+	public int getNameId(int node) {
+		return nodeInt(node, NAME);
+	}
+	
+	/**
+	 * @return
+	 * 		string id of the text value of an element, NONE if it has no text
+	 */
+	public int getTextId(int node) {
+		return nodeInt(node, TEXT);
+	}
+	
+	/**
+	 * Looks up the interned id of an element or attribute name
+	 * @return
+	 * 		NONE if the name does not occur in the document
+	 */
+	public int findName(String name) {
+		return findName(name.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	/**
+	 * Finds the id of a UTF-8 encoded element or attribute name
+	 * @return
+	 * 		NONE if the name does not occur in the document
+	 */
+	public int findName(byte[] bytes) {
+		for (int id = 0; id < nameCount; id++) {
+			if (stringEquals(id, bytes)) {
+				return id;
+			}
+		}
+		return NONE;
+	}
+	
+	/**
+	 * @return
+	 * 		string id of the value of an attribute of an element, NONE if
+	 * 		the element does not have the attribute
+	 */
+	public int getAttributeValueId(int node, int nameId) {
+		ByteBuffer b = buffer;
+		int start = nodeInt(node, ATT_START);
+		int end = start + nodeInt(node, ATT_COUNT);
+		for (int a = start; a < end; a++) {
+			int pos = attBase + a * ATT_INTS * 4;
+			if (b.getInt(pos) == nameId) {
+				return b.getInt(pos + 4);
+			}
+		}
+		return NONE;
+	}
+	
+	/**
+	 * @return
+	 * 		number of attributes of an element
+	 */
+	public int getAttributeCount(int node) {
+		return nodeInt(node, ATT_COUNT);
+	}
+	
+	/**
+	 * @param k
+	 * 		position of the attribute, less than getAttributeCount()
+	 * @return
+	 * 		name id of the k'th attribute of an element
+	 */
+	public int getAttributeNameAt(int node, int k) {
+		return buffer.getInt(attBase + (nodeInt(node, ATT_START) + k) * ATT_INTS * 4);
+	}
+	
+	/**
+	 * @param k
+	 * 		position of the attribute, less than getAttributeCount()
+	 * @return
+	 * 		string id of the value of the k'th attribute of an element
+	 */
+	public int getAttributeValueAt(int node, int k) {
+		return buffer.getInt(attBase + (nodeInt(node, ATT_START) + k) * ATT_INTS * 4 + 4);
+	}
+	
+	/**
+	 * Compares a pooled string with UTF-8 encoded bytes, without decoding it
+	 */
+	public boolean stringEquals(int id, byte[] utf8) {
+		ByteBuffer b = buffer;
+		int offset = byteBase + b.getInt(stringBase + id * STRING_INTS * 4);
+		int length = b.getInt(stringBase + id * STRING_INTS * 4 + 4);
+		if (length != utf8.length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (b.get(offset + i) != utf8[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Checks whether a pooled string contains the pattern of a matcher,
+	 * without decoding it
+	 */
+	public boolean stringContains(int id, TextMatcher matcher) {
+		ByteBuffer b = buffer;
+		int offset = byteBase + b.getInt(stringBase + id * STRING_INTS * 4);
+		int length = b.getInt(stringBase + id * STRING_INTS * 4 + 4);
+		return matcher.containedIn(b, offset, length);
+	}
+	
+	/**
+	 * Checks whether a pooled string equals the pattern of a matcher,
+	 * without decoding it
+	 */
+	public boolean stringEquals(int id, TextMatcher matcher) {
+		ByteBuffer b = buffer;
+		int offset = byteBase + b.getInt(stringBase + id * STRING_INTS * 4);
+		int length = b.getInt(stringBase + id * STRING_INTS * 4 + 4);
+		return matcher.equalTo(b, offset, length);
+	}
+	
+	/**
+	 * Decodes a pooled string onto the heap
+	 */
+	public String getString(int id) {
+		ByteBuffer b = buffer;
+		int offset = byteBase + b.getInt(stringBase + id * STRING_INTS * 4);
+		int length = b.getInt(stringBase + id * STRING_INTS * 4 + 4);
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = b.get(offset + i);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	private int nodeInt(int node, int field) {
+		return buffer.getInt(nodeBase + (node * NODE_INTS + field) * 4);
+	}
+	
+	/**
+	 * @return
+	 * 		read-only view of the encoding, limited to its size
+	 */
+	private ByteBuffer view(ByteBuffer b) {
+		ByteBuffer v = b.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+		v.limit(byteBase + b.getInt(24));
+		return v;
+	}
+	
+	/**
+	 * Encodes a DOM document, collecting the arrays on the heap before
+	 * copying them into the off-heap buffer
+	 */
+	private static class Encoder {
+		
+		private int[] nodes = new int[64 * NODE_INTS];
+		private int nodeCount = 0;
+		private int[] atts = new int[64 * ATT_INTS];
+		private int attCount = 0;
+		private final Map<String, Integer> names = new HashMap<>();
+		private final Map<String, Integer> strings = new HashMap<>();
+		private byte[][] stringBytes = new byte[64][];
+		private int stringCount = 0;
+		private int byteCount = 0;
+		
+		PackedDocument encode(Document d) {
+			// names are interned first so that their ids are below nameCount
+			Deque<Node> stack = new ArrayDeque<>();
+			pushChildren(stack, d);
+			while (!stack.isEmpty()) {
+				Node n = stack.pop();
+				intern(names, n.getNodeName());
+				NamedNodeMap attribs = n.getAttributes();
+				for (int i = 0; attribs != null && i < attribs.getLength(); i++) {
+					intern(names, attribs.item(i).getNodeName());
+				}
+				pushChildren(stack, n);
+			}
+			int nameCount = stringCount;
+			
+			addNode(NONE, NONE);
+			Deque<Node> domNodes = new ArrayDeque<>();
+			Deque<Integer> parents = new ArrayDeque<>();
+			int[] lastChild = new int[64];
+			Arrays.fill(lastChild, NONE);
+			pushChildren(domNodes, d);
+			for (int i = 0; i < domNodes.size(); i++) {
+				parents.push(ROOT);
+			}
+			while (!domNodes.isEmpty()) {
+				Node n = domNodes.pop();
+				int parent = parents.pop();
+				int id = addNode(names.get(n.getNodeName()), parent);
+				if (lastChild.length <= nodeCount) {
+					lastChild = Arrays.copyOf(lastChild, nodeCount * 2);
+					Arrays.fill(lastChild, nodeCount, lastChild.length, NONE);
+				}
+				// link to parent, children are visited in document order
+				if (lastChild[parent] == NONE) {
+					nodes[parent * NODE_INTS + FIRST_CHILD] = id;
+				} else {
+					nodes[lastChild[parent] * NODE_INTS + NEXT_SIBLING] = id;
+				}
+				lastChild[parent] = id;
+				
+				String text = getTextVal(n);
+				if (text != null) {
+					nodes[id * NODE_INTS + TEXT] = intern(strings, text);
+				}
+				NamedNodeMap attribs = n.getAttributes();
+				nodes[id * NODE_INTS + ATT_START] = attCount;
+				int count = attribs == null ? 0 : attribs.getLength();
+				nodes[id * NODE_INTS + ATT_COUNT] = count;
+				for (int i = 0; i < count; i++) {
+					Node att = attribs.item(i);
+					addAttribute(names.get(att.getNodeName()), 
+							intern(strings, att.getNodeValue()));
+				}
+				int pushed = pushChildren(domNodes, n);
+				for (int i = 0; i < pushed; i++) {
+					parents.push(id);
+				}
+			}
+			return write(nameCount);
+		}
+		
+		/**
+		 * Pushes the child elements of a node in reverse, so that they are
+		 * popped in document order
+		 * @return
+		 * 		number of elements pushed
+		 */
+		private static int pushChildren(Deque<Node> stack, Node n) {
+			int pushed = 0;
+			for (Node c = n.getLastChild(); c != null; c = c.getPreviousSibling()) {
+				if (c.getNodeType() == Node.ELEMENT_NODE) {
+					stack.push(c);
+					pushed++;
+				}
+			}
+			return pushed;
+		}
+		
+		private static String getTextVal(Node n) {
+			for (Node c = n.getFirstChild(); c != null; c = c.getNextSibling()) {
+				if (c.getNodeType() == Node.TEXT_NODE) {
+					return c.getNodeValue();
+				}
+			}
+			return null;
+		}
+		
+		private int addNode(int name, int parent) {
+			if (nodes.length < (nodeCount + 1) * NODE_INTS) {
+				nodes = Arrays.copyOf(nodes, nodes.length * 2);
+			}
+			int base = nodeCount * NODE_INTS;
+			nodes[base + NAME] = name;
+			nodes[base + PARENT] = parent;
+			nodes[base + FIRST_CHILD] = NONE;
+			nodes[base + NEXT_SIBLING] = NONE;
+			nodes[base + TEXT] = NONE;
+			nodes[base + ATT_START] = 0;
+			nodes[base + ATT_COUNT] = 0;
+			return nodeCount++;
+		}
+		
+		private void addAttribute(int name, int value) {
+			if (atts.length < (attCount + 1) * ATT_INTS) {
+				atts = Arrays.copyOf(atts, atts.length * 2);
+			}
+			atts[attCount * ATT_INTS] = name;
+			atts[attCount * ATT_INTS + 1] = value;
+			attCount++;
+		}
+		
+		private int intern(Map<String, Integer> pool, String s) {
+			Integer id = pool.get(s);
+			if (id != null) {
+				return id;
+			}
+			if (stringBytes.length == stringCount) {
+				stringBytes = Arrays.copyOf(stringBytes, stringCount * 2);
+			}
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			stringBytes[stringCount] = bytes;
+			byteCount += bytes.length;
+			pool.put(s, stringCount);
+			return stringCount++;
+		}
+		
+		private PackedDocument write(int nameCount) {
+			int size = (HEADER_INTS + nodeCount * NODE_INTS + attCount * ATT_INTS 
+					+ stringCount * STRING_INTS) * 4 + byteCount;
+			ByteBuffer b = ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN);
+			b.putInt(MAGIC).putInt(VERSION).putInt(nodeCount).putInt(attCount)
+				.putInt(stringCount).putInt(nameCount).putInt(byteCount);
+			for (int i = 0; i < nodeCount * NODE_INTS; i++) {
+				b.putInt(nodes[i]);
+			}
+			for (int i = 0; i < attCount * ATT_INTS; i++) {
+				b.putInt(atts[i]);
+			}
+			int offset = 0;
+			for (int i = 0; i < stringCount; i++) {
+				b.putInt(offset).putInt(stringBytes[i].length);
+				offset += stringBytes[i].length;
+			}
+			for (int i = 0; i < stringCount; i++) {
+				b.put(stringBytes[i]);
+			}
+			b.flip();
+			return new PackedDocument(b);
+		}
+	}
+}
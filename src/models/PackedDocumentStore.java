@@ -0,0 +1,110 @@
+package models;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.w3c.dom.Document;
+
+/**
+ * Directory of PackedDocuments stored alongside Docs, keyed by document id,
+ * so that stored documents can be evaluated again without re-running
+ * HTML cleanup
+ */
+public class PackedDocumentStore {
+	
+	public static final String EXTENSION = ".xpd";
+	
+	private final Path directory;
+	
+	public PackedDocumentStore(Path directory) throws IOException {
+		this.directory = directory;
+		Files.createDirectories(directory);
+	}
+	
+	/**
+	 * @return
+	 * 		file the packed encoding of the document is stored in
+	 */
+	public Path getPath(Doc doc) {
+		return getPath(doc.getId());
+	}
+	
+	/**
+	 * @return
+	 * 		file the packed encoding of the document with the given id is
+	 * 		stored in
+	 */
+	public Path getPath(String docId) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance(Doc.HASH_ALGO);
+			byte[] hash = digest.digest(docId.getBytes(StandardCharsets.UTF_8));
+			StringBuilder name = new StringBuilder();
+			for (byte b : hash) {
+				name.append(String.format("%02x", b));
+			}
+			return directory.resolve(name.append(EXTENSION).toString());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("Invalid hash algorithm", e);
+		}
+	}
+	
+	/**
+	 * Parses and packs a document, and writes it to the store
+	 * @return
+	 * 		packed document
+	 */
+	public PackedDocument put(Doc doc) throws IOException {
+		Document dom = Doc.getDOM(doc.getDocumentString(), doc.isXML());
+		PackedDocument packed = PackedDocument.pack(dom);
+		packed.write(getPath(doc));
+		return packed;
+	}
+	
+	/**
+	 * Maps the stored packed document, or parses and stores the document
+	 * if it has not been stored yet
+	 * @return
+	 * 		packed document
+	 */
+	public PackedDocument get(Doc doc) throws IOException {
+		Path path = getPath(doc);
+		if (Files.exists(path)) {
+			try {
+				return PackedDocument.map(path);
+			} catch (IllegalArgumentException e) {
+				// written by an incompatible version, store it again
+			}
+		}
+		return put(doc);
+	}
+	
+	/**
+	 * Maps the stored packed document with the given id
+	 * @return
+	 * 		packed document. null if no
+	 * 		compatible document is stored under the id
+	 */
+	public PackedDocument get(String docId) throws IOException {
+		Path path = getPath(docId);
+		if (!Files.exists(path)) {
+			return null;
+		}
+		try {
+			return PackedDocument.map(path);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+	
+	public boolean contains(Doc doc) {
+		return Files.exists(getPath(doc));
+	}
+	
+	public void remove(Doc doc) throws IOException {
+		Files.deleteIfExists(getPath(doc));
+	}
+}
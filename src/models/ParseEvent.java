@@ -0,0 +1,27 @@
+package models;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event for parsing a document into a DOM with JTidy
+ */
+@Name("xpathengine.Parse")
+@Label("Document Parse")
+@Category({ "XPath Engine", "Documents" })
+@Description("Parsing a document into a DOM")
+final class ParseEvent extends Event {
+
+	@Label("Document Size")
+	@Description("Length of the document in characters")
+	@DataAmount(DataAmount.BYTES)
+	long documentSize;
+
+	@Label("XML")
+	@Description("Whether the document was parsed as XML rather than HTML")
+	boolean xml;
+}
@@ -0,0 +1,146 @@
+package models;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Literal of a contains() or text() test, compiled once so that it can be
+ * matched against large text values either as Strings or as UTF-8 bytes
+ * held in a buffer, e.g. the string pool of a PackedDocument.
+ *
+ * Strings are searched with String.indexOf, which the JIT compiles to SIMD
+ * instructions. Buffers are searched eight positions at a time by testing
+ * both the first and the last byte of the pattern within a long, which is
+ * the generic SIMD substring search done in a general purpose register.
+ * Instances are immutable and can be shared between threads.
+ */
+public final class TextMatcher {
+
+	private static final long ONES = 0x0101010101010101L;
+	private static final long LOWS = 0x7f7f7f7f7f7f7f7fL;
+
+	private final String pattern;
+	private final byte[] utf8;
+	// pattern bytes in both byte orders, for comparing eight bytes at a time
+	private final ByteBuffer littleEndian;
+	private final ByteBuffer bigEndian;
+
+	/**
+	 * @param pattern
+	 * 		literal to match
+	 */
+	public TextMatcher(String pattern) {
+		this.pattern = pattern;
+		this.utf8 = pattern.getBytes(StandardCharsets.UTF_8);
+		this.littleEndian = ByteBuffer.wrap(utf8).order(ByteOrder.LITTLE_ENDIAN);
+		this.bigEndian = ByteBuffer.wrap(utf8).order(ByteOrder.BIG_ENDIAN);
+	}
+
+	public String getPattern() {
+		return pattern;
+	}
+
+	/**
+	 * Checks whether a text contains the pattern
+	 * @param text
+	 * 		null if the node has no text
+	 */
+	public boolean containedIn(String text) {
+		return text != null && text.indexOf(pattern) >= 0;
+	}
+
+	/**
+	 * Checks whether a text equals the pattern
+	 * @param text
+	 * 		null if the node has no text
+	 */
+	public boolean equalTo(String text) {
+		return pattern.equals(text);
+	}
+
+	/**
+	 * Checks whether UTF-8 bytes in a buffer contain the pattern. As UTF-8
+	 * is self-synchronizing, this is equivalent to a substring check on the
+	 * decoded strings.
+	 * @param b
+	 * 		buffer, which is only read at absolute positions
+	 * @param offset
+	 * 		position of the first byte of the text
+	 * @param length
+	 * 		number of bytes of the text
+	 */
+	public boolean containedIn(ByteBuffer b, int offset, int length) {
+		int m = utf8.length;
+		if (m == 0) {
+			return true;
+		}
+		return m <= length && scan(b, offset, length);
+	}
+
+	/**
+	 * Checks whether UTF-8 bytes in a buffer equal the pattern
+	 * @param b
+	 * 		buffer, which is only read at absolute positions
+	 * @param offset
+	 * 		position of the first byte of the text
+	 * @param length
+	 * 		number of bytes of the text
+	 */
+	public boolean equalTo(ByteBuffer b, int offset, int length) {
+		return length == utf8.length && regionEquals(b, offset, length);
+	}
+
+	/**
+	 * Finds candidates by testing eight positions at a time for both the
+	 * first and the last byte of the pattern, and verifies each of them.
+	 * Testing two bytes makes candidates rare even for common first bytes.
+	 */
+	private boolean scan(ByteBuffer b, int offset, int length) {
+		int m = utf8.length;
+		int end = offset + length - m;
+		long first = (utf8[0] & 0xffL) * ONES;
+		long last = (utf8[m - 1] & 0xffL) * ONES;
+		boolean little = b.order() == ByteOrder.LITTLE_ENDIAN;
+		int i = offset;
+		for (; i + 7 <= end; i += 8) {
+			long x = (b.getLong(i) ^ first) | (b.getLong(i + m - 1) ^ last);
+			// high bit set in exactly the bytes of x that are zero
+			long zeros = ~(((x & LOWS) + LOWS) | x | LOWS);
+			while (zeros != 0) {
+				int bit = little ? Long.numberOfTrailingZeros(zeros)
+						: 63 - Long.numberOfLeadingZeros(zeros);
+				if (regionEquals(b, i + (little ? bit : 63 - bit) / 8, m)) {
+					return true;
+				}
+				zeros &= ~(1L << bit);
+			}
+		}
+		for (; i <= end; i++) {
+			if (b.get(i) == utf8[0] && regionEquals(b, i, m)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Compares the first length bytes of the pattern with a buffer,
+	 * eight bytes at a time
+	 */
+	private boolean regionEquals(ByteBuffer b, int offset, int length) {
+		ByteBuffer p = b.order() == ByteOrder.LITTLE_ENDIAN ? littleEndian : bigEndian;
+		int i = 0;
+		for (; i + 8 <= length; i += 8) {
+			if (b.getLong(offset + i) != p.getLong(i)) {
+				return false;
+			}
+		}
+		for (; i < length; i++) {
+			if (b.get(offset + i) != utf8[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,216 @@
+package pipeline;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import models.Doc;
+import models.MatchResult;
+import xpathengine.MatchList;
+import xpathengine.XPathEngine;
+
+/**
+ * Reactive adapter subscribing to a publisher of documents and publishing
+ * the match result of each document to a single subscriber.
+ * 
+ * Documents are requested from upstream only as the subscriber signals
+ * demand, and at most parallelism documents are requested, being evaluated
+ * or waiting for delivery at any time. Documents are parsed and evaluated
+ * as tasks on the executor, so no thread waits for documents or demand.
+ * Results are delivered in the order evaluations finish.
+ */
+public class MatchProcessor implements Flow.Processor<Doc, MatchResult> {
+	
+	private final XPathEngine engine;
+	private final Executor executor;
+	private final int parallelism;
+	
+	private final AtomicReference<Flow.Subscription> upstream = new AtomicReference<>();
+	private final AtomicReference<Flow.Subscriber<? super MatchResult>> downstream = 
+			new AtomicReference<>();
+	// unfulfilled demand of the subscriber
+	private final AtomicLong demand = new AtomicLong();
+	// documents requested from upstream that have not arrived
+	private final AtomicLong pending = new AtomicLong();
+	// documents arrived that have not been delivered to the subscriber
+	private final AtomicLong inProcess = new AtomicLong();
+	private final Queue<MatchResult> results = new ConcurrentLinkedQueue<>();
+	// serializes signals to the subscriber and requests to upstream
+	private final AtomicInteger wip = new AtomicInteger();
+	private final AtomicReference<Throwable> error = new AtomicReference<>();
+	private volatile boolean upstreamDone = false;
+	private volatile boolean cancelled = false;
+	private boolean terminated = false;
+	// matches of the document being evaluated by each executor thread
+	private final ThreadLocal<MatchList> matches = ThreadLocal.withInitial(MatchList::new);
+	
+	/**
+	 * Evaluates documents on the common fork-join pool
+	 */
+	public MatchProcessor(XPathEngine engine, int parallelism) {
+		this(engine, ForkJoinPool.commonPool(), parallelism);
+	}
+	
+	/**
+	 * @param engine
+	 * 		engine with XPaths set
+	 * @param executor
+	 * 		runs the parsing and evaluation of documents
+	 * @param parallelism
+	 * 		maximum number of documents requested from upstream and not yet
+	 * 		delivered downstream
+	 */
+	public MatchProcessor(XPathEngine engine, Executor executor, int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be positive");
+		}
+		this.engine = engine;
+		this.executor = executor;
+		this.parallelism = parallelism;
+	}
+	
+	@Override
+	public void subscribe(Flow.Subscriber<? super MatchResult> subscriber) {
+		if (!downstream.compareAndSet(null, subscriber)) {
+			subscriber.onSubscribe(new Flow.Subscription() {
+				public void request(long n) {}
+				public void cancel() {}
+			});
+			subscriber.onError(new IllegalStateException("only one subscriber is supported"));
+			return;
+		}
+		subscriber.onSubscribe(new Flow.Subscription() {
+			public void request(long n) {
+				if (n <= 0) {
+					error.compareAndSet(null, 
+							new IllegalArgumentException("non-positive request: " + n));
+				} else {
+					addDemand(n);
+				}
+				drain();
+			}
+			
+			public void cancel() {
+				cancelled = true;
+				cancelUpstream();
+				results.clear();
+			}
+		});
+		drain();
+	}
+	
+	@Override
+	public void onSubscribe(Flow.Subscription subscription) {
+		if (!upstream.compareAndSet(null, subscription)) {
+			subscription.cancel();
+			return;
+		}
+		drain();
+	}
+	
+	@Override
+	public void onNext(Doc doc) {
+		pending.decrementAndGet();
+		inProcess.incrementAndGet();
+		if (cancelled) {
+			return;
+		}
+		try {
+			executor.execute(() -> {
+				try {
+					MatchList list = matches.get();
+					engine.evaluate(Doc.getDOM(doc.getDocumentString(), doc.isXML()), list);
+					results.add(new MatchResult(doc.getId(), list.toArray()));
+				} catch (Throwable e) {
+					error.compareAndSet(null, e);
+				} finally {
+					drain();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// the document is never evaluated, so the stream cannot complete
+			error.compareAndSet(null, e);
+			drain();
+		}
+	}
+	
+	@Override
+	public void onError(Throwable throwable) {
+		error.compareAndSet(null, throwable);
+		upstreamDone = true;
+		drain();
+	}
+	
+	@Override
+	public void onComplete() {
+		upstreamDone = true;
+		drain();
+	}
+	
+	private void addDemand(long n) {
+		long current;
+		long next;
+		do {
+			current = demand.get();
+			next = current + n < 0 ? Long.MAX_VALUE : current + n;
+		} while (!demand.compareAndSet(current, next));
+	}
+	
+	private void cancelUpstream() {
+		Flow.Subscription s = upstream.get();
+		if (s != null) {
+			s.cancel();
+		}
+	}
+	
+	/**
+	 * Delivers results for which there is demand, signals termination once
+	 * all documents are delivered, and requests more documents from
+	 * upstream. Only one thread drains at a time, others leave their work
+	 * to it.
+	 */
+	private void drain() {
+		if (wip.getAndIncrement() != 0) {
+			return;
+		}
+		int missed = 1;
+		do {
+			Flow.Subscriber<? super MatchResult> d = downstream.get();
+			if (d != null && !cancelled && !terminated) {
+				MatchResult r;
+				while (demand.get() > 0 && (r = results.poll()) != null) {
+					demand.decrementAndGet();
+					inProcess.decrementAndGet();
+					d.onNext(r);
+				}
+				
+				Throwable e = error.get();
+				if (e != null) {
+					terminated = true;
+					cancelUpstream();
+					d.onError(e);
+				} else if (upstreamDone && inProcess.get() == 0) {
+					terminated = true;
+					d.onComplete();
+				}
+				
+				Flow.Subscription s = upstream.get();
+				if (!terminated && !upstreamDone && s != null) {
+					long outstanding = pending.get() + inProcess.get();
+					long want = Math.min(parallelism, demand.get()) - outstanding;
+					if (want > 0) {
+						pending.addAndGet(want);
+						s.request(want);
+					}
+				}
+			}
+			missed = wip.addAndGet(-missed);
+		} while (missed != 0);
+	}
+}
@@ -0,0 +1,263 @@
+package pipeline;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.w3c.dom.Document;
+
+import models.Doc;
+import models.MatchResult;
+import xpathengine.MatchList;
+import xpathengine.XPathEngine;
+
+/**
+ * Staged pipeline taking documents through parsing, hashing and
+ * de-duplication, evaluation and a result sink. Each stage has its own
+ * worker threads and a bounded input queue. When a queue is full, the
+ * stage before it blocks, so a slow stage slows down submission instead
+ * of letting queues grow without bound.
+ * 
+ * Stages are sized with the setters before the pipeline is started.
+ */
+public class Pipeline {
+	
+	public interface ResultSink {
+		
+		/**
+		 * Receives the result of a document, called by the sink stage threads
+		 */
+		void accept(MatchResult result) throws Exception;
+	}
+	
+	/**
+	 * Document passing through the stages
+	 */
+	private static class Item {
+		final Doc doc;
+		Document dom;
+		int[] matches;
+		
+		Item(Doc doc) {
+			this.doc = doc;
+		}
+	}
+	
+	public static final String PARSE = "parse";
+	public static final String HASH = "hash";
+	public static final String EVALUATE = "evaluate";
+	public static final String SINK = "sink";
+
+	private final XPathEngine engine;
+	private final ResultSink sink;
+	private int parseThreads = 1;
+	private int hashThreads = 1;
+	private int evaluateThreads = 1;
+	private int sinkThreads = 1;
+	private int queueCapacity = 64;
+	private int dedupCapacity = 100000;
+	
+	private List<Stage<Item, Item>> stages = null;
+	private BlockingQueue<Item> parseQueue;
+	private Map<String, Boolean> seenHashes;
+	private final Object idleLock = new Object();
+	private long inFlight = 0;
+	private volatile boolean accepting = false;
+	// matches of the document being evaluated by each evaluate thread
+	private final ThreadLocal<MatchList> matches = ThreadLocal.withInitial(MatchList::new);
+	
+	/**
+	 * @param engine
+	 * 		engine with XPaths set, used by all evaluate threads
+	 * @param sink
+	 * 		receives the result of each document that is not a duplicate
+	 */
+	public Pipeline(XPathEngine engine, ResultSink sink) {
+		this.engine = engine;
+		this.sink = sink;
+	}
+	
+	public void setParseThreads(int threads) {
+		this.parseThreads = threads;
+	}
+	
+	public void setHashThreads(int threads) {
+		this.hashThreads = threads;
+	}
+	
+	public void setEvaluateThreads(int threads) {
+		this.evaluateThreads = threads;
+	}
+	
+	public void setSinkThreads(int threads) {
+		this.sinkThreads = threads;
+	}
+	
+	/**
+	 * @param capacity
+	 * 		capacity of the queue in front of each stage
+	 */
+	public void setQueueCapacity(int capacity) {
+		this.queueCapacity = capacity;
+	}
+	
+	/**
+	 * @param capacity
+	 * 		number of most recent document hashes remembered for dropping
+	 * 		duplicate documents
+	 */
+	public void setDedupCapacity(int capacity) {
+		this.dedupCapacity = capacity;
+	}
+	
+	public synchronized void start() {
+		if (stages != null) {
+			throw new IllegalStateException("pipeline already started");
+		}
+		final int capacity = dedupCapacity;
+		seenHashes = Collections.synchronizedMap(new LinkedHashMap<String, Boolean>() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+				return size() > capacity;
+			}
+		});
+		parseQueue = new ArrayBlockingQueue<>(queueCapacity);
+		BlockingQueue<Item> hashQueue = new ArrayBlockingQueue<>(queueCapacity);
+		BlockingQueue<Item> evaluateQueue = new ArrayBlockingQueue<>(queueCapacity);
+		BlockingQueue<Item> sinkQueue = new ArrayBlockingQueue<>(queueCapacity);
+		Stage.ExitListener<Item> exit = item -> exited();
+		
+		List<Stage<Item, Item>> stages = new ArrayList<>();
+		stages.add(new Stage<>(PARSE, parseThreads, parseQueue, hashQueue, item -> {
+			item.dom = Doc.getDOM(item.doc.getDocumentString(), item.doc.isXML());
+			return item;
+		}, exit));
+		stages.add(new Stage<>(HASH, hashThreads, hashQueue, evaluateQueue, item -> {
+			String hash = Doc.getDocHash(item.dom);
+			// documents with identical content are only evaluated once
+			if (hash != null && seenHashes.put(hash, Boolean.TRUE) != null) {
+				return null;
+			}
+			return item;
+		}, exit));
+		stages.add(new Stage<>(EVALUATE, evaluateThreads, evaluateQueue, sinkQueue, item -> {
+			MatchList list = matches.get();
+			engine.evaluate(item.dom, list);
+			item.matches = list.toArray();
+			// the DOM is not needed by the sink
+			item.dom = null;
+			return item;
+		}, exit));
+		stages.add(new Stage<Item, Item>(SINK, sinkThreads, sinkQueue, null, item -> {
+			sink.accept(new MatchResult(item.doc.getId(), item.matches));
+			return null;
+		}, exit));
+		this.stages = stages;
+		accepting = true;
+		for (Stage<Item, Item> stage : stages) {
+			stage.start();
+		}
+	}
+	
+	/**
+	 * Submits a document, blocking while the parse stage's queue is full
+	 */
+	public void submit(Doc doc) throws InterruptedException {
+		checkAccepting();
+		enter();
+		try {
+			parseQueue.put(new Item(doc));
+		} catch (InterruptedException e) {
+			exited();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Submits a document, waiting at most the given time for space in the
+	 * parse stage's queue
+	 * @return
+	 * 		false if the document was not accepted
+	 */
+	public boolean offer(Doc doc, long timeout, TimeUnit unit) 
+			throws InterruptedException {
+		checkAccepting();
+		enter();
+		boolean accepted = false;
+		try {
+			accepted = parseQueue.offer(new Item(doc), timeout, unit);
+			return accepted;
+		} finally {
+			if (!accepted) {
+				exited();
+			}
+		}
+	}
+	
+	/**
+	 * Waits until all submitted documents have left the pipeline
+	 */
+	public void awaitIdle() throws InterruptedException {
+		synchronized (idleLock) {
+			while (inFlight > 0) {
+				idleLock.wait();
+			}
+		}
+	}
+	
+	/**
+	 * Stops accepting documents, waits for submitted documents to finish
+	 * and stops all stages
+	 */
+	public void shutdown() throws InterruptedException {
+		accepting = false;
+		awaitIdle();
+		if (stages != null) {
+			for (Stage<Item, Item> stage : stages) {
+				stage.stop();
+			}
+		}
+	}
+	
+	/**
+	 * @return
+	 * 		statistics of the parse, hash, evaluate and sink stages, in order
+	 */
+	public List<StageStatistics> getStatistics() {
+		List<StageStatistics> statistics = new ArrayList<>();
+		if (stages != null) {
+			for (Stage<Item, Item> stage : stages) {
+				statistics.add(stage.getStatistics());
+			}
+		}
+		return statistics;
+	}
+	
+	private void checkAccepting() {
+		if (!accepting) {
+			throw new IllegalStateException("pipeline is not running");
+		}
+	}
+	
+	private void enter() {
+		synchronized (idleLock) {
+			inFlight++;
+		}
+	}
+	
+	private void exited() {
+		synchronized (idleLock) {
+			inFlight--;
+			if (inFlight == 0) {
+				idleLock.notifyAll();
+			}
+		}
+	}
+}
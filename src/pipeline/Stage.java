@@ -0,0 +1,122 @@
+package pipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Pool of worker threads taking items from a bounded input queue,
+ * processing them and putting the results into the input queue of the next
+ * stage. Workers block while the next queue is full, so a slow stage
+ * holds back the stages before it.
+ */
+class Stage<I, O> {
+	
+	interface Processor<I, O> {
+		
+		/**
+		 * @return
+		 * 		item for the next stage, null to drop the item
+		 */
+		O process(I item) throws Exception;
+	}
+	
+	/**
+	 * Notified when an item leaves the pipeline at this stage, because it
+	 * was dropped, failed, or this is the last stage
+	 */
+	interface ExitListener<I> {
+		void exited(I item);
+	}
+	
+	private final StageStatistics statistics;
+	private final BlockingQueue<I> input;
+	private final BlockingQueue<O> output;
+	private final Processor<I, O> processor;
+	private final ExitListener<I> exitListener;
+	private final List<Thread> workers = new ArrayList<>();
+	
+	/**
+	 * @param output
+	 * 		input queue of the next stage, null for the last stage
+	 * @param processor
+	 * 		applied to each item. The last stage passes nothing on, and
+	 * 		returns null.
+	 */
+	Stage(String name, int threads, BlockingQueue<I> input, BlockingQueue<O> output, 
+			Processor<I, O> processor, ExitListener<I> exitListener) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("stage needs at least one thread: " + name);
+		}
+		this.statistics = new StageStatistics(name, input);
+		this.input = input;
+		this.output = output;
+		this.processor = processor;
+		this.exitListener = exitListener;
+		for (int i = 0; i < threads; i++) {
+			Thread t = new Thread(this::work, "pipeline-" + name + "-" + i);
+			t.setDaemon(true);
+			workers.add(t);
+		}
+	}
+	
+	StageStatistics getStatistics() {
+		return statistics;
+	}
+	
+	void start() {
+		for (Thread t : workers) {
+			t.start();
+		}
+	}
+	
+	void stop() throws InterruptedException {
+		for (Thread t : workers) {
+			t.interrupt();
+		}
+		for (Thread t : workers) {
+			t.join();
+		}
+	}
+	
+	private void work() {
+		try {
+			while (true) {
+				I item = input.take();
+				boolean passedOn = false;
+				try {
+					long start = System.nanoTime();
+					O result;
+					try {
+						result = processor.process(item);
+					} catch (InterruptedException e) {
+						throw e;
+					} catch (Throwable e) {
+						// errors such as a stack overflow in the parser fail
+						// the item, without ending the worker
+						statistics.recordFailed();
+						continue;
+					}
+					statistics.recordProcessed(System.nanoTime() - start);
+					if (result == null) {
+						if (output != null) {
+							statistics.recordDropped();
+						}
+					} else if (output != null) {
+						long blocked = System.nanoTime();
+						output.put(result);
+						statistics.recordBlocked(System.nanoTime() - blocked);
+						passedOn = true;
+					}
+				} finally {
+					// every item taken leaves the pipeline unless passed on
+					if (!passedOn) {
+						exitListener.exited(item);
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			// stage is stopped
+		}
+	}
+}
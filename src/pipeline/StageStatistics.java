@@ -0,0 +1,119 @@
+package pipeline;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Throughput and latency counters of a pipeline stage. Counters are
+ * updated by all workers of the stage without locking.
+ */
+public class StageStatistics {
+	
+	private final String name;
+	private final BlockingQueue<?> input;
+	private final LongAdder processed = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private final LongAdder busyNanos = new LongAdder();
+	private final AtomicLong maxNanos = new AtomicLong();
+	private final LongAdder blockedNanos = new LongAdder();
+	private final long startNanos = System.nanoTime();
+	
+	StageStatistics(String name, BlockingQueue<?> input) {
+		this.name = name;
+		this.input = input;
+	}
+	
+	void recordProcessed(long nanos) {
+		processed.increment();
+		busyNanos.add(nanos);
+		maxNanos.accumulateAndGet(nanos, Math::max);
+	}
+	
+	void recordDropped() {
+		dropped.increment();
+	}
+	
+	void recordFailed() {
+		failed.increment();
+	}
+	
+	/**
+	 * Records time spent waiting for space in the next stage's queue
+	 */
+	void recordBlocked(long nanos) {
+		blockedNanos.add(nanos);
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * @return
+	 * 		items processed by the stage, including dropped items
+	 */
+	public long getProcessed() {
+		return processed.sum();
+	}
+	
+	/**
+	 * @return
+	 * 		items not passed on by the stage, such as duplicate documents
+	 */
+	public long getDropped() {
+		return dropped.sum();
+	}
+	
+	/**
+	 * @return
+	 * 		items whose processing threw an exception
+	 */
+	public long getFailed() {
+		return failed.sum();
+	}
+	
+	/**
+	 * @return
+	 * 		items waiting in the input queue of the stage
+	 */
+	public int getQueueDepth() {
+		return input.size();
+	}
+	
+	public double getMeanLatencyMillis() {
+		long n = processed.sum();
+		return n == 0 ? 0 : busyNanos.sum() / 1e6 / n;
+	}
+	
+	public double getMaxLatencyMillis() {
+		return maxNanos.get() / 1e6;
+	}
+	
+	/**
+	 * @return
+	 * 		time workers spent blocked on the next stage, i.e. backpressure
+	 */
+	public double getBlockedMillis() {
+		return blockedNanos.sum() / 1e6;
+	}
+	
+	/**
+	 * @return
+	 * 		items processed per second since the stage was created
+	 */
+	public double getThroughput() {
+		double seconds = (System.nanoTime() - startNanos) / 1e9;
+		return seconds == 0 ? 0 : processed.sum() / seconds;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("%s: processed=%d dropped=%d failed=%d queued=%d "
+				+ "throughput=%.1f/s latency mean=%.3fms max=%.3fms blocked=%.1fms",
+				name, getProcessed(), getDropped(), getFailed(), getQueueDepth(),
+				getThroughput(), getMeanLatencyMillis(), getMaxLatencyMillis(), 
+				getBlockedMillis());
+	}
+}
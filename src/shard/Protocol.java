@@ -0,0 +1,112 @@
+package shard;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Messages exchanged between a ShardedXPathEngine and its workers. Every
+ * request starts with an operation byte, and is answered before the next
+ * request is read. Strings are sent as a length and UTF-8 bytes, and sets
+ * of XPaths as their number and a bitset.
+ * 
+ * SET_XPATHS: count, then each XPath. Answered by OK and the set of valid
+ * XPaths, which the worker is the only one to parse.
+ * EVALUATE: length, then the bytes of a PackedDocument. Answered by OK and
+ * the set of matching XPaths.
+ * Any request may be answered by ERROR and a message instead, once it has
+ * been read completely. A worker closes the connection on a request it
+ * cannot read.
+ */
+final class Protocol {
+	
+	static final byte SET_XPATHS = 1;
+	static final byte EVALUATE = 2;
+	static final byte CLOSE = 3;
+	
+	static final byte OK = 0;
+	static final byte ERROR = 1;
+	
+	private Protocol() {}
+	
+	/**
+	 * Error answered by a worker. The answer has been read completely, so
+	 * the connection can still be used.
+	 */
+	static class WorkerError extends IOException {
+		private static final long serialVersionUID = 1L;
+		
+		WorkerError(String message) {
+			super(message);
+		}
+	}
+	
+	static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	
+	static String readString(DataInputStream in) throws IOException {
+		return new String(readBytes(in), StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Reads a length, then as many bytes
+	 */
+	static byte[] readBytes(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			throw new IOException("negative length: " + length);
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return bytes;
+	}
+	
+	static void writeMatches(DataOutputStream out, boolean[] matches) throws IOException {
+		byte[] bits = new byte[(matches.length + 7) / 8];
+		for (int i = 0; i < matches.length; i++) {
+			if (matches[i]) {
+				bits[i >> 3] |= 1 << (i & 7);
+			}
+		}
+		out.writeInt(matches.length);
+		out.write(bits);
+	}
+	
+	/**
+	 * @param count
+	 * 		number of XPaths sent to the worker
+	 * @throws IOException
+	 * 		if the set is not of the given number of XPaths
+	 */
+	static boolean[] readMatches(DataInputStream in, int count) throws IOException {
+		int length = in.readInt();
+		if (length != count) {
+			throw new IOException("expected " + count + " XPaths, got " + length);
+		}
+		boolean[] matches = new boolean[count];
+		byte[] bits = new byte[(matches.length + 7) / 8];
+		in.readFully(bits);
+		for (int i = 0; i < matches.length; i++) {
+			matches[i] = (bits[i >> 3] & (1 << (i & 7))) != 0;
+		}
+		return matches;
+	}
+	
+	/**
+	 * Reads the status of an answer
+	 * @throws WorkerError
+	 * 		if the worker answered with an error
+	 */
+	static void readStatus(DataInputStream in) throws IOException {
+		byte status = in.readByte();
+		if (status == ERROR) {
+			throw new WorkerError("worker error: " + readString(in));
+		} else if (status != OK) {
+			throw new IOException("unexpected status: " + status);
+		}
+	}
+}
@@ -0,0 +1,172 @@
+package shard;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import models.PackedDocument;
+import xpathengine.XPathEngineImpl;
+
+/**
+ * Evaluates a shard of the XPaths of a ShardedXPathEngine. The worker
+ * listens on a loopback port, and each connection gets an engine of its
+ * own, holding the XPaths sent on that connection. Documents arrive as
+ * PackedDocument bytes, so workers do not parse HTML or XML.
+ * 
+ * A worker runs either on a thread of the coordinating process, or as a
+ * process of its own through main().
+ */
+public class ShardWorker implements AutoCloseable {
+	
+	/**
+	 * Line printed to standard output by main() before the port number
+	 */
+	static final String PORT_LINE = "listening on port ";
+	
+	private final ServerSocket server;
+	private volatile boolean closed = false;
+	
+	/**
+	 * Binds to an ephemeral loopback port
+	 */
+	public ShardWorker() throws IOException {
+		this(0);
+	}
+	
+	/**
+	 * @param port
+	 * 		loopback port to listen on, 0 for an ephemeral port
+	 */
+	public ShardWorker(int port) throws IOException {
+		this.server = new ServerSocket();
+		server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+	}
+	
+	public InetSocketAddress getAddress() {
+		return (InetSocketAddress) server.getLocalSocketAddress();
+	}
+	
+	/**
+	 * Accepts connections on a daemon thread
+	 * @return
+	 * 		this worker
+	 */
+	public ShardWorker start() {
+		Thread t = new Thread(this::run, "shard-worker-" + getAddress().getPort());
+		t.setDaemon(true);
+		t.start();
+		return this;
+	}
+	
+	/**
+	 * Accepts connections until the worker is closed, serving each on a
+	 * thread of its own
+	 */
+	public void run() {
+		while (!closed) {
+			try {
+				Socket socket = server.accept();
+				Thread t = new Thread(() -> serve(socket), 
+						"shard-connection-" + socket.getPort());
+				t.setDaemon(true);
+				t.start();
+			} catch (IOException e) {
+				// closed, or a connection failed before it was accepted
+			}
+		}
+	}
+	
+	private void serve(Socket socket) {
+		XPathEngineImpl engine = new XPathEngineImpl();
+		try (Socket s = socket) {
+			s.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(
+					new BufferedInputStream(s.getInputStream()));
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(s.getOutputStream()));
+			while (true) {
+				byte op;
+				try {
+					op = in.readByte();
+				} catch (EOFException e) {
+					return;
+				}
+				if (op != Protocol.SET_XPATHS && op != Protocol.EVALUATE) {
+					// CLOSE, or an unknown request whose body cannot be skipped
+					return;
+				}
+				try {
+					switch (op) {
+					case Protocol.SET_XPATHS:
+						int count = in.readInt();
+						if (count < 0) {
+							throw new IOException("negative count: " + count);
+						}
+						String[] xpaths = new String[count];
+						for (int i = 0; i < xpaths.length; i++) {
+							xpaths[i] = Protocol.readString(in);
+						}
+						engine.setXPaths(xpaths);
+						boolean[] valid = new boolean[count];
+						for (int i = 0; i < count; i++) {
+							valid[i] = engine.isValid(i);
+						}
+						out.writeByte(Protocol.OK);
+						Protocol.writeMatches(out, valid);
+						break;
+					case Protocol.EVALUATE:
+						byte[] bytes = Protocol.readBytes(in);
+						boolean[] matches = engine.evaluate(
+								new PackedDocument(ByteBuffer.wrap(bytes)));
+						out.writeByte(Protocol.OK);
+						Protocol.writeMatches(out, matches);
+						break;
+					}
+				} catch (RuntimeException e) {
+					out.writeByte(Protocol.ERROR);
+					Protocol.writeString(out, String.valueOf(e));
+				}
+				out.flush();
+			}
+		} catch (IOException e) {
+			// the coordinator sees the connection fail
+		}
+	}
+	
+	/**
+	 * Stops accepting connections. Open connections are served until the
+	 * coordinator closes them.
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		server.close();
+	}
+	
+	/**
+	 * Runs a worker process, printing its port to standard output. The
+	 * process exits when its standard input is closed, so that workers
+	 * do not outlive a coordinator that launched them.
+	 * 
+	 * Usage: ShardWorker [port]
+	 */
+	public static void main(String[] args) throws IOException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+		ShardWorker worker = new ShardWorker(port).start();
+		System.out.println(PORT_LINE + worker.getAddress().getPort());
+		System.out.flush();
+		while (System.in.read() != -1) {
+			// wait for end of input
+		}
+		worker.close();
+		System.exit(0);
+	}
+}
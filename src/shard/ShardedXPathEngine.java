@@ -0,0 +1,368 @@
+package shard;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+import models.PackedDocument;
+import xpathengine.XPathEngine;
+import xpathengine.XPathQuery;
+
+/**
+ * XPathEngine partitioning its XPaths across ShardWorkers, so that the
+ * subscription set does not have to fit in a single JVM. Each document is
+ * packed once, sent to the workers holding XPaths that can match it, and
+ * their results are merged. All communication is over loopback sockets.
+ * 
+ * XPaths are partitioned by the name of their root element, so that a
+ * document is only sent to the workers holding XPaths rooted at one of
+ * its root elements, or by the hash of the XPath, which spreads them
+ * evenly whatever their root element. The coordinator only reads the
+ * name of the first step of each XPath, and does not keep the XPaths:
+ * each is parsed once, by the worker it is assigned to, which answers
+ * which of them are valid.
+ * 
+ * Evaluations are serialized, as each worker connection carries one
+ * request at a time. Workers evaluate a document concurrently. The answers
+ * of all workers a request was sent to are read even if some of them fail,
+ * and a connection that fails is closed, so that an answer is never read
+ * as the answer to a later request.
+ */
+public class ShardedXPathEngine implements XPathEngine, AutoCloseable {
+	
+	public enum Partitioning {
+		ROOT_NAME, HASH
+	}
+	
+	/**
+	 * Connection to a worker, and the XPaths assigned to it
+	 */
+	private static class Shard {
+		final Socket socket;
+		final DataInputStream in;
+		final DataOutputStream out;
+		// indices of the XPaths of the shard, in the order sent
+		int[] indices = new int[0];
+		// root names of the valid XPaths of the shard
+		Set<String> rootNames = new HashSet<>();
+		
+		Shard(InetSocketAddress address) throws IOException {
+			socket = new Socket(address.getAddress(), address.getPort());
+			socket.setTcpNoDelay(true);
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		}
+		
+		/**
+		 * Closes a connection whose state is unknown after a failure, so
+		 * that later requests fail rather than read a stale answer
+		 */
+		void disconnect() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// already closed
+			}
+		}
+	}
+	
+	/**
+	 * Reads the rest of an answer, after its status
+	 */
+	private interface AnswerReader {
+		void read(Shard shard) throws IOException;
+	}
+	
+	private final Shard[] shards;
+	private final Partitioning partitioning;
+	private final List<Process> processes = new ArrayList<>();
+	// validity of each XPath set, as answered by the workers
+	private boolean[] valid;
+	
+	/**
+	 * @param workers
+	 * 		addresses of running workers, one shard per worker
+	 * @param partitioning
+	 * 		how XPaths are assigned to shards
+	 */
+	public ShardedXPathEngine(List<InetSocketAddress> workers, 
+			Partitioning partitioning) throws IOException {
+		if (workers.isEmpty()) {
+			throw new IllegalArgumentException("no workers");
+		}
+		this.partitioning = partitioning;
+		this.shards = new Shard[workers.size()];
+		try {
+			for (int i = 0; i < shards.length; i++) {
+				shards[i] = new Shard(workers.get(i));
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Launches worker processes running on the classpath of this process,
+	 * and connects to them. The processes are stopped when the engine is
+	 * closed, or when this process exits.
+	 * @param workers
+	 * 		number of worker processes
+	 */
+	public static ShardedXPathEngine launch(int workers, 
+			Partitioning partitioning) throws IOException {
+		String java = System.getProperty("java.home") + File.separator + "bin" 
+				+ File.separator + "java";
+		List<Process> processes = new ArrayList<>();
+		List<InetSocketAddress> addresses = new ArrayList<>();
+		try {
+			for (int i = 0; i < workers; i++) {
+				ProcessBuilder builder = new ProcessBuilder(java, "-cp", 
+						System.getProperty("java.class.path"), ShardWorker.class.getName());
+				builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+				Process process = builder.start();
+				processes.add(process);
+				addresses.add(new InetSocketAddress("127.0.0.1", readPort(process)));
+			}
+			ShardedXPathEngine engine = new ShardedXPathEngine(addresses, partitioning);
+			engine.processes.addAll(processes);
+			return engine;
+		} catch (IOException e) {
+			for (Process p : processes) {
+				p.destroyForcibly();
+			}
+			throw e;
+		}
+	}
+	
+	private static int readPort(Process process) throws IOException {
+		BufferedReader reader = new BufferedReader(
+				new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+		String line = reader.readLine();
+		if (line == null || !line.startsWith(ShardWorker.PORT_LINE)) {
+			throw new IOException("worker did not start: " + line);
+		}
+		return Integer.parseInt(line.substring(ShardWorker.PORT_LINE.length()).trim());
+	}
+	
+	/**
+	 * @throws UncheckedIOException
+	 * 		if a worker cannot be reached or fails to set its XPaths, whose
+	 * 		XPaths are then invalid
+	 */
+	public synchronized void setXPaths(String[] expressions) {
+		boolean[] valid = expressions != null ? new boolean[expressions.length] : null;
+		this.valid = valid;
+		String[] rootNames = new String[expressions != null ? expressions.length : 0];
+		List<List<Integer>> assigned = new ArrayList<>();
+		for (int s = 0; s < shards.length; s++) {
+			assigned.add(new ArrayList<Integer>());
+			shards[s].rootNames = new HashSet<>();
+		}
+		for (int i = 0; i < rootNames.length; i++) {
+			// XPaths without a first step cannot be valid
+			String rootName = XPathQuery.getRootName(expressions[i]);
+			if (rootName == null) {
+				continue;
+			}
+			rootNames[i] = rootName;
+			int key = partitioning == Partitioning.ROOT_NAME 
+					? rootName.hashCode() : expressions[i].hashCode();
+			int s = Math.floorMod(key, shards.length);
+			assigned.get(s).add(i);
+		}
+		boolean[] sent = new boolean[shards.length];
+		IOException failure = null;
+		for (int s = 0; s < shards.length; s++) {
+			List<Integer> indices = assigned.get(s);
+			Shard shard = shards[s];
+			shard.indices = new int[indices.size()];
+			try {
+				shard.out.writeByte(Protocol.SET_XPATHS);
+				shard.out.writeInt(indices.size());
+				for (int j = 0; j < indices.size(); j++) {
+					shard.indices[j] = indices.get(j);
+					Protocol.writeString(shard.out, expressions[indices.get(j)]);
+				}
+				shard.out.flush();
+				sent[s] = true;
+			} catch (IOException e) {
+				shard.disconnect();
+				failure = addFailure(failure, e);
+			}
+		}
+		readAnswers(sent, failure, shard -> {
+			boolean[] answered = Protocol.readMatches(shard.in, shard.indices.length);
+			for (int j = 0; j < answered.length; j++) {
+				if (answered[j]) {
+					valid[shard.indices[j]] = true;
+					shard.rootNames.add(rootNames[shard.indices[j]]);
+				}
+			}
+		});
+	}
+	
+	public synchronized boolean isValid(int i) {
+		return valid != null && i >= 0 && i < valid.length && valid[i];
+	}
+	
+	/**
+	 * @throws UncheckedIOException
+	 * 		if a worker cannot be reached or fails to evaluate the document
+	 */
+	public synchronized boolean[] evaluate(Document document) {
+		if (valid == null) {
+			return new boolean[0];
+		}
+		boolean[] result = new boolean[valid.length];
+		Set<String> rootNames = new HashSet<>();
+		for (Node n = document.getFirstChild(); n != null; n = n.getNextSibling()) {
+			if (n.getNodeType() == Node.ELEMENT_NODE) {
+				rootNames.add(n.getNodeName());
+			}
+		}
+		boolean[] sent = new boolean[shards.length];
+		IOException failure = null;
+		byte[] bytes = null;
+		// send to all shards first, so that workers evaluate concurrently
+		for (int s = 0; s < shards.length; s++) {
+			Shard shard = shards[s];
+			if (shard.indices.length == 0 || !intersects(shard.rootNames, rootNames)) {
+				continue;
+			}
+			if (bytes == null) {
+				bytes = PackedDocument.pack(document).getBytes();
+			}
+			try {
+				shard.out.writeByte(Protocol.EVALUATE);
+				shard.out.writeInt(bytes.length);
+				shard.out.write(bytes);
+				shard.out.flush();
+				sent[s] = true;
+			} catch (IOException e) {
+				shard.disconnect();
+				failure = addFailure(failure, e);
+			}
+		}
+		readAnswers(sent, failure, shard -> {
+			boolean[] matches = Protocol.readMatches(shard.in, shard.indices.length);
+			for (int j = 0; j < matches.length; j++) {
+				result[shard.indices[j]] = matches[j];
+			}
+		});
+		return result;
+	}
+	
+	/**
+	 * Reads the answers of all shards a request was sent to, even if some
+	 * of them fail
+	 * @param failure
+	 * 		failure sending the request, null if it was sent to all shards
+	 * @param reader
+	 * 		reads the rest of a successful answer
+	 * @throws UncheckedIOException
+	 * 		with the first failure, once all answers have been read
+	 */
+	private void readAnswers(boolean[] sent, IOException failure, AnswerReader reader) {
+		for (int s = 0; s < shards.length; s++) {
+			if (!sent[s]) {
+				continue;
+			}
+			try {
+				Protocol.readStatus(shards[s].in);
+				reader.read(shards[s]);
+			} catch (IOException e) {
+				if (!(e instanceof Protocol.WorkerError)) {
+					shards[s].disconnect();
+				}
+				failure = addFailure(failure, e);
+			}
+		}
+		if (failure != null) {
+			throw new UncheckedIOException(failure);
+		}
+	}
+	
+	private static IOException addFailure(IOException failure, IOException e) {
+		if (failure == null) {
+			return e;
+		}
+		failure.addSuppressed(e);
+		return failure;
+	}
+	
+	private static boolean intersects(Set<String> a, Set<String> b) {
+		for (String s : a) {
+			if (b.contains(s)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * @return
+	 * 		number of valid XPaths assigned to each shard
+	 */
+	public synchronized int[] getShardSizes() {
+		int[] sizes = new int[shards.length];
+		for (int s = 0; s < shards.length; s++) {
+			for (int i : shards[s].indices) {
+				if (valid[i]) {
+					sizes[s]++;
+				}
+			}
+		}
+		return sizes;
+	}
+	
+	/**
+	 * Closes the worker connections, and stops launched worker processes
+	 */
+	@Override
+	public synchronized void close() {
+		for (Shard shard : shards) {
+			if (shard == null) {
+				continue;
+			}
+			try {
+				shard.out.writeByte(Protocol.CLOSE);
+				shard.out.flush();
+				shard.socket.close();
+			} catch (IOException e) {
+				// worker already gone
+			}
+		}
+		for (Process p : processes) {
+			try {
+				p.getOutputStream().close();
+				if (!p.waitFor(5, TimeUnit.SECONDS)) {
+					p.destroyForcibly();
+				}
+			} catch (IOException e) {
+				p.destroyForcibly();
+			} catch (InterruptedException e) {
+				p.destroyForcibly();
+				Thread.currentThread().interrupt();
+			}
+		}
+		processes.clear();
+	}
+}
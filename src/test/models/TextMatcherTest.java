@@ -0,0 +1,75 @@
+package test.models;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import models.TextMatcher;
+import junit.framework.TestCase;
+
+public class TextMatcherTest extends TestCase {
+	
+	private static final String ALPHABET = "abcab\u00e9\u4e2d ";
+	
+	private static String random(Random r, int length) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < length; i++) {
+			sb.append(ALPHABET.charAt(r.nextInt(ALPHABET.length())));
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * Places the text at an unaligned offset in a direct buffer
+	 */
+	private static ByteBuffer toBuffer(String text, ByteOrder order) {
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer b = ByteBuffer.allocateDirect(bytes.length + 3).order(order);
+		for (int i = 0; i < bytes.length; i++) {
+			b.put(i + 3, bytes[i]);
+		}
+		return b;
+	}
+	
+	private static void check(String text, String pattern) {
+		TextMatcher matcher = new TextMatcher(pattern);
+		boolean contains = text.contains(pattern);
+		int length = text.getBytes(StandardCharsets.UTF_8).length;
+		assertEquals(contains, matcher.containedIn(text));
+		assertEquals(text.equals(pattern), matcher.equalTo(text));
+		for (ByteOrder order : new ByteOrder[] { ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN }) {
+			ByteBuffer b = toBuffer(text, order);
+			assertEquals(text + " / " + pattern, contains, matcher.containedIn(b, 3, length));
+			assertEquals(text.equals(pattern), matcher.equalTo(b, 3, length));
+		}
+	}
+	
+	public void testSameAsString() {
+		Random r = new Random(42);
+		for (int i = 0; i < 3000; i++) {
+			String text = random(r, r.nextInt(200));
+			String pattern;
+			if (text.length() > 0 && r.nextBoolean()) {
+				int start = r.nextInt(text.length());
+				pattern = text.substring(start, 
+						Math.min(text.length(), start + 1 + r.nextInt(40)));
+			} else {
+				pattern = random(r, 1 + r.nextInt(30));
+			}
+			check(text, pattern);
+			check(pattern, pattern);
+		}
+	}
+	
+	public void testEdgeCases() {
+		check("", "");
+		check("abc", "");
+		check("", "a");
+		check("ab", "abc");
+		check("xxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxy", "xxxxxxxxxxxxxxxxy");
+		check("xxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxx", "xxxxxxxxxxxxxxxxy");
+		assertFalse(new TextMatcher("a").containedIn((String) null));
+		assertFalse(new TextMatcher("a").equalTo((String) null));
+	}
+}
@@ -0,0 +1,167 @@
+package test.pipeline;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import models.Doc;
+import models.MatchResult;
+import org.w3c.dom.Document;
+import pipeline.MatchProcessor;
+import xpathengine.MatchCollector;
+import xpathengine.XPathEngineImpl;
+import junit.framework.TestCase;
+
+public class MatchProcessorTest extends TestCase {
+	
+	/**
+	 * Subscriber requesting a fixed number of results up front
+	 */
+	private static class Collector implements Flow.Subscriber<MatchResult> {
+		final List<MatchResult> results = new CopyOnWriteArrayList<>();
+		final CountDownLatch done = new CountDownLatch(1);
+		final long initialRequest;
+		volatile Flow.Subscription subscription;
+		volatile Throwable error;
+		
+		Collector(long initialRequest) {
+			this.initialRequest = initialRequest;
+		}
+		
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+			subscription.request(initialRequest);
+		}
+		
+		public void onNext(MatchResult item) {
+			results.add(item);
+		}
+		
+		public void onError(Throwable throwable) {
+			error = throwable;
+			done.countDown();
+		}
+		
+		public void onComplete() {
+			done.countDown();
+		}
+	}
+	
+	private XPathEngineImpl getEngine() {
+		XPathEngineImpl engine = new XPathEngineImpl();
+		engine.setXPaths(new String[] { "/a/b[@id=\"x\"]", "/a/c" });
+		return engine;
+	}
+	
+	private Doc getDoc(int i) {
+		String xml = "<a><b id=\"" + (i % 2 == 0 ? "x" : "y") + "\"/></a>";
+		return new Doc(xml, Doc.DocType.XML, "http://example.com/" + i);
+	}
+	
+	public void testAllDocumentsMatched() throws InterruptedException {
+		MatchProcessor processor = new MatchProcessor(getEngine(), 
+				Executors.newFixedThreadPool(4), 4);
+		Collector collector = new Collector(Long.MAX_VALUE);
+		processor.subscribe(collector);
+		SubmissionPublisher<Doc> publisher = new SubmissionPublisher<>();
+		publisher.subscribe(processor);
+		for (int i = 0; i < 50; i++) {
+			publisher.submit(getDoc(i));
+		}
+		publisher.close();
+		
+		assertTrue(collector.done.await(10, TimeUnit.SECONDS));
+		assertNull(collector.error);
+		assertEquals(50, collector.results.size());
+		for (MatchResult r : collector.results) {
+			int i = Integer.parseInt(r.getDocId().substring("http://example.com/".length()));
+			assertEquals(i % 2 == 0, r.matches(0));
+			assertFalse(r.matches(1));
+		}
+	}
+	
+	public void testDemandLimitsUpstreamRequests() throws InterruptedException {
+		final AtomicLong requested = new AtomicLong();
+		MatchProcessor processor = new MatchProcessor(getEngine(), 
+				Executors.newFixedThreadPool(2), 8);
+		Collector collector = new Collector(2);
+		processor.subscribe(collector);
+		// publisher emitting documents synchronously on request
+		processor.onSubscribe(new Flow.Subscription() {
+			int next = 0;
+			
+			public synchronized void request(long n) {
+				requested.addAndGet(n);
+				for (long i = 0; i < n; i++) {
+					processor.onNext(getDoc(next++));
+				}
+			}
+			
+			public void cancel() {}
+		});
+		
+		long deadline = System.currentTimeMillis() + 10000;
+		while (collector.results.size() < 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Thread.sleep(50);
+		assertEquals(2, collector.results.size());
+		assertEquals(2, requested.get());
+		
+		collector.subscription.request(20);
+		deadline = System.currentTimeMillis() + 10000;
+		while (collector.results.size() < 22 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(22, collector.results.size());
+		// never more than parallelism outstanding beyond delivered results
+		assertTrue(requested.get() <= 22 + 8);
+		
+		processor.onComplete();
+		assertTrue(collector.done.await(10, TimeUnit.SECONDS));
+		assertNull(collector.error);
+	}
+	
+	public void testEvaluationErrorSignalled() throws InterruptedException {
+		XPathEngineImpl engine = new XPathEngineImpl() {
+			@Override
+			public void evaluate(Document d, MatchCollector matches) {
+				throw new StackOverflowError();
+			}
+		};
+		MatchProcessor processor = new MatchProcessor(engine, 
+				Executors.newFixedThreadPool(2), 4);
+		Collector collector = new Collector(Long.MAX_VALUE);
+		processor.subscribe(collector);
+		SubmissionPublisher<Doc> publisher = new SubmissionPublisher<>();
+		publisher.subscribe(processor);
+		publisher.submit(getDoc(0));
+		
+		assertTrue(collector.done.await(10, TimeUnit.SECONDS));
+		assertTrue(collector.error instanceof StackOverflowError);
+		assertTrue(collector.results.isEmpty());
+		publisher.close();
+	}
+	
+	public void testRejectedEvaluationSignalled() throws InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(1);
+		executor.shutdown();
+		MatchProcessor processor = new MatchProcessor(getEngine(), executor, 4);
+		Collector collector = new Collector(Long.MAX_VALUE);
+		processor.subscribe(collector);
+		SubmissionPublisher<Doc> publisher = new SubmissionPublisher<>();
+		publisher.subscribe(processor);
+		publisher.submit(getDoc(0));
+		
+		assertTrue(collector.done.await(10, TimeUnit.SECONDS));
+		assertTrue(collector.error instanceof RejectedExecutionException);
+		publisher.close();
+	}
+}
@@ -0,0 +1,110 @@
+package test.pipeline;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import models.Doc;
+import models.MatchResult;
+import pipeline.Pipeline;
+import pipeline.StageStatistics;
+import xpathengine.XPathEngineImpl;
+import junit.framework.TestCase;
+
+public class PipelineTest extends TestCase {
+	
+	private XPathEngineImpl getEngine() {
+		XPathEngineImpl engine = new XPathEngineImpl();
+		engine.setXPaths(new String[] {
+				"/a/b[@id=\"x\"]",
+				"/a/c",
+				"/a[b]"
+		});
+		return engine;
+	}
+	
+	private Doc getDoc(int i) {
+		String xml = "<a><b id=\"" + (i % 2 == 0 ? "x" : "y") + "\">" + i + "</b></a>";
+		return new Doc(xml, Doc.DocType.XML, "http://example.com/" + i);
+	}
+	
+	public void testResultsAndDedup() throws InterruptedException {
+		final List<MatchResult> results = new CopyOnWriteArrayList<>();
+		Pipeline pipeline = new Pipeline(getEngine(), results::add);
+		pipeline.setParseThreads(3);
+		pipeline.setEvaluateThreads(2);
+		pipeline.setQueueCapacity(4);
+		pipeline.start();
+		for (int i = 0; i < 20; i++) {
+			pipeline.submit(getDoc(i));
+		}
+		// same content as document 0 under another url
+		pipeline.submit(new Doc(getDoc(0).getDocumentString(), Doc.DocType.XML, 
+				"http://example.com/copy"));
+		pipeline.shutdown();
+		
+		assertEquals(20, results.size());
+		for (MatchResult r : results) {
+			int i = Integer.parseInt(r.getDocId().substring("http://example.com/".length()));
+			assertEquals(i % 2 == 0, r.matches(0));
+			assertFalse(r.matches(1));
+			assertTrue(r.matches(2));
+		}
+		
+		List<StageStatistics> stats = pipeline.getStatistics();
+		assertEquals(4, stats.size());
+		assertEquals(Pipeline.PARSE, stats.get(0).getName());
+		assertEquals(21, stats.get(0).getProcessed());
+		assertEquals(Pipeline.HASH, stats.get(1).getName());
+		assertEquals(1, stats.get(1).getDropped());
+		assertEquals(20, stats.get(2).getProcessed());
+		assertEquals(20, stats.get(3).getProcessed());
+	}
+	
+	public void testBackpressure() throws InterruptedException {
+		final CountDownLatch release = new CountDownLatch(1);
+		Pipeline pipeline = new Pipeline(getEngine(), r -> release.await());
+		pipeline.setQueueCapacity(1);
+		pipeline.start();
+		
+		// sink is blocked, so queues fill up until submission is refused
+		boolean refused = false;
+		for (int i = 0; i < 100 && !refused; i++) {
+			refused = !pipeline.offer(getDoc(i), 50, TimeUnit.MILLISECONDS);
+		}
+		assertTrue(refused);
+		for (StageStatistics s : pipeline.getStatistics()) {
+			assertTrue(s.getQueueDepth() <= 1);
+		}
+		
+		release.countDown();
+		pipeline.shutdown();
+		try {
+			pipeline.submit(getDoc(0));
+			fail("pipeline should not accept documents after shutdown");
+		} catch (IllegalStateException e) {
+		}
+	}
+	
+	public void testProcessorError() throws InterruptedException {
+		final List<MatchResult> results = new CopyOnWriteArrayList<>();
+		Pipeline pipeline = new Pipeline(getEngine(), r -> {
+			if (r.getDocId().endsWith("/3")) {
+				throw new StackOverflowError();
+			}
+			results.add(r);
+		});
+		pipeline.start();
+		for (int i = 0; i < 10; i++) {
+			pipeline.submit(getDoc(i));
+		}
+		// the failed document leaves the pipeline, so it becomes idle
+		pipeline.awaitIdle();
+		pipeline.shutdown();
+		assertEquals(9, results.size());
+		StageStatistics sink = pipeline.getStatistics().get(3);
+		assertEquals(1, sink.getFailed());
+		assertEquals(9, sink.getProcessed());
+	}
+}
@@ -0,0 +1,213 @@
+package test.shard;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.w3c.dom.Document;
+
+import models.Doc;
+import shard.ShardWorker;
+import shard.ShardedXPathEngine;
+import shard.ShardedXPathEngine.Partitioning;
+import xpathengine.XPathEngineImpl;
+import junit.framework.TestCase;
+
+public class ShardedXPathEngineTest extends TestCase {
+	
+	private static final String[] PATHS = {
+			"/a/b/c",
+			"/a/b[@id=\"1\"]",
+			"/a/b[@id=\"2\"]",
+			"/a/b/c[text()=\"hello world\"]",
+			"/a/b/c[contains(text(),\"world\")]",
+			"/d/e",
+			"/d[e]/f",
+			"/x/y",
+			"invalid[",
+			"/a[b/c]/b"
+	};
+	
+	private static final String[] DOCS = {
+			"<a><b id=\"1\"><c>hello world</c></b></a>",
+			"<a><b id=\"2\"/></a>",
+			"<d><e/><f/></d>",
+			"<a><b><c>world</c></b></a><d><e/></d>",
+			"<x><z/></x>"
+	};
+	
+	private void checkSameAsLocal(ShardedXPathEngine sharded) {
+		XPathEngineImpl local = new XPathEngineImpl();
+		local.setXPaths(PATHS);
+		sharded.setXPaths(PATHS);
+		for (int i = 0; i < PATHS.length; i++) {
+			assertEquals(PATHS[i], local.isValid(i), sharded.isValid(i));
+		}
+		for (String xml : DOCS) {
+			Document d = Doc.getDOM(xml, true);
+			boolean[] expected = local.evaluate(d);
+			boolean[] actual = sharded.evaluate(d);
+			assertEquals(expected.length, actual.length);
+			for (int i = 0; i < PATHS.length; i++) {
+				assertEquals(xml + " " + PATHS[i], expected[i], actual[i]);
+			}
+		}
+	}
+	
+	public void testThreadWorkers() throws IOException {
+		for (Partitioning p : Partitioning.values()) {
+			List<ShardWorker> workers = new ArrayList<>();
+			List<InetSocketAddress> addresses = new ArrayList<>();
+			for (int i = 0; i < 3; i++) {
+				ShardWorker worker = new ShardWorker().start();
+				workers.add(worker);
+				addresses.add(worker.getAddress());
+			}
+			try (ShardedXPathEngine sharded = new ShardedXPathEngine(addresses, p)) {
+				checkSameAsLocal(sharded);
+				int total = 0;
+				for (int size : sharded.getShardSizes()) {
+					total += size;
+				}
+				// all valid XPaths are assigned once
+				assertEquals(PATHS.length - 1, total);
+			}
+			for (ShardWorker worker : workers) {
+				worker.close();
+			}
+		}
+	}
+	
+	public void testProcessWorkers() throws IOException {
+		try (ShardedXPathEngine sharded = ShardedXPathEngine.launch(2, Partitioning.ROOT_NAME)) {
+			checkSameAsLocal(sharded);
+		}
+	}
+	
+	/**
+	 * Worker answering its first evaluation with an error, and matching
+	 * none of its XPaths afterwards
+	 */
+	private static void serveFailingWorker(ServerSocket server) {
+		try (Socket socket = server.accept()) {
+			DataInputStream in = new DataInputStream(
+					new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(socket.getOutputStream()));
+			int count = 0;
+			boolean failed = false;
+			while (true) {
+				byte op = in.readByte();
+				if (op == 1) {
+					count = in.readInt();
+					for (int i = 0; i < count; i++) {
+						in.readFully(new byte[in.readInt()]);
+					}
+					// all valid
+					out.writeByte(0);
+					out.writeInt(count);
+					for (int i = 0; i < count; i += 8) {
+						out.write(0xff);
+					}
+				} else if (op == 2) {
+					in.readFully(new byte[in.readInt()]);
+					if (!failed) {
+						failed = true;
+						byte[] message = "failed".getBytes(StandardCharsets.UTF_8);
+						out.writeByte(1);
+						out.writeInt(message.length);
+						out.write(message);
+					} else {
+						out.writeByte(0);
+						out.writeInt(count);
+						out.write(new byte[(count + 7) / 8]);
+					}
+				} else {
+					return;
+				}
+				out.flush();
+			}
+		} catch (IOException e) {
+			// coordinator closed the connection
+		}
+	}
+	
+	public void testWorkerError() throws Exception {
+		// "a" is assigned to the second shard, "d" to the first
+		String[] paths = { "/a/b", "/d/e", "/d/f" };
+		ShardWorker worker = new ShardWorker().start();
+		try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+			Thread failing = new Thread(() -> serveFailingWorker(server));
+			failing.start();
+			List<InetSocketAddress> addresses = new ArrayList<>();
+			addresses.add(worker.getAddress());
+			addresses.add(new InetSocketAddress(server.getInetAddress(), server.getLocalPort()));
+			try (ShardedXPathEngine sharded = new ShardedXPathEngine(addresses, 
+					Partitioning.ROOT_NAME)) {
+				sharded.setXPaths(paths);
+				assertEquals(1, sharded.getShardSizes()[1]);
+				try {
+					sharded.evaluate(Doc.getDOM("<a><b/></a><d><e/></d>", true));
+					fail("worker error should be reported");
+				} catch (UncheckedIOException e) {
+				}
+				// the answer of the first worker was read with the error
+				boolean[] result = sharded.evaluate(Doc.getDOM("<a/><d><f/></d>", true));
+				assertFalse(result[0]);
+				assertFalse(result[1]);
+				assertTrue(result[2]);
+				
+				sharded.setXPaths(null);
+				assertFalse(sharded.isValid(0));
+				assertEquals(0, sharded.evaluate(Doc.getDOM("<d><e/></d>", true)).length);
+			}
+			failing.join();
+		} finally {
+			worker.close();
+		}
+	}
+	
+	public void testUnknownOperationClosesConnection() throws IOException {
+		try (ShardWorker worker = new ShardWorker().start();
+				Socket socket = new Socket(worker.getAddress().getAddress(), 
+						worker.getAddress().getPort())) {
+			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+			out.writeByte(42);
+			out.writeInt(7);
+			out.flush();
+			// no answer, as the body of the request could not be skipped
+			assertEquals(-1, socket.getInputStream().read());
+		}
+	}
+	
+	public void testLongXPath() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		while (sb.length() < 70000) {
+			sb.append("long text ");
+		}
+		String text = sb.toString().trim();
+		String[] paths = { "/a/b[text()=\"" + text + "\"]", "/a/b[text()=\"short\"]" };
+		List<InetSocketAddress> addresses = new ArrayList<>();
+		ShardWorker worker = new ShardWorker().start();
+		addresses.add(worker.getAddress());
+		try (ShardedXPathEngine sharded = new ShardedXPathEngine(addresses, Partitioning.HASH)) {
+			sharded.setXPaths(paths);
+			assertTrue(sharded.isValid(0));
+			boolean[] result = sharded.evaluate(Doc.getDOM("<a><b>" + text + "</b></a>", true));
+			assertTrue(result[0]);
+			assertFalse(result[1]);
+		} finally {
+			worker.close();
+		}
+	}
+}
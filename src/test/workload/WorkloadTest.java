@@ -0,0 +1,196 @@
+package test.workload;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+import models.Doc;
+import models.Doc.DocType;
+import workload.DocumentGenerator;
+import workload.QueryGenerator;
+import workload.ReplayHarness;
+import xpathengine.XPathEngineImpl;
+import xpathengine.XPathQuery;
+import junit.framework.TestCase;
+
+public class WorkloadTest extends TestCase {
+
+	private static int countElements(Node n) {
+		int count = n.getNodeType() == Node.ELEMENT_NODE ? 1 : 0;
+		for (Node c = n.getFirstChild(); c != null; c = c.getNextSibling()) {
+			count += countElements(c);
+		}
+		return count;
+	}
+
+	private static int maxDepth(Node n) {
+		int depth = 0;
+		for (Node c = n.getFirstChild(); c != null; c = c.getNextSibling()) {
+			if (c.getNodeType() == Node.ELEMENT_NODE) {
+				depth = Math.max(depth, 1 + maxDepth(c));
+			}
+		}
+		return depth;
+	}
+
+	public void testDocumentShape() {
+		DocumentGenerator generator = new DocumentGenerator(42);
+		generator.setDepth(3);
+		generator.setFanOut(4);
+		generator.setAttributes(2);
+		assertEquals(4 + 16 + 64, generator.getElementCount());
+		String xml = generator.generate(DocType.XML);
+		Document d = Doc.getDOM(xml, true);
+		// elements below the root, and the root itself
+		assertEquals(generator.getElementCount() + 1, countElements(d));
+		assertEquals(3, maxDepth(d.getDocumentElement()));
+		
+		String html = generator.generate(DocType.HTML);
+		Node body = Doc.getDOM(html, false).getElementsByTagName("body").item(0);
+		assertEquals(generator.getElementCount() + 1, countElements(body));
+		assertEquals(3, maxDepth(body));
+	}
+
+	public void testSeeded() {
+		DocumentGenerator first = new DocumentGenerator(7);
+		DocumentGenerator second = new DocumentGenerator(7);
+		String xml = first.generate(DocType.XML);
+		assertEquals(xml, second.generate(DocType.XML));
+		assertFalse(xml.equals(first.generate(DocType.XML)));
+		
+		Document d = Doc.getDOM(xml, true);
+		String[] queries = new QueryGenerator(7).generate(d, 100);
+		assertTrue(Arrays.equals(queries, new QueryGenerator(7).generate(d, 100)));
+	}
+
+	public void testSelectivity() {
+		DocumentGenerator documents = new DocumentGenerator(1);
+		documents.setDepth(4);
+		documents.setFanOut(3);
+		documents.setAttributes(3);
+		for (DocType type : new DocType[] { DocType.XML, DocType.HTML }) {
+			Document d = Doc.getDOM(documents.generate(type), type == DocType.XML);
+			for (double selectivity : new double[] { 0, 0.3, 1 }) {
+				QueryGenerator generator = new QueryGenerator(2);
+				generator.setSelectivity(selectivity);
+				generator.setTestProbability(0.5);
+				String[] queries = generator.generate(d, 1000);
+				XPathEngineImpl engine = new XPathEngineImpl();
+				engine.setXPaths(queries);
+				boolean[] result = engine.evaluate(d);
+				int matches = 0;
+				for (int i = 0; i < queries.length; i++) {
+					assertTrue(queries[i], XPathQuery.isValid(queries[i]));
+					matches += result[i] ? 1 : 0;
+				}
+				assertEquals(selectivity, matches / 1000.0, 0.05);
+			}
+		}
+	}
+
+	/**
+	 * @return
+	 * 		mean over the queries of the most steps they start with in common
+	 * 		with an earlier query
+	 */
+	private static double meanSharedSteps(String[] queries) {
+		long total = 0;
+		for (int i = 1; i < queries.length; i++) {
+			String[] steps = queries[i].split("/");
+			int most = 0;
+			for (int j = 0; j < i; j++) {
+				String[] earlier = queries[j].split("/");
+				int k = 1;
+				while (k < steps.length && k < earlier.length && steps[k].equals(earlier[k])) {
+					k++;
+				}
+				most = Math.max(most, k - 1);
+			}
+			total += most;
+		}
+		return (double) total / (queries.length - 1);
+	}
+
+	public void testPrefixOverlap() {
+		DocumentGenerator documents = new DocumentGenerator(3);
+		documents.setFanOut(6);
+		documents.setAttributes(3);
+		documents.setAttributeCardinality(1000);
+		Document d = Doc.getDOM(documents.generate(DocType.XML), true);
+		double[] shared = new double[2];
+		for (int k = 0; k < 2; k++) {
+			QueryGenerator generator = new QueryGenerator(4);
+			generator.setPrefixOverlap(k);
+			generator.setTestProbability(1);
+			shared[k] = meanSharedSteps(generator.generate(d, 100));
+		}
+		assertTrue(Arrays.toString(shared), shared[1] > shared[0] + 1);
+	}
+
+	public void testReplay() throws Exception {
+		Path dir = Files.createTempDirectory("corpus");
+		try {
+			DocumentGenerator generator = new DocumentGenerator(5);
+			for (int i = 0; i < 5; i++) {
+				Files.write(dir.resolve(i + ".html"), 
+						generator.generate(DocType.HTML).getBytes(StandardCharsets.UTF_8));
+			}
+			Files.createDirectory(dir.resolve("feeds"));
+			for (int i = 0; i < 3; i++) {
+				Files.write(dir.resolve("feeds").resolve(i + ".xml"), 
+						generator.generate(DocType.XML).getBytes(StandardCharsets.UTF_8));
+			}
+			Files.write(dir.resolve("notes.txt"), "not a document".getBytes());
+			Document sample = Doc.getDOM(generator.generate(DocType.HTML), false);
+			String[] xpaths = new QueryGenerator(6).generate(sample, 50);
+			Path queryFile = Files.createTempFile(dir, "queries", ".lst");
+			Files.write(queryFile, ("# replayed queries\n\n" + String.join("\n", xpaths))
+					.getBytes(StandardCharsets.UTF_8));
+			
+			List<Doc> corpus = ReplayHarness.loadCorpus(dir);
+			assertEquals(8, corpus.size());
+			assertTrue(Arrays.equals(xpaths, ReplayHarness.loadQueries(queryFile)));
+			
+			XPathEngineImpl engine = new XPathEngineImpl();
+			engine.setXPaths(xpaths);
+			long expected = 0;
+			for (Doc doc : corpus) {
+				for (boolean matched : engine.evaluate(
+						Doc.getDOM(doc.getDocumentString(), doc.isXML()))) {
+					expected += matched ? 1 : 0;
+				}
+			}
+			assertTrue(expected > 0);
+			
+			long bytes = 0;
+			for (Doc doc : corpus) {
+				bytes += doc.getDocumentString().getBytes(StandardCharsets.UTF_8).length;
+			}
+			// a document that fails to parse is counted, and not timed
+			corpus.add(new Doc(null, DocType.HTML, "missing"));
+			
+			ReplayHarness.Report report = new ReplayHarness(corpus, xpaths).run(3, 2);
+			assertEquals(16, report.getDocuments());
+			assertEquals(2, report.getFailures());
+			assertEquals(2 * bytes, report.getBytes());
+			assertEquals(2 * expected, report.getMatches());
+			assertTrue(report.getThroughput() > 0);
+			assertTrue(report.getParsePercentile(50) > 0);
+			assertTrue(report.getParsePercentile(50) <= report.getParsePercentile(99.9));
+			assertTrue(report.getEvaluatePercentile(99) <= report.getEvaluatePercentile(100));
+			assertTrue(report.toString().contains("docs/s"));
+			assertTrue(report.toString().contains("2 documents failed"));
+		} finally {
+			try (Stream<Path> files = Files.walk(dir)) {
+				files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+			}
+		}
+	}
+}
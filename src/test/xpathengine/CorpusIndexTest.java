@@ -0,0 +1,216 @@
+package test.xpathengine;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import models.Doc;
+import models.Doc.DocType;
+import models.PackedDocumentStore;
+import xpathengine.CorpusIndex;
+import xpathengine.XPathEngineImpl;
+import xpathengine.XPathQuery;
+import junit.framework.TestCase;
+
+public class CorpusIndexTest extends TestCase {
+
+	private static final String[] PATHS = {
+			"/a/b/c",
+			"/a/b[@id=\"1\"]",
+			"/a/b[@id=\"2\"]/c",
+			"/a/b/c[text()=\"hello world\"]",
+			"/a/b/c[contains(text(),\"world\")]",
+			"/a[b[@id=\"1\"]/c]/b",
+			"/d/e",
+			"/d[e]/f",
+			"/x/y",
+			"/a/c"
+	};
+
+	private Path dir;
+	private PackedDocumentStore store;
+	private List<Doc> docs;
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = Files.createTempDirectory("corpus");
+		store = new PackedDocumentStore(dir.resolve("packed"));
+		docs = new ArrayList<>();
+		String[] xml = {
+				"<a><b id=\"1\"><c>hello world</c></b></a>",
+				"<a><b id=\"2\"/><b><c>x</c></b></a>",
+				"<d><e/><f/></d>",
+				"<a><b><c>world</c></b></a>",
+				"<x><z/></x>",
+				"<a><b id=\"2\"><c>hello</c></b><c/></a>",
+				"<a><b id=\"1\"/><b><c/></b></a>",
+				"<d><f><e/></f></d>"
+		};
+		for (int i = 0; i < xml.length; i++) {
+			docs.add(new Doc(xml[i], DocType.XML, "http://example.com/" + i));
+		}
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		try (Stream<Path> files = Files.walk(dir)) {
+			files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+		}
+	}
+
+	/**
+	 * Checks the index against evaluating every added document
+	 */
+	private void checkSameAsEngine(CorpusIndex index, int added) throws IOException {
+		XPathEngineImpl engine = new XPathEngineImpl();
+		engine.setXPaths(PATHS);
+		for (int i = 0; i < PATHS.length; i++) {
+			List<String> expected = new ArrayList<>();
+			for (Doc doc : docs.subList(0, added)) {
+				if (engine.evaluate(Doc.getDOM(doc.getDocumentString(), true))[i]) {
+					expected.add(doc.getId());
+				}
+			}
+			XPathQuery query = new XPathQuery(PATHS[i]);
+			assertEquals(PATHS[i], expected, index.query(query));
+			assertTrue(PATHS[i], index.getCandidates(query).containsAll(expected));
+		}
+	}
+
+	public void testSameAsEngine() throws IOException {
+		try (CorpusIndex index = new CorpusIndex(dir.resolve("index"), store)) {
+			index.setFlushThreshold(3);
+			for (Doc doc : docs) {
+				assertTrue(index.add(doc));
+			}
+			assertFalse(index.add(docs.get(0)));
+			assertEquals(docs.size(), index.size());
+			// two full segments, and two documents still buffered
+			assertEquals(2, index.getSegmentCount());
+			checkSameAsEngine(index, docs.size());
+
+			// text() and attribute postings exclude documents
+			XPathQuery query = new XPathQuery("/a/b/c[text()=\"hello world\"]");
+			assertEquals(1, index.getCandidates(query).size());
+		}
+	}
+
+	public void testLongValues() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 10; i++) {
+			sb.append("long text value ");
+		}
+		String text = sb.toString().trim();
+		String other = text.substring(0, text.length() - 1) + "X";
+		String[] xml = {
+				"<a><b>" + text + "</b></a>",
+				"<a><b>" + other + "</b></a>",
+				"<a><b id=\"" + text + "\"/></a>",
+				"<a><b id=\"" + other + "\"/></a>"
+		};
+		String[] paths = {
+				"/a/b[text()=\"" + text + "\"]",
+				"/a/b[text()=\"" + other + "\"]",
+				"/a/b[@id=\"" + text + "\"]",
+				"/a/b[@id=\"" + other + "\"]"
+		};
+		try (CorpusIndex index = new CorpusIndex(dir.resolve("index"), store)) {
+			index.setFlushThreshold(1);
+			for (int i = 0; i < xml.length; i++) {
+				index.add(new Doc(xml[i], DocType.XML, "http://example.com/long" + i));
+			}
+			for (int round = 0; round < 2; round++) {
+				for (int i = 0; i < paths.length; i++) {
+					XPathQuery query = new XPathQuery(paths[i]);
+					// long values are keyed by a hash rather than a prefix
+					assertEquals(paths[i], 1, index.getCandidates(query).size());
+					assertEquals("http://example.com/long" + i, index.query(query).get(0));
+				}
+				index.compact();
+			}
+		}
+	}
+
+	public void testReopenAndCompact() throws IOException {
+		Path indexDir = dir.resolve("index");
+		try (CorpusIndex index = new CorpusIndex(indexDir, store)) {
+			index.setFlushThreshold(2);
+			for (Doc doc : docs.subList(0, 5)) {
+				index.add(doc);
+			}
+		}
+		try (CorpusIndex index = new CorpusIndex(indexDir, store)) {
+			assertEquals(5, index.size());
+			assertTrue(index.contains(docs.get(4).getId()));
+			assertFalse(index.add(docs.get(4)));
+			checkSameAsEngine(index, 5);
+			// added incrementally to the existing segments
+			for (Doc doc : docs.subList(5, docs.size())) {
+				assertTrue(index.add(doc));
+			}
+			checkSameAsEngine(index, docs.size());
+			index.compact();
+			assertEquals(1, index.getSegmentCount());
+			checkSameAsEngine(index, docs.size());
+		}
+		try (CorpusIndex index = new CorpusIndex(indexDir, store)) {
+			assertEquals(docs.size(), index.size());
+			assertEquals(1, index.getSegmentCount());
+			checkSameAsEngine(index, docs.size());
+		}
+	}
+
+	public void testInterruptedCompact() throws IOException {
+		Path indexDir = dir.resolve("index");
+		Path saved = Files.createDirectories(dir.resolve("saved"));
+		try (CorpusIndex index = new CorpusIndex(indexDir, store)) {
+			index.setFlushThreshold(2);
+			for (Doc doc : docs) {
+				index.add(doc);
+			}
+			assertEquals(4, index.getSegmentCount());
+			for (int s = 0; s < 4; s++) {
+				Files.copy(segment(indexDir, s), saved.resolve(segment(indexDir, s).getFileName()));
+			}
+			index.compact();
+		}
+		// a crash while deleting the replaced segments may leave any of them
+		int[][] remaining = { { 0, 1, 2, 3 }, { 1, 2, 3 }, { 2, 3 }, { 0, 1 }, { 0 } };
+		for (int[] left : remaining) {
+			for (int s : left) {
+				Path file = segment(indexDir, s);
+				Files.copy(saved.resolve(file.getFileName()), file);
+			}
+			try (CorpusIndex index = new CorpusIndex(indexDir, store)) {
+				assertEquals(docs.size(), index.size());
+				assertEquals(1, index.getSegmentCount());
+				checkSameAsEngine(index, docs.size());
+			}
+			for (int s = 0; s < 4; s++) {
+				assertFalse(Files.exists(segment(indexDir, s)));
+			}
+		}
+	}
+
+	private static Path segment(Path indexDir, int number) {
+		return indexDir.resolve(String.format("%s%06d%s", CorpusIndex.SEGMENT_PREFIX, 
+				number, CorpusIndex.SEGMENT_EXTENSION));
+	}
+
+	public void testRemovedFromStore() throws IOException {
+		try (CorpusIndex index = new CorpusIndex(dir.resolve("index"), store)) {
+			index.add(docs.get(0));
+			index.add(docs.get(3));
+			store.remove(docs.get(0));
+			XPathQuery query = new XPathQuery("/a/b/c");
+			assertEquals(2, index.getCandidates(query).size());
+			List<String> matches = index.query(query);
+			assertEquals(1, matches.size());
+			assertEquals(docs.get(3).getId(), matches.get(0));
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package test.xpathengine;
+
+import java.util.Arrays;
+
+import org.w3c.dom.Document;
+
+import models.Doc;
+import models.Doc.DocType;
+import workload.DocumentGenerator;
+import workload.QueryGenerator;
+import xpathengine.SubscriptionStore;
+import xpathengine.XPathQuery;
+import junit.framework.TestCase;
+
+public class SubscriptionStoreTest extends TestCase {
+
+	public void testSameTokens() {
+		DocumentGenerator documents = new DocumentGenerator(8);
+		documents.setAttributes(2);
+		Document sample = Doc.getDOM(documents.generate(DocType.HTML), false);
+		QueryGenerator generator = new QueryGenerator(9);
+		generator.setTestProbability(0.5);
+		String[] xpaths = generator.generate(sample, 2000);
+		
+		SubscriptionStore store = new SubscriptionStore();
+		for (int i = 0; i < xpaths.length; i++) {
+			assertEquals(i, store.add(xpaths[i]));
+		}
+		store.trim();
+		assertEquals(-1, store.add("/a/["));
+		assertEquals(-1, store.add("/a//b"));
+		assertEquals(xpaths.length, store.size());
+		for (int i = 0; i < xpaths.length; i++) {
+			assertTrue(xpaths[i], Arrays.equals(XPathQuery.getCheckedTokens(xpaths[i]), 
+					store.getTokens(i)));
+			assertTrue(xpaths[i], Arrays.equals(store.getTokens(i), 
+					XPathQuery.getCheckedTokens(store.get(i))));
+		}
+	}
+
+	public void testSharing() {
+		SubscriptionStore store = new SubscriptionStore();
+		store.add("/a/b/c[@id=\"1\"]");
+		store.add("/x/b/c[@id=\"1\"]");
+		store.add("/a/b[ contains(text(), \"hi\") ]/c");
+		assertEquals("/a/b[contains(text(), \"hi\")]/c", store.get(2));
+		// a, b, c[@id="1"], x, b[contains(...)], c
+		assertEquals(6, store.getStepCount());
+		// names a, b, c, x, and two tests
+		assertEquals(6, store.getStringCount());
+		// the tail b/c[@id="1"] is shared
+		assertEquals(7, store.getCellCount());
+		
+		long bytes = store.getBytes();
+		int cells = store.getCellCount();
+		int id = store.add("/x/b/c[@id=\"1\"]");
+		assertEquals("/x/b/c[@id=\"1\"]", store.get(id));
+		assertEquals(cells, store.getCellCount());
+		assertEquals(bytes, store.getBytes());
+	}
+}
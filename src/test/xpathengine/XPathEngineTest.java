@@ -2,12 +2,52 @@ package test.xpathengine;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 
 import models.Doc;
+import models.PackedDocument;
+import models.PackedDocumentStore;
+import xpathengine.AttributeIndex;
+import xpathengine.BottomUpEvaluator;
+import xpathengine.BoundedResult;
+import xpathengine.BudgetViolation;
+import xpathengine.DocumentIndex;
+import xpathengine.DocumentStatistics;
+import xpathengine.EngineMetrics;
+import xpathengine.EvaluationBudget;
+import xpathengine.IncrementalMatcher;
+import xpathengine.IterativeMatcher;
+import xpathengine.MatchBitSet;
+import xpathengine.MatchList;
+import xpathengine.MetricsSnapshot;
+import xpathengine.PredicateStatistics;
+import xpathengine.QueryPlan;
+import xpathengine.QueryPlan.Strategy;
+import xpathengine.QueryMetrics;
 import xpathengine.Token;
 import xpathengine.Token.Type;
 import xpathengine.TokenIterator;
@@ -230,6 +270,958 @@ public class XPathEngineTest extends TestCase {
 		}
 	}
 	
+	public void testBottomUpDeepXML() {
+		Document doc = (Document) loadDOM("xml/deep.xml");
+		DocumentIndex index = new DocumentIndex(doc);
+		
+		String[] matching = {
+				"/a/b[@att=\"123\"]",
+				"/a/b[@att=\"123\"]/c",
+				"/a[@abc=\"xyz\"]/b/c[text()=\"string with quote in c\"]",
+				"/d/e/f[foo]/bar[text()=\"else\"]"
+		};
+		for (String q : matching) {
+			BottomUpEvaluator b = 
+					BottomUpEvaluator.compile(XPathQuery.getCheckedTokens(q));
+			assertNotNull(b);
+			assertTrue(b.evaluate(index));
+		}
+		
+		String[] notMatching = {
+				"/d/b[@att=\"123\"]",
+				"/b[@att=\"123\"]",
+				"/a/b[@att=\"123\"]/d",
+				"/a/b[@att=\"124\"]",
+				"/d/e/f[baz]/bar[text()=\"else\"]"
+		};
+		for (String q : notMatching) {
+			BottomUpEvaluator b = 
+					BottomUpEvaluator.compile(XPathQuery.getCheckedTokens(q));
+			assertNotNull(b);
+			assertFalse(b.evaluate(index));
+		}
+		
+		assertNull(BottomUpEvaluator.compile(XPathQuery.getCheckedTokens("/a/b/c")));
+	}
+	
+	public void testBottomUpSameAsTopDown() {
+		Document doc = (Document) loadDOM("xml/deep.xml");
+		
+		String[] paths = {
+				"/a/b/c",
+				"/a/b[@att=\"123\"]",
+				"/a/b[@att=\"123\"][c]",
+				"/a/b[@att=\"123\"]/c[text()=\"wrong\"]",
+				"/d/e/f/bar[text()=\"else\"]",
+				"/d/e/f[bar[text()=\"else\"]]",
+				"/e/f/bar[text()=\"else\"]",
+				"/does/not/exist"
+		};
+		XPathEngineImpl engine = new XPathEngineImpl();
+		engine.setXPaths(paths);
+		boolean[] bottomUp = engine.evaluate(doc);
+		engine.setBottomUpEnabled(false);
+		boolean[] topDown = engine.evaluate(doc);
+		for (int i = 0; i < paths.length; i++) {
+			assertEquals(paths[i], topDown[i], bottomUp[i]);
+		}
+	}
+	
+	public void testExplain() {
+		Document doc = (Document) loadDOM("xml/deep.xml");
+		
+		String[] paths = {
+				"/a/b/c",
+				"/does/not/exist",
+				"/a[nothing]",
+				"/d/e/f/bar[text()=\"else\"]"
+		};
+		XPathEngineImpl engine = new XPathEngineImpl();
+		engine.setXPaths(paths);
+		
+		QueryPlan plan = engine.explain(doc, 0);
+		assertEquals(Strategy.TOP_DOWN, plan.getStrategy());
+		assertTrue(plan.getActualNodesVisited() > 0);
+		assertTrue(plan.toString().contains("plan: TOP_DOWN"));
+		
+		plan = engine.explain(doc, 1);
+		assertEquals(Strategy.NAME_PREFILTER, plan.getStrategy());
+		assertEquals(0, plan.getActualNodesVisited());
+		
+		plan = engine.explain(doc, 2);
+		assertEquals(Strategy.NAME_PREFILTER, plan.getStrategy());
+		
+		plan = engine.explain(doc, 3);
+		assertTrue(plan.getBottomUpCost() >= 0);
+		assertTrue(plan.getActualNodesVisited() > 0);
+		
+		assertNull(engine.explain(doc, paths.length));
+	}
+	
+	public void testStatisticsCardinality() {
+		StringBuilder sb = new StringBuilder("<html><body>");
+		for (int i = 0; i < 5000; i++) {
+			sb.append("<div id=\"d").append(i).append("\" class=\"c").append(i % 10)
+				.append("\">text ").append(i % 100).append("</div>");
+		}
+		DocumentStatistics stats = new DocumentStatistics(
+				Doc.getDOM(sb.append("</body></html>").toString(), false));
+		assertEquals(5000, stats.getAttributeCount("id"));
+		// exact for few values, estimated for many
+		assertEquals(10, stats.getAttributeCardinality("class"));
+		assertEquals(100, stats.getTextCardinality());
+		int ids = stats.getAttributeCardinality("id");
+		assertTrue(String.valueOf(ids), Math.abs(ids - 5000) < 750);
+	}
+	
+	public void testAdaptiveTestOrder() {
+		String q = "/a/b[contains(text(),\"zzz\")][@id=\"y\"]";
+		StringBuilder sb = new StringBuilder("<a>");
+		for (int i = 0; i < 200; i++) {
+			sb.append("<b id=\"x").append(i).append("\">");
+			for (int j = 0; j < 50; j++) {
+				sb.append("some long text zzz ");
+			}
+			sb.append("</b>");
+		}
+		Document nonMatching = Doc.getDOM(sb.append("</a>").toString(), true);
+		Document matching = Doc.getDOM("<a><b id=\"y\">zzz</b></a>", true);
+		
+		XPathEngineImpl engine = new XPathEngineImpl();
+		engine.setXPaths(new String[] { q });
+		for (int i = 0; i < 128; i++) {
+			assertFalse(engine.evaluate(nonMatching)[0]);
+		}
+		// nothing is learned unless enabled
+		assertEquals(0, engine.getPredicateStatistics(0).get(0).getEvaluations());
+		engine.setAdaptiveOrderingEnabled(true);
+		for (int i = 0; i < 128; i++) {
+			assertFalse(engine.evaluate(nonMatching)[0]);
+		}
+		// the attribute test rejects all nodes, the text test none
+		List<PredicateStatistics> stats = engine.getPredicateStatistics(0);
+		assertEquals("@id=\"y\"", stats.get(0).getTest());
+		assertEquals(0.0, stats.get(0).getPassRate());
+		assertEquals(1.0, stats.get(1).getPassRate());
+		assertTrue(engine.evaluate(matching)[0]);
+		
+		engine.resetTestOrder();
+		stats = engine.getPredicateStatistics(0);
+		assertEquals("contains(text(),\"zzz\")", stats.get(0).getTest());
+		assertEquals(0, stats.get(0).getEvaluations());
+		
+		engine.setTestOrderFrozen(true);
+		for (int i = 0; i < 128; i++) {
+			assertFalse(engine.evaluate(nonMatching)[0]);
+		}
+		stats = engine.getPredicateStatistics(0);
+		assertEquals("contains(text(),\"zzz\")", stats.get(0).getTest());
+		assertEquals(0, stats.get(0).getEvaluations());
+	}
+	
+	public void testSharedPredicates() {
+		String[] paths = {
+				"/html/body/div[@class=\"headline\"]/a",
+				"/html/body/div[@class=\"headline\"][p]",
+				"/html/body/div[p][@class=\"headline\"]/p[text()=\"two\"]",
+				"/html/body/div[@class=\"other\"]",
+				"/html/body/div[p]/span"
+		};
+		String html = "<html><body>"
+				+ "<div class=\"headline\"><p>one</p></div>"
+				+ "<div class=\"headline\"><p>two</p></div>"
+				+ "<div class=\"plain\"><a href=\"/x\">x</a></div>"
+				+ "</body></html>";
+		Document d = Doc.getDOM(html, false);
+		
+		XPathEngineImpl shared = new XPathEngineImpl();
+		shared.setPredicateSharingEnabled(true);
+		shared.setXPaths(paths);
+		assertEquals(2, shared.getSharedPredicateCount());
+		XPathEngineImpl unshared = new XPathEngineImpl();
+		unshared.setXPaths(paths);
+		
+		boolean[] expected = unshared.evaluate(d);
+		boolean[] actual = shared.evaluate(d);
+		for (int i = 0; i < paths.length; i++) {
+			assertEquals(paths[i], expected[i], actual[i]);
+		}
+		assertTrue(shared.getTestsSaved() > 0);
+		assertEquals(0, unshared.getTestsSaved());
+	}
+	
+	public void testAttributeIndexSameAsDOM() {
+		StringBuilder sb = new StringBuilder("<html><body>");
+		for (int i = 0; i < 500; i++) {
+			sb.append("<div id=\"d").append(i).append("\" class=\"c").append(i % 7)
+				.append("\"><a href=\"/p").append(i).append("\">").append(i).append("</a></div>");
+		}
+		Document d = Doc.getDOM(sb.append("</body></html>").toString(), false);
+		String[] paths = {
+				"/html/body/div[@id=\"d42\"]/a",
+				"/html/body/div[@id=\"d42\"][@class=\"c1\"]",
+				"/html/body/div[@class=\"c3\"]/a[@href=\"/p10\"]",
+				"/html/body/div[@class=\"c3\"]/a[@href=\"/p3\"]",
+				"/html/body/div/a[@href=\"/p499\"]",
+				"/html/body/a[@href=\"/p1\"]",
+				"/html/body/div[@id=\"missing\"]"
+		};
+		XPathEngineImpl plain = new XPathEngineImpl();
+		plain.setAttributeIndexEnabled(false);
+		plain.setPlannerEnabled(false);
+		plain.setXPaths(paths);
+		XPathEngineImpl indexed = new XPathEngineImpl();
+		indexed.setAttributeIndexEnabled(true);
+		indexed.setPlannerEnabled(false);
+		indexed.setXPaths(paths);
+		boolean[] expected = plain.evaluate(d);
+		boolean[] actual = indexed.evaluate(d);
+		for (int i = 0; i < paths.length; i++) {
+			assertEquals(paths[i], expected[i], actual[i]);
+		}
+		assertTrue(actual[0]);
+		assertFalse(actual[1]);
+		
+		AttributeIndex index = new AttributeIndex(d);
+		assertFalse(index.isBuilt());
+		assertEquals(1, index.getElements("div", "id", "d42").size());
+		assertEquals(0, index.getElements("a", "id", "d42").size());
+		assertTrue(index.isBuilt());
+	}
+	
+	public void testPackedEvaluationAllocatesNothing() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+			return;
+		}
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+		if (!threads.isThreadAllocatedMemorySupported()) {
+			return;
+		}
+		threads.setThreadAllocatedMemoryEnabled(true);
+		String html = "<html><body><div id=\"x\" class=\"c\"><p>hello world</p>"
+				+ "<a href=\"/p\">link</a></div><div id=\"y\"><p>other</p></div></body></html>";
+		String[] paths = {
+				"/html/body/div[@id=\"y\"]/p",
+				"/html/body/div[p][a]",
+				"/html/body/div/p[contains(text(),\"world\")]",
+				"/html/body/div/p[text()=\"other\"]",
+				"/html/body/span",
+				"/html/body/div[@class=\"c\"][p[contains(text(),\"zzz\")]]"
+		};
+		XPathEngineImpl engine = new XPathEngineImpl();
+		engine.setXPaths(paths);
+		PackedDocument packed = PackedDocument.pack(Doc.getDOM(html, false));
+		boolean[] result = new boolean[paths.length];
+		MatchBitSet bits = new MatchBitSet();
+		// warm up until the evaluation methods are compiled
+		for (int i = 0; i < 10000; i++) {
+			engine.evaluate(packed, result);
+			engine.evaluate(packed, bits);
+		}
+		long thread = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(thread);
+		for (int i = 0; i < 1000; i++) {
+			engine.evaluate(packed, result);
+			engine.evaluate(packed, bits);
+		}
+		long allocated = threads.getThreadAllocatedBytes(thread) - before;
+		assertEquals(0, allocated);
+		boolean[] expected = { true, true, true, true, false, false };
+		for (int i = 0; i < paths.length; i++) {
+			assertEquals(paths[i], expected[i], result[i]);
+			assertEquals(paths[i], expected[i], bits.get(i));
+		}
+	}
+	
+	public void testIterativeSameAsRecursive() {
+		Document doc = (Document) loadDOM("xml/deep.xml");
+		String[] paths = {
+				"/a/b/c",
+				"/a/b/c[text()=\"string with quote in c\"]",
+				"/a/b[@att=\"123\"]",
+				"/a/b[@att=\"124\"]",
+				"/a[b]",
+				"/a[x]",
+				"/d/e[f/foo]",
+				"/d/e[f/foo]/f/bar[text()=\"else\"]",
+				"/d/e/f[foo[contains(text(),\"some\")]][bar]",
+				"/d/e/f[foo[contains(text(),\"none\")]][bar]",
+				"/does/not/exist"
+		};
+		IterativeMatcher matcher = new IterativeMatcher();
+		for (String q : paths) {
+			Token[] tokens = XPathQuery.getCheckedTokens(q);
+			boolean expected = XPathEngineImpl.matchToken(doc, new TokenIterator(tokens));
+			assertEquals(q, expected, matcher.checkQueryMatch(doc, tokens));
+		}
+	}
+	
+	/**
+	 * Builds a chain of nested a elements, each preceded by an empty b
+	 * sibling, with text on the deepest a
+	 */
+	private Document buildDeepDocument(int depth, String text) throws Exception {
+		Document d = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+				.newDocument();
+		// skips the check that an appended node is not an ancestor, which
+		// walks up the whole chain on every append
+		d.setStrictErrorChecking(false);
+		Node parent = d;
+		for (int i = 0; i < depth; i++) {
+			if (i > 0) {
+				parent.appendChild(d.createElement("b"));
+			}
+			Node a = d.createElement("a");
+			parent.appendChild(a);
+			parent = a;
+		}
+		parent.appendChild(d.createTextNode(text));
+		return d;
+	}
+	
+	/**
+	 * @return
+	 * 		tokens of /a/a/.../a[text()="..."] with the given number of steps
+	 */
+	private Token[] deepQuery(int depth, String text) {
+		Token[] tokens = new Token[2 * depth + 2];
+		tokens[0] = new Token(Type.XPATH, "");
+		for (int i = 0; i < depth; i++) {
+			tokens[2 * i + 1] = new Token(Type.AXIS, "/");
+			tokens[2 * i + 2] = new Token(Type.NODENAME, "a");
+		}
+		tokens[2 * depth + 1] = new Token(Type.TEST, "text()=\"" + text + "\"");
+		return tokens;
+	}
+	
+	public void testIterativeDeepDocument() throws Exception {
+		int depth = 100000;
+		Document d = buildDeepDocument(depth, "leaf");
+		IterativeMatcher matcher = new IterativeMatcher();
+		assertTrue(matcher.checkQueryMatch(d, deepQuery(depth, "leaf")));
+		assertFalse(matcher.checkQueryMatch(d, deepQuery(depth, "other")));
+		assertFalse(matcher.checkQueryMatch(d, deepQuery(depth + 1, "leaf")));
+		assertFalse(matcher.checkQueryMatch(d, deepQuery(depth - 1, "leaf")));
+		
+		// the engine matches through the iterative matcher as well
+		XPathEngineImpl engine = new XPathEngineImpl();
+		engine.setXPaths(new String[] { "/a/b", "/a/a[b][a/a]/a", "/a/c" });
+		boolean[] result = engine.evaluate(d);
+		assertTrue(result[0]);
+		assertTrue(result[1]);
+		assertFalse(result[2]);
+	}
+	
+	public void testParallelSameAsSequential() {
+		StringBuilder sb = new StringBuilder("<html><body>");
+		for (int i = 0; i < 2000; i++) {
+			sb.append("<div id=\"d").append(i).append("\">");
+			for (int j = 0; j < 20; j++) {
+				sb.append("<p>").append(i).append('.').append(j).append("</p>");
+			}
+			sb.append("</div>");
+		}
+		String html = sb.append("</body></html>").toString();
+		Document d = Doc.getDOM(html, false);
+		String[] paths = {
+				"/html/body/div[@id=\"d0\"]",
+				"/html/body/div[@id=\"d1999\"]/p[text()=\"1999.19\"]",
+				"/html/body/div/p[text()=\"1000.5\"]",
+				"/html/body/div[p[text()=\"1500.7\"]]",
+				"/html/body/div[p[text()=\"1500.7\"]][@id=\"d1501\"]",
+				"/html/body/div/p[contains(text(),\"none\")]",
+				"/html/body/span"
+		};
+		XPathEngineImpl engine = new XPathEngineImpl();
+		engine.setXPaths(paths);
+		boolean[] expected = engine.evaluate(d);
+		
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			// small enough for the p children of each div to be forked too
+			engine.setParallelMatching(pool, 8);
+			// no node of a fresh DOM has been read before the parallel match
+			assertTrue(Arrays.equals(expected, engine.evaluate(Doc.getDOM(html, false))));
+			for (int k = 0; k < 3; k++) {
+				assertTrue(Arrays.equals(expected, engine.evaluate(d)));
+			}
+			engine.setParallelMatching(null, 8);
+			assertTrue(Arrays.equals(expected, engine.evaluate(d)));
+		} finally {
+			pool.shutdown();
+		}
+		assertTrue(expected[1]);
+		assertTrue(expected[2]);
+		assertTrue(expected[3]);
+		assertFalse(expected[4]);
+		assertFalse(expected[5]);
+	}
+	
+	public void testBudgetedEvaluation() {
+		StringBuilder sb = new StringBuilder("<html><body>");
+		for (int i = 0; i < 500; i++) {
+			sb.append("<div id=\"d").append(i).append("\"><a href=\"/p").append(i)
+				.append("\">").append(i).append("</a></div>");
+		}
+		Document d = Doc.getDOM(sb.append("</body></html>").toString(), false);
+		String[] paths = {
+				"/html/body/div[@id=\"d0\"]",
+				"/html/body/div/a[@href=\"/p499\"]",
+				"/html/body/span",
+				"/html/["
+		};
+		XPathEngineImpl engine = new XPathEngineImpl();
+		engine.setXPaths(paths);
+		boolean[] expected = engine.evaluate(d);
+		
+		BoundedResult full = engine.evaluate(d, EvaluationBudget.UNLIMITED, "full");
+		assertTrue(full.isComplete());
+		for (int i = 0; i < paths.length; i++) {
+			assertEquals(paths[i], expected[i], full.matches(i));
+		}
+		assertEquals(0, engine.getBudgetViolationCount());
+		
+		BoundedResult partial = engine.evaluate(d, EvaluationBudget.ofNodes(100), "partial");
+		assertTrue(partial.isDecided(0));
+		assertTrue(partial.matches(0));
+		assertFalse(partial.isDecided(1));
+		assertFalse(partial.matches(1));
+		assertFalse(partial.isDecided(2));
+		// invalid XPaths are decided without evaluation
+		assertTrue(partial.isDecided(3));
+		assertEquals(2, partial.getUndecidedCount());
+		assertTrue(partial.getNodesVisited() <= 101);
+		
+		BoundedResult timedOut = engine.evaluate(d, 
+				EvaluationBudget.ofTime(0, TimeUnit.NANOSECONDS), "timed");
+		assertEquals(3, timedOut.getUndecidedCount());
+		
+		List<BudgetViolation> violations = engine.getBudgetViolations();
+		assertEquals(2, violations.size());
+		assertEquals(2, engine.getBudgetViolationCount());
+		assertEquals(5, engine.getUndecidedCount());
+		assertEquals("partial", violations.get(0).getDocumentId());
+		assertTrue(Arrays.equals(new int[] { 1, 2 }, violations.get(0).getUndecided()));
+		assertEquals("timed", violations.get(1).getDocumentId());
+		
+		// the engine is left usable after a budget is exceeded
+		boolean[] after = engine.evaluate(d);
+		assertTrue(Arrays.equals(expected, after));
+		assertTrue(engine.evaluate(d, EvaluationBudget.ofNodes(1000000)).isComplete());
+	}
+	
+	public void testFlightRecorderEvents() throws IOException {
+		String[] paths = { "/html/body/div[@id=\"d1\"]", "/html/body/span", "/html/[" };
+		Path file = Files.createTempFile("engine", ".jfr");
+		try (Recording recording = new Recording()) {
+			for (String name : new String[] { "xpathengine.Parse", "xpathengine.Hash",
+					"xpathengine.Compile", "xpathengine.Evaluate" }) {
+				recording.enable(name).withThreshold(Duration.ZERO);
+			}
+			recording.start();
+			String html = "<html><body><div id=\"d0\"/><div id=\"d1\"/></body></html>";
+			Document d = Doc.getDOM(html, false);
+			Doc.getDocHash(d);
+			XPathEngineImpl engine = new XPathEngineImpl();
+			engine.setXPaths(paths);
+			engine.evaluate(d);
+			recording.stop();
+			recording.dump(file);
+			
+			List<RecordedEvent> events = new ArrayList<>();
+			for (RecordedEvent e : RecordingFile.readAllEvents(file)) {
+				if (e.getEventType().getName().startsWith("xpathengine.")) {
+					events.add(e);
+				}
+			}
+			int compiled = 0;
+			for (RecordedEvent e : events) {
+				switch (e.getEventType().getName()) {
+				case "xpathengine.Parse":
+					assertEquals(html.length(), e.getLong("documentSize"));
+					assertFalse(e.getBoolean("xml"));
+					break;
+				case "xpathengine.Hash":
+					assertTrue(e.getLong("documentSize") > 0);
+					break;
+				case "xpathengine.Compile":
+					assertEquals(!e.getString("query").equals(paths[2]), e.getBoolean("valid"));
+					compiled++;
+					break;
+				case "xpathengine.Evaluate":
+					assertEquals(3, e.getInt("queryCount"));
+					assertEquals(1, e.getInt("matches"));
+					assertTrue(e.getLong("nodesVisited") > 0);
+					assertTrue(e.getLong("predicatesEvaluated") > 0);
+					break;
+				default:
+				}
+			}
+			assertEquals(3, compiled);
+			assertEquals(6, events.size());
+		} finally {
+			Files.delete(file);
+		}
+	}
+	
+	public void testQueryMetrics() throws Exception {
+		String[] paths = { 
+				"/html/body/div[@id=\"d1\"]",
+				"/html/body/div/a[contains(text(),\"9\")]",
+				"/html/body/span",
+				"/html/["
+		};
+		StringBuilder sb = new StringBuilder("<html><body>");
+		for (int i = 0; i < 100; i++) {
+			sb.append("<div id=\"d").append(i).append("\"><a>").append(i).append("</a></div>");
+		}
+		Document d = Doc.getDOM(sb.append("</body></html>").toString(), false);
+		Document other = Doc.getDOM("<html><body><div id=\"d1\"/></body></html>", false);
+		XPathEngineImpl engine = new XPathEngineImpl();
+		engine.setXPaths(paths);
+		assertNull(engine.getMetrics());
+		engine.setMetricsEnabled(true);
+		EngineMetrics metrics = engine.getMetrics();
+		
+		// recorded per thread, and summed in the snapshot
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(() -> {
+				for (int k = 0; k < 10; k++) {
+					engine.evaluate(d);
+					engine.evaluate(other);
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		PackedDocument packed = PackedDocument.pack(d);
+		engine.evaluate(packed);
+		
+		MetricsSnapshot snapshot = metrics.snapshot();
+		assertEquals(81, snapshot.getDocumentsEvaluated());
+		// counters of the ended threads are kept once folded
+		assertEquals(81, metrics.snapshot().getDocumentsEvaluated());
+		assertEquals(81, metrics.query(0).getEvaluations());
+		assertEquals(4, snapshot.getQueryCount());
+		QueryMetrics first = snapshot.getQuery(0);
+		assertEquals(paths[0], first.getXPath());
+		assertEquals(81, first.getEvaluations());
+		assertEquals(81, first.getMatches());
+		assertEquals(1.0, first.getMatchRate());
+		long[] histogram = first.getHistogram();
+		assertEquals(81, Arrays.stream(histogram).sum());
+		assertTrue(first.getLatencyPercentile(50) <= first.getLatencyPercentile(99));
+		assertTrue(first.getLatencyPercentile(99) > 0);
+		QueryMetrics second = snapshot.getQuery(1);
+		assertEquals(41, second.getMatches());
+		assertTrue(second.getNodesVisited() > first.getNodesVisited());
+		assertEquals(0, snapshot.getQuery(2).getMatches());
+		assertEquals(0.0, snapshot.getQuery(3).getMatchRate());
+		assertEquals(2, snapshot.getTopQueries(2).length);
+		assertTrue(snapshot.getTopQueries(4)[0].getTotalNanos() 
+				>= snapshot.getTopQueries(4)[1].getTotalNanos());
+		assertTrue(snapshot.getThroughput() > 0);
+		
+		// read over JMX
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName("xpathengine:type=EngineMetrics,name=test");
+		server.registerMBean(metrics, name);
+		try {
+			assertEquals(81L, server.getAttribute(name, "DocumentsEvaluated"));
+			assertEquals(4, server.getAttribute(name, "QueryCount"));
+			String[] top = (String[]) server.invoke(name, "topQueries", 
+					new Object[] { 1 }, new String[] { "int" });
+			assertEquals(1, top.length);
+		} finally {
+			server.unregisterMBean(name);
+		}
+		
+		// restarted when XPaths are set, and dropped when disabled
+		engine.setXPaths(new String[] { "/html" });
+		engine.evaluate(d);
+		assertSame(metrics, engine.getMetrics());
+		assertEquals(1, metrics.snapshot().getDocumentsEvaluated());
+		assertEquals(1, metrics.query(0).getMatches());
+		engine.setMetricsEnabled(false);
+		assertNull(engine.getMetrics());
+	}
+	
+	public void testMatchCollectorsSameAsArray() {
+		String[] html = {
+				"<html><body><div id=\"x\"><p>hello</p></div></body></html>",
+				"<html><body><span>other</span></body></html>"
+		};
+		String[] paths = new String[200];
+		for (int i = 0; i < paths.length; i++) {
+			paths[i] = i % 50 == 3 ? "/html/body/div[@id=\"x\"]/p"
+					: i % 70 == 5 ? "/html/body/span" : "/html/body/div[@id=\"y" + i + "\"]";
+		}
+		paths[199] = "/html/[";
+		XPathEngineImpl engine = new XPathEngineImpl();
+		engine.setXPaths(paths);
+		MatchList list = new MatchList(1);
+		MatchBitSet bits = new MatchBitSet();
+		MatchList packedList = new MatchList();
+		// collectors are reused from document to document
+		for (String h : html) {
+			Document d = Doc.getDOM(h, false);
+			boolean[] expected = engine.evaluate(d);
+			engine.evaluate(d, list);
+			engine.evaluate(d, bits);
+			PackedDocument packed = PackedDocument.pack(d);
+			engine.evaluate(packed, packedList);
+			
+			int count = 0;
+			for (int i = 0; i < paths.length; i++) {
+				assertEquals(paths[i], expected[i], bits.get(i));
+				assertEquals(paths[i], expected[i], list.contains(i));
+				assertEquals(paths[i], expected[i], packedList.contains(i));
+				if (expected[i]) {
+					assertEquals(i, list.get(count));
+					count++;
+				}
+			}
+			assertTrue(count > 0);
+			assertEquals(count, list.size());
+			assertEquals(count, bits.cardinality());
+			assertTrue(Arrays.equals(list.toArray(), bits.toArray()));
+			assertTrue(Arrays.equals(list.toArray(), packedList.toArray()));
+			int k = 0;
+			for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+				assertEquals(list.get(k++), i);
+			}
+			assertEquals(count, k);
+		}
+	}
+	
+	public void testPlannerSameAsTopDown() {
+		Document doc = (Document) loadDOM("xml/deep.xml");
+		
+		String[] paths = {
+				"/a/b/c",
+				"/a[b]",
+				"/a[nothing]",
+				"/a/b[@att=\"123\"]/c",
+				"/d/e[f/foo]/f/bar[text()=\"else\"]",
+				"/does/not/exist"
+		};
+		XPathEngineImpl engine = new XPathEngineImpl();
+		engine.setXPaths(paths);
+		boolean[] planned = engine.evaluate(doc);
+		engine.setPlannerEnabled(false);
+		boolean[] topDown = engine.evaluate(doc);
+		for (int i = 0; i < paths.length; i++) {
+			assertEquals(paths[i], topDown[i], planned[i]);
+		}
+	}
+	
+	public void testPackedSameAsDOM() {
+		String[] paths = {
+				"/a/b/c",
+				"/a/b/c[text()=\"string with quote in c\"]",
+				"/a/b[@att=\"123\"]",
+				"/a/b[@att=\"124\"]",
+				"/a[@abc=\"xyz\"][@att2=\"cis555\"]/b",
+				"/a[b]",
+				"/d/e[f/foo]/f/bar[text()=\"else\"]",
+				"/d/e/f[foo[contains(text(),\"some\")]][bar]",
+				"/d/e/f[foo[contains(text(),\"other\")]]",
+				"/html/body/p/a[@href=\"http://crawltest.cis.upenn.edu/\"]",
+				"/html/body/p/a[text()=\"crawltest\"]",
+				"/html/body/a",
+				"/does/not/exist"
+		};
+		XPathEngineImpl engine = new XPathEngineImpl();
+		engine.setXPaths(paths);
+		String[] files = { "xml/deep.xml", "html/nested.html" };
+		for (String file : files) {
+			Document doc = (Document) loadDOM(file);
+			PackedDocument packed = PackedDocument.pack(doc);
+			boolean[] expected = engine.evaluate(doc);
+			boolean[] actual = engine.evaluate(packed);
+			for (int i = 0; i < paths.length; i++) {
+				assertEquals(file + " " + paths[i], expected[i], actual[i]);
+			}
+		}
+	}
+	
+	public void testSnapshotSameAsSetXPaths() throws IOException {
+		String[] paths = {
+				"/a/b/c",
+				"/a/b/c[text()=\"string with quote in c\"]",
+				"/a/b[@att=\"123\"]",
+				"/a/b[@att=\"123\"]/c",
+				"/a[@abc=\"xyz\"][@att2=\"cis555\"]/b",
+				"/a[b]",
+				"/d/e[f/foo]/f/bar[text()=\"else\"]",
+				"/d/e/f[foo[contains(text(),\"some\")]][bar]",
+				"/d/e/f[foo[contains(text(),\"some\")]]",
+				"/html/body/p/a[@href=\"http://crawltest.cis.upenn.edu/\"]",
+				"/html/body/p/a[text()=\"crawltest\"]",
+				"/html/body/a",
+				"/invalid/[",
+				"/does/not/exist"
+		};
+		XPathEngineImpl engine = new XPathEngineImpl();
+		engine.setXPaths(paths);
+		Path file = Files.createTempFile("queries", ".snapshot");
+		try {
+			engine.saveSnapshot(file);
+			XPathEngineImpl loaded = new XPathEngineImpl();
+			loaded.loadSnapshot(file);
+			assertEquals(engine.getSharedPredicateCount(), loaded.getSharedPredicateCount());
+			for (int i = 0; i < paths.length; i++) {
+				assertEquals(paths[i], engine.isValid(i), loaded.isValid(i));
+			}
+			for (String name : new String[] { "xml/deep.xml", "html/nested.html" }) {
+				Document doc = (Document) loadDOM(name);
+				boolean[] expected = engine.evaluate(doc);
+				assertTrue(name, Arrays.equals(expected, loaded.evaluate(doc)));
+				PackedDocument packed = PackedDocument.pack(doc);
+				assertTrue(name, Arrays.equals(expected, loaded.evaluate(packed)));
+			}
+			
+			// files that are not snapshots of this version are rejected
+			ByteBuffer header = ByteBuffer.wrap(Files.readAllBytes(file));
+			header.putInt(4, header.getInt(4) + 1);
+			Files.write(file, header.array());
+			try {
+				loaded.loadSnapshot(file);
+				fail("loaded a snapshot of another version");
+			} catch (IOException e) {
+			}
+			header.putInt(4, header.getInt(4) - 1);
+			Files.write(file, Arrays.copyOf(header.array(), header.capacity() / 2));
+			try {
+				loaded.loadSnapshot(file);
+				fail("loaded a truncated snapshot");
+			} catch (IOException e) {
+			}
+		} finally {
+			Files.delete(file);
+		}
+	}
+	
+	public void testPackedCopy() {
+		Document doc = (Document) loadDOM("xml/deep.xml");
+		PackedDocument packed = PackedDocument.pack(doc);
+		// document node, and elements a to f, foo and bar
+		assertEquals(9, packed.getNodeCount());
+		
+		// encoding can be re-read from a copy of the buffer
+		PackedDocument copy = new PackedDocument(ByteBuffer.wrap(packed.getBytes()));
+		assertEquals(packed.getNodeCount(), copy.getNodeCount());
+		assertEquals(packed.getByteSize(), copy.getByteSize());
+	}
+	
+	public void testPackedCorrupt() {
+		Document doc = (Document) loadDOM("xml/deep.xml");
+		byte[] bytes = PackedDocument.pack(doc).getBytes();
+		// header is 7 ints, node 1 starts after the 7 ints of node 0
+		int node = 7 * 4 + 7 * 4;
+		// name, parent, first child, next sibling, text of node 1
+		int[][] corruptions = {
+				{ node, 1000 },
+				{ node + 4, 1 },
+				{ node + 8, 1 },
+				{ node + 12, 1000 },
+				{ node + 16, 1000 },
+				// attribute count of node 1, and the node count
+				{ node + 24, 1000 },
+				{ 8, Integer.MAX_VALUE }
+		};
+		for (int[] c : corruptions) {
+			ByteBuffer b = ByteBuffer.wrap(bytes.clone()).order(ByteOrder.LITTLE_ENDIAN);
+			b.putInt(c[0], c[1]);
+			try {
+				new PackedDocument(b);
+				fail("corrupt int at " + c[0] + " should be rejected");
+			} catch (IllegalArgumentException e) {
+			}
+		}
+		// the string table, after the node and attribute tables, must stay
+		// within the pooled bytes
+		ByteBuffer b = ByteBuffer.wrap(bytes.clone()).order(ByteOrder.LITTLE_ENDIAN);
+		int strings = 7 * 4 + b.getInt(8) * 7 * 4 + b.getInt(12) * 2 * 4;
+		b.putInt(strings + 4, bytes.length);
+		try {
+			new PackedDocument(b);
+			fail("string beyond the pooled bytes should be rejected");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+	
+	public void testPackedWriteAndMap() throws IOException {
+		String[] paths = {
+				"/html/body/p/a[@href=\"http://crawltest.cis.upenn.edu/\"]",
+				"/html/body/p[a[contains(text(),\"crawl\")]]",
+				"/html/body/a"
+		};
+		XPathEngineImpl engine = new XPathEngineImpl();
+		engine.setXPaths(paths);
+		
+		Path dir = Files.createTempDirectory("packed");
+		Doc doc = new Doc(loadFile("html/nested.html"), Doc.DocType.HTML, 
+				"http://crawltest.cis.upenn.edu/nested.html");
+		PackedDocumentStore store = new PackedDocumentStore(dir);
+		assertFalse(store.contains(doc));
+		PackedDocument stored = store.get(doc);
+		assertTrue(store.contains(doc));
+		PackedDocument mapped = store.get(doc);
+		assertEquals(stored.getByteSize(), Files.size(store.getPath(doc)));
+		
+		boolean[] expected = engine.evaluate(Doc.getDOM(doc.getDocumentString(), false));
+		boolean[] actual = engine.evaluate(mapped);
+		for (int i = 0; i < paths.length; i++) {
+			assertEquals(paths[i], expected[i], actual[i]);
+		}
+		assertTrue(actual[0]);
+		assertTrue(actual[1]);
+		assertFalse(actual[2]);
+		
+		store.remove(doc);
+		assertFalse(store.contains(doc));
+		Files.delete(dir);
+	}
+	
+	public void testIncrementalSameAsDOM() {
+		String[] paths = {
+				"/a/b/c",
+				"/a/b/c[text()=\"string with quote in c\"]",
+				"/a/b[@att=\"123\"]",
+				"/a[b]",
+				"/d/e[f/foo]/f/bar[text()=\"else\"]",
+				"/d/e/f[foo[contains(text(),\"some\")]][bar]",
+				"/d/e/f[bar]/foo",
+				"/does/not/exist"
+		};
+		XPathEngineImpl engine = new XPathEngineImpl();
+		engine.setXPaths(paths);
+		boolean[] expected = engine.evaluate((Document) loadDOM("xml/deep.xml"));
+		
+		byte[] bytes = loadFile("xml/deep.xml").getBytes(StandardCharsets.UTF_8);
+		final int[] decidedAt = new int[paths.length];
+		final int[] fed = new int[1];
+		IncrementalMatcher matcher = engine.newIncrementalMatcher(true, 
+				StandardCharsets.UTF_8, new IncrementalMatcher.Listener() {
+			public void decided(int i, boolean matches) {
+				decidedAt[i] = fed[0];
+			}
+		});
+		for (int i = 0; i < bytes.length; i += 7) {
+			int len = Math.min(7, bytes.length - i);
+			fed[0] += len;
+			matcher.feed(bytes, i, len);
+		}
+		fed[0]++;
+		boolean[] actual = matcher.finish();
+		for (int i = 0; i < paths.length; i++) {
+			assertEquals(paths[i], expected[i], actual[i]);
+			assertTrue(matcher.isDecided(i));
+		}
+		// matches on the first root element are decided before the second
+		int secondRoot = new String(bytes, StandardCharsets.UTF_8).indexOf("<d>");
+		assertTrue(decidedAt[0] < secondRoot);
+		assertTrue(decidedAt[2] < secondRoot);
+		// bar is parsed after foo, so this match is only found at the end
+		assertTrue(decidedAt[6] > bytes.length);
+		assertTrue(decidedAt[7] > bytes.length);
+		
+		// text nodes are built as by JTidy
+		String[][] cases = {
+				{ "<a>hel<!-- c -->lo</a>", "/a[text()=\"hel\"]", "/a[text()=\"hello\"]", 
+					"/a[text()=\"lo\"]" },
+				{ "<a><![CDATA[x]]></a>", "/a[text()=\"x\"]" },
+				{ "<a>p<![CDATA[x]]>q</a>", "/a[text()=\"p\"]", "/a[text()=\"px\"]" },
+				{ "<a> x \n y <b/> z </a>", "/a[text()=\"x y \"]", "/a[text()=\"x y\"]" },
+				{ "<a><b>x </b>y </a>", "/a/b[text()=\"x\"]", "/a[text()=\"y\"]" },
+				{ "<a>x&#32;&#32;y&#32;</a>", "/a[text()=\"x  y\"]", "/a[text()=\"x y\"]" },
+				{ "<a>x<?pi?> y</a>", "/a[text()=\"x\"]", "/a[contains(text(),\"y\")]" },
+				{ "<a>  <!-- c -->  <b/></a>", "/a[text()=\"\"]", "/a[contains(text(),\"c\")]" }
+		};
+		for (String[] c : cases) {
+			String[] casePaths = Arrays.copyOfRange(c, 1, c.length);
+			engine.setXPaths(casePaths);
+			assertSameIncremental(engine, c[0], true);
+		}
+	}
+	
+	/**
+	 * Checks that feeding a document byte by byte to an incremental matcher
+	 * gives the result of evaluating the document parsed by Doc.getDOM()
+	 */
+	private void assertSameIncremental(XPathEngineImpl engine, String doc, boolean isXML) {
+		boolean[] expected = engine.evaluate(Doc.getDOM(doc, isXML));
+		IncrementalMatcher matcher = engine.newIncrementalMatcher(isXML, 
+				StandardCharsets.UTF_8, null);
+		for (byte b : doc.getBytes(StandardCharsets.UTF_8)) {
+			matcher.feed(new byte[] { b });
+		}
+		boolean[] actual = matcher.finish();
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals(doc + " " + i, expected[i], actual[i]);
+		}
+	}
+	
+	public void testIncrementalHTML() {
+		String[] paths = {
+				"/html/body/p",
+				"/p",
+				"/html/body/div/p[text()=\"two\"]",
+				"/html/body/p/a[@href=\"/q?a&b\"][text()=\"l<ink\"]",
+				"/html/body/p/img[@src=\"a.png\"]"
+		};
+		XPathEngineImpl engine = new XPathEngineImpl();
+		engine.setXPaths(paths);
+		assertSameIncremental(engine, "<p>hello</p>", false);
+		assertSameIncremental(engine, "<div><p>one<p>two</div>", false);
+		assertSameIncremental(engine, "<!DOCTYPE html><HTML><body><p class='x y'>caf\u00e9 "
+				+ "<img src=\"a.png\"><a href=\"/q?a&amp;b\">l&lt;ink</a></p></body></HTML>", 
+				false);
+		
+		// html is only matched once the whole document has been fed
+		IncrementalMatcher matcher = engine.newIncrementalMatcher(false, 
+				StandardCharsets.UTF_8, null);
+		matcher.feed("<p>hello</p>".getBytes(StandardCharsets.UTF_8));
+		assertFalse(matcher.isDecided(0));
+		assertNull(matcher.getDocument());
+		assertTrue(matcher.finish()[0]);
+		assertTrue(matcher.isComplete());
+	}
+	
+	public void testIncrementalLongConstructs() {
+		StringBuilder xml = new StringBuilder("<a><!--");
+		for (int i = 0; i < 20000; i++) {
+			xml.append("- -> ");
+		}
+		xml.append("--><b t='");
+		for (int i = 0; i < 20000; i++) {
+			xml.append("> ");
+		}
+		xml.append("'><![CDATA[");
+		for (int i = 0; i < 20000; i++) {
+			xml.append("]]");
+		}
+		xml.append("]]></b></a>");
+		XPathEngineImpl engine = new XPathEngineImpl();
+		engine.setXPaths(new String[] { "/a/b", "/a/b[text()=\"]]]]\"]" });
+		IncrementalMatcher matcher = engine.newIncrementalMatcher(true, 
+				StandardCharsets.UTF_8, null);
+		byte[] bytes = xml.toString().getBytes(StandardCharsets.UTF_8);
+		// unterminated constructs are not searched again on every chunk
+		long start = System.nanoTime();
+		for (int i = 0; i < bytes.length; i++) {
+			matcher.feed(bytes, i, 1);
+		}
+		boolean[] result = matcher.finish();
+		assertTrue(result[0]);
+		assertFalse(result[1]);
+		assertTrue(System.nanoTime() - start < 5000000000L);
+	}
 }
 
 
@@ -0,0 +1,172 @@
+package workload;
+
+import java.util.Random;
+
+import models.Doc.DocType;
+
+/**
+ * Generates HTML or XML documents from a seed, as a tree with a given depth
+ * and fan-out. Every element has the same number of attributes, with values
+ * drawn from a given number of distinct values, and leaf elements have text
+ * of about a given length. The same seed and settings always produce the
+ * same documents.
+ *
+ * HTML documents nest block elements JTidy keeps as they are within a body,
+ * and XML documents use generated element and attribute names.
+ */
+public class DocumentGenerator {
+
+	private static final String[] HTML_NAMES = { "div", "blockquote", "fieldset", "center" };
+	private static final String[] HTML_ATTRIBUTES = { "id", "class", "title", "lang", "style" };
+	private static final String[] WORDS = {
+			"alpha", "bravo", "charlie", "delta", "echo", "foxtrot", "golf", "hotel",
+			"india", "juliet", "kilo", "lima", "mike", "november", "oscar", "papa",
+			"quebec", "romeo", "sierra", "tango", "uniform", "victor", "whiskey", "yankee"
+	};
+
+	private final Random random;
+	private int depth = 4;
+	private int fanOut = 3;
+	private int attributes = 1;
+	private int attributeCardinality = 10;
+	private int textLength = 20;
+	private int nameCount = 4;
+
+	public DocumentGenerator(long seed) {
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * @param depth
+	 * 		number of element levels below the root
+	 */
+	public void setDepth(int depth) {
+		this.depth = checkNotNegative(depth);
+	}
+
+	/**
+	 * @param fanOut
+	 * 		number of children of each element above the leaves
+	 */
+	public void setFanOut(int fanOut) {
+		this.fanOut = checkNotNegative(fanOut);
+	}
+
+	/**
+	 * @param attributes
+	 * 		number of attributes of each element, at most 5 for HTML
+	 */
+	public void setAttributes(int attributes) {
+		this.attributes = checkNotNegative(attributes);
+	}
+
+	/**
+	 * @param cardinality
+	 * 		number of distinct values of each attribute
+	 */
+	public void setAttributeCardinality(int cardinality) {
+		if (cardinality < 1) {
+			throw new IllegalArgumentException("cardinality must be positive");
+		}
+		this.attributeCardinality = cardinality;
+	}
+
+	/**
+	 * @param textLength
+	 * 		approximate number of characters of text in each leaf, 0 for none
+	 */
+	public void setTextLength(int textLength) {
+		this.textLength = checkNotNegative(textLength);
+	}
+
+	/**
+	 * @param nameCount
+	 * 		number of distinct element names below the root, at most 4 for
+	 * 		HTML
+	 */
+	public void setNameCount(int nameCount) {
+		if (nameCount < 1) {
+			throw new IllegalArgumentException("name count must be positive");
+		}
+		this.nameCount = nameCount;
+	}
+
+	/**
+	 * @return
+	 * 		number of elements below the root of each generated document
+	 */
+	public long getElementCount() {
+		long count = 0;
+		long level = 1;
+		for (int i = 0; i < depth; i++) {
+			level *= fanOut;
+			count += level;
+		}
+		return count;
+	}
+
+	/**
+	 * Generates the next document
+	 * @param type
+	 * 		HTML for an HTML document, XML otherwise
+	 */
+	public String generate(DocType type) {
+		boolean html = type == DocType.HTML;
+		StringBuilder sb = new StringBuilder();
+		if (html) {
+			sb.append("<html><head><title>");
+			appendText(sb, Math.min(textLength, 20));
+			sb.append("</title></head><body>");
+		} else {
+			sb.append("<?xml version=\"1.0\"?><root>");
+		}
+		for (int i = 0; i < fanOut && depth > 0; i++) {
+			appendElement(sb, 1, html);
+		}
+		return sb.append(html ? "</body></html>" : "</root>").toString();
+	}
+
+	private void appendElement(StringBuilder sb, int level, boolean html) {
+		String name = elementName(random.nextInt(html ? Math.min(nameCount, HTML_NAMES.length) 
+				: nameCount), html);
+		sb.append('<').append(name);
+		int count = html ? Math.min(attributes, HTML_ATTRIBUTES.length) : attributes;
+		for (int i = 0; i < count; i++) {
+			sb.append(' ').append(html ? HTML_ATTRIBUTES[i] : "a" + i)
+				.append("=\"v").append(random.nextInt(attributeCardinality)).append('"');
+		}
+		sb.append('>');
+		if (level == depth || fanOut == 0) {
+			appendText(sb, textLength);
+		} else {
+			for (int i = 0; i < fanOut; i++) {
+				appendElement(sb, level + 1, html);
+			}
+		}
+		sb.append("</").append(name).append('>');
+	}
+
+	private static String elementName(int k, boolean html) {
+		return html ? HTML_NAMES[k] : "e" + k;
+	}
+
+	/**
+	 * Appends words until the text is at least the given length
+	 */
+	private void appendText(StringBuilder sb, int length) {
+		int start = sb.length();
+		while (sb.length() - start < length) {
+			if (sb.length() > start) {
+				sb.append(' ');
+			}
+			sb.append(WORDS[random.nextInt(WORDS.length)]);
+		}
+	}
+
+	private static int checkNotNegative(int value) {
+		if (value < 0) {
+			throw new IllegalArgumentException("value must not be negative");
+		}
+		return value;
+	}
+}
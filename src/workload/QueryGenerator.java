@@ -0,0 +1,247 @@
+package workload;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Generates XPaths in the grammar accepted by XPathQuery from a sample
+ * document and a seed. Each query follows a path of elements from the root
+ * of the sample, chosen about uniformly over its elements, with tests on
+ * attributes, text or children of the elements on the path.
+ *
+ * The prefix overlap is the probability that a query continues from a
+ * prefix of steps of an earlier query, and the selectivity is the fraction
+ * of queries that match the sample. Queries that should not match end with
+ * a step whose name does not occur in the sample.
+ */
+public class QueryGenerator {
+
+	private static final String MISSING_NAME = "missing";
+
+	private final Random random;
+	private double prefixOverlap = 0.5;
+	private double selectivity = 0.5;
+	private double testProbability = 0.3;
+
+	public QueryGenerator(long seed) {
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * @param prefixOverlap
+	 * 		probability that a query shares a prefix with an earlier query
+	 */
+	public void setPrefixOverlap(double prefixOverlap) {
+		this.prefixOverlap = checkProbability(prefixOverlap);
+	}
+
+	/**
+	 * @param selectivity
+	 * 		fraction of queries that match the sample document
+	 */
+	public void setSelectivity(double selectivity) {
+		this.selectivity = checkProbability(selectivity);
+	}
+
+	/**
+	 * @param testProbability
+	 * 		probability that a step has a test
+	 */
+	public void setTestProbability(double testProbability) {
+		this.testProbability = checkProbability(testProbability);
+	}
+
+	/**
+	 * Generates queries over a sample document
+	 * @param sample
+	 * 		document the queries are generated from, such as one from a
+	 * 		DocumentGenerator with the settings of the workload
+	 */
+	public String[] generate(Document sample, int count) {
+		Node root = sample.getDocumentElement();
+		if (root == null) {
+			throw new IllegalArgumentException("sample has no root element");
+		}
+		Map<Node, Integer> sizes = new IdentityHashMap<>();
+		Set<String> names = new HashSet<>();
+		countElements(root, sizes, names);
+		String missing = MISSING_NAME;
+		while (names.contains(missing)) {
+			missing += "x";
+		}
+
+		String[] queries = new String[count];
+		// elements and steps of each query generated, for later overlap
+		List<List<Node>> paths = new ArrayList<>(count);
+		List<List<String>> steps = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			List<Node> path = new ArrayList<>();
+			List<String> querySteps = new ArrayList<>();
+			int shared = 0;
+			if (i > 0 && random.nextDouble() < prefixOverlap) {
+				int earlier = random.nextInt(i);
+				List<Node> earlierPath = paths.get(earlier);
+				shared = 1 + random.nextInt(earlierPath.size());
+				path.addAll(earlierPath.subList(0, shared));
+				querySteps.addAll(steps.get(earlier).subList(0, shared));
+			} else {
+				path.add(root);
+				querySteps.add(step(root));
+			}
+			// descend to a random element below the prefix
+			Node n = path.get(path.size() - 1);
+			int target = random.nextInt(sizes.get(n));
+			while (target > 0) {
+				target--;
+				for (Node c = n.getFirstChild(); c != null; c = c.getNextSibling()) {
+					if (c.getNodeType() != Node.ELEMENT_NODE) {
+						continue;
+					}
+					int size = sizes.get(c);
+					if (target < size) {
+						n = c;
+						break;
+					}
+					target -= size;
+				}
+				path.add(n);
+				querySteps.add(step(n));
+			}
+			paths.add(path);
+			steps.add(querySteps);
+
+			StringBuilder sb = new StringBuilder();
+			for (String step : querySteps) {
+				sb.append('/').append(step);
+			}
+			if (random.nextDouble() >= selectivity) {
+				sb.append('/').append(missing);
+			}
+			queries[i] = sb.toString();
+		}
+		return queries;
+	}
+
+	/**
+	 * @return
+	 * 		step matching the element, with a test on it if drawn
+	 */
+	private String step(Node n) {
+		String name = n.getNodeName();
+		if (random.nextDouble() >= testProbability) {
+			return name;
+		}
+		// try test kinds from a random one until one applies to the element
+		int first = random.nextInt(3);
+		for (int k = 0; k < 3; k++) {
+			String test = test(n, (first + k) % 3);
+			if (test != null) {
+				return name + "[" + test + "]";
+			}
+		}
+		return name;
+	}
+
+	/**
+	 * @return
+	 * 		test of the given kind that the element passes, null if there is
+	 * 		none
+	 */
+	private String test(Node n, int kind) {
+		switch (kind) {
+		case 0: {
+			NamedNodeMap atts = n.getAttributes();
+			if (atts == null || atts.getLength() == 0) {
+				return null;
+			}
+			Node att = atts.item(random.nextInt(atts.getLength()));
+			if (!isPlain(att.getNodeValue())) {
+				return null;
+			}
+			return "@" + att.getNodeName() + "=\"" + att.getNodeValue() + "\"";
+		}
+		case 1: {
+			String text = getTextVal(n);
+			if (text == null || !isPlain(text)) {
+				return null;
+			}
+			String[] words = text.trim().split(" +");
+			if (words.length > 1 && random.nextBoolean()) {
+				return "contains(text(),\"" + words[random.nextInt(words.length)] + "\")";
+			}
+			return "text()=\"" + text + "\"";
+		}
+		default:
+			for (Node c = n.getFirstChild(); c != null; c = c.getNextSibling()) {
+				if (c.getNodeType() == Node.ELEMENT_NODE) {
+					return c.getNodeName();
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * @return
+	 * 		value of the first text child, as tested by text(), or null if
+	 * 		there is none
+	 */
+	private static String getTextVal(Node n) {
+		for (Node c = n.getFirstChild(); c != null; c = c.getNextSibling()) {
+			if (c.getNodeType() == Node.TEXT_NODE) {
+				return c.getNodeValue();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return
+	 * 		whether a value can be written as a literal of a test
+	 */
+	private static boolean isPlain(String value) {
+		if (value.isEmpty()) {
+			return false;
+		}
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (!Character.isLetterOrDigit(c) && c != ' ') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return
+	 * 		number of elements in the subtree of an element, stored for it and
+	 * 		its descendants, whose names are added to the set
+	 */
+	private static int countElements(Node n, Map<Node, Integer> sizes, Set<String> names) {
+		int size = 1;
+		names.add(n.getNodeName());
+		for (Node c = n.getFirstChild(); c != null; c = c.getNextSibling()) {
+			if (c.getNodeType() == Node.ELEMENT_NODE) {
+				size += countElements(c, sizes, names);
+			}
+		}
+		sizes.put(n, size);
+		return size;
+	}
+
+	private static double checkProbability(double p) {
+		if (!(p >= 0 && p <= 1)) {
+			throw new IllegalArgumentException("probability must be between 0 and 1");
+		}
+		return p;
+	}
+}
@@ -0,0 +1,352 @@
+package workload;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.w3c.dom.Document;
+
+import models.Doc;
+import models.Doc.DocType;
+import xpathengine.XPathEngineImpl;
+
+/**
+ * Replays a captured corpus through Doc.getDOM() and XPathEngine.evaluate()
+ * on a number of threads, and reports throughput, latency percentiles of
+ * each stage and the allocation rate. The corpus is a directory of .html,
+ * .htm and .xml files, searched recursively, and the queries are a file
+ * with an XPath on each line, skipping blank lines and lines starting
+ * with #.
+ * 
+ * Each pass replays every document once, and documents are taken in turn
+ * by the threads. A first pass warms up the JIT and is not reported.
+ * Documents that fail to parse or evaluate are counted, and left out of
+ * the throughput and latencies.
+ * 
+ * Usage: ReplayHarness corpus-dir query-file [threads] [passes]
+ */
+public class ReplayHarness {
+	
+	/**
+	 * Results of a replay. Latencies are in nanoseconds, and bytes are
+	 * UTF-8 encoded.
+	 */
+	public static class Report {
+		private final int threads;
+		private final long documents;
+		private final long failures;
+		private final long bytes;
+		private final long elapsedNanos;
+		private final long[] parseNanos;
+		private final long[] evaluateNanos;
+		private final long allocatedBytes;
+		private final long matches;
+		
+		Report(int threads, long failures, long bytes, long elapsedNanos, long[] parseNanos, 
+				long[] evaluateNanos, long allocatedBytes, long matches) {
+			this.threads = threads;
+			this.documents = parseNanos.length;
+			this.failures = failures;
+			this.bytes = bytes;
+			this.elapsedNanos = elapsedNanos;
+			this.parseNanos = parseNanos;
+			this.evaluateNanos = evaluateNanos;
+			this.allocatedBytes = allocatedBytes;
+			this.matches = matches;
+			Arrays.sort(parseNanos);
+			Arrays.sort(evaluateNanos);
+		}
+		
+		/**
+		 * @return
+		 * 		number of documents parsed and evaluated
+		 */
+		public long getDocuments() {
+			return documents;
+		}
+		
+		/**
+		 * @return
+		 * 		number of documents that failed to parse or evaluate
+		 */
+		public long getFailures() {
+			return failures;
+		}
+		
+		/**
+		 * @return
+		 * 		UTF-8 bytes of the documents parsed and evaluated
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+		
+		public long getElapsedNanos() {
+			return elapsedNanos;
+		}
+		
+		public double getThroughput() {
+			return elapsedNanos == 0 ? 0 : documents * 1e9 / elapsedNanos;
+		}
+		
+		/**
+		 * @param percentile
+		 * 		between 0 and 100
+		 */
+		public long getParsePercentile(double percentile) {
+			return percentile(parseNanos, percentile);
+		}
+		
+		/**
+		 * @param percentile
+		 * 		between 0 and 100
+		 */
+		public long getEvaluatePercentile(double percentile) {
+			return percentile(evaluateNanos, percentile);
+		}
+		
+		/**
+		 * @return
+		 * 		bytes allocated by the replaying threads, -1 if the JVM does
+		 * 		not measure allocation
+		 */
+		public long getAllocatedBytes() {
+			return allocatedBytes;
+		}
+		
+		/**
+		 * @return
+		 * 		bytes allocated per second of wall time, -1 if unknown
+		 */
+		public double getAllocationRate() {
+			if (allocatedBytes < 0 || elapsedNanos == 0) {
+				return -1;
+			}
+			return allocatedBytes * 1e9 / elapsedNanos;
+		}
+		
+		/**
+		 * @return
+		 * 		number of query matches over all documents replayed
+		 */
+		public long getMatches() {
+			return matches;
+		}
+		
+		private static long percentile(long[] sorted, double percentile) {
+			if (sorted.length == 0) {
+				return 0;
+			}
+			int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+			return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+		}
+		
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(String.format(Locale.ROOT, 
+					"%d documents on %d threads in %.2f s: %.1f docs/s, %.2f MB/s%n",
+					documents, threads, elapsedNanos / 1e9, getThroughput(), 
+					bytes / 1e6 / (elapsedNanos / 1e9)));
+			if (failures > 0) {
+				sb.append(failures).append(" documents failed").append(System.lineSeparator());
+			}
+			sb.append(String.format(Locale.ROOT, "%-10s %10s %10s %10s %10s%n", 
+					"stage (us)", "p50", "p99", "p99.9", "max"));
+			appendStage(sb, "parse", parseNanos);
+			appendStage(sb, "evaluate", evaluateNanos);
+			if (allocatedBytes >= 0) {
+				sb.append(String.format(Locale.ROOT, 
+						"allocated %.1f MB/s, %.1f KB/doc%n", getAllocationRate() / 1e6, 
+						documents == 0 ? 0 : allocatedBytes / 1e3 / documents));
+			}
+			sb.append(matches).append(" matches").append(System.lineSeparator());
+			return sb.toString();
+		}
+		
+		private static void appendStage(StringBuilder sb, String stage, long[] nanos) {
+			sb.append(String.format(Locale.ROOT, "%-10s %10.1f %10.1f %10.1f %10.1f%n", 
+					stage, percentile(nanos, 50) / 1e3, percentile(nanos, 99) / 1e3, 
+					percentile(nanos, 99.9) / 1e3, percentile(nanos, 100) / 1e3));
+		}
+	}
+	
+	private final List<Doc> corpus;
+	private final XPathEngineImpl engine;
+	
+	public ReplayHarness(List<Doc> corpus, String[] xpaths) {
+		this.corpus = corpus;
+		this.engine = new XPathEngineImpl();
+		engine.setXPaths(xpaths);
+	}
+	
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: ReplayHarness corpus-dir query-file [threads] [passes]");
+			System.exit(1);
+		}
+		List<Doc> corpus = loadCorpus(Paths.get(args[0]));
+		String[] xpaths = loadQueries(Paths.get(args[1]));
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) 
+				: Runtime.getRuntime().availableProcessors();
+		int passes = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+		System.out.println(corpus.size() + " documents, " + xpaths.length + " queries");
+		ReplayHarness harness = new ReplayHarness(corpus, xpaths);
+		harness.run(threads, 1);
+		System.out.print(harness.run(threads, passes));
+	}
+	
+	/**
+	 * Loads the .html, .htm and .xml files under a directory, with their
+	 * paths as ids
+	 */
+	public static List<Doc> loadCorpus(Path dir) throws IOException {
+		List<Path> files;
+		try (Stream<Path> walk = Files.walk(dir)) {
+			files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+		}
+		List<Doc> corpus = new ArrayList<>();
+		for (Path file : files) {
+			String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+			DocType type;
+			if (name.endsWith(".xml")) {
+				type = DocType.XML;
+			} else if (name.endsWith(".html") || name.endsWith(".htm")) {
+				type = DocType.HTML;
+			} else {
+				continue;
+			}
+			String content = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+			corpus.add(new Doc(content, type, file.toString()));
+		}
+		return corpus;
+	}
+	
+	/**
+	 * Loads an XPath from each line of a file, skipping blank lines and
+	 * lines starting with #
+	 */
+	public static String[] loadQueries(Path file) throws IOException {
+		List<String> queries = new ArrayList<>();
+		for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+			String query = line.trim();
+			if (!query.isEmpty() && !query.startsWith("#")) {
+				queries.add(query);
+			}
+		}
+		return queries.toArray(new String[queries.size()]);
+	}
+	
+	/**
+	 * Replays the corpus
+	 * @param threads
+	 * 		number of threads parsing and evaluating documents
+	 * @param passes
+	 * 		number of times each document is replayed
+	 */
+	public Report run(int threads, int passes) throws InterruptedException {
+		int total = corpus.size() * passes;
+		long[] parseNanos = new long[total];
+		long[] evaluateNanos = new long[total];
+		boolean[] failed = new boolean[total];
+		long[] matches = new long[threads];
+		long[] allocated = new long[threads];
+		// measured before the replay, so that encoding is not timed
+		int[] sizes = new int[corpus.size()];
+		for (int i = 0; i < sizes.length; i++) {
+			String content = corpus.get(i).getDocumentString();
+			sizes[i] = content == null ? 0 : content.getBytes(StandardCharsets.UTF_8).length;
+		}
+		AtomicInteger next = new AtomicInteger();
+		com.sun.management.ThreadMXBean allocation = allocationBean();
+		
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			int worker = t;
+			workers[t] = new Thread(() -> {
+				long allocatedBefore = allocatedBytes(allocation);
+				int k;
+				while ((k = next.getAndIncrement()) < total) {
+					Doc doc = corpus.get(k % corpus.size());
+					boolean[] result;
+					try {
+						long start = System.nanoTime();
+						Document d = Doc.getDOM(doc.getDocumentString(), doc.isXML());
+						long parsed = System.nanoTime();
+						result = engine.evaluate(d);
+						evaluateNanos[k] = System.nanoTime() - parsed;
+						parseNanos[k] = parsed - start;
+					} catch (Throwable e) {
+						failed[k] = true;
+						continue;
+					}
+					for (boolean matched : result) {
+						if (matched) {
+							matches[worker]++;
+						}
+					}
+				}
+				allocated[worker] = allocatedBefore < 0 ? -1 
+						: allocatedBytes(allocation) - allocatedBefore;
+			}, "replay-" + t);
+		}
+		long start = System.nanoTime();
+		for (Thread w : workers) {
+			w.start();
+		}
+		for (Thread w : workers) {
+			w.join();
+		}
+		long elapsed = System.nanoTime() - start;
+		
+		long bytes = 0;
+		int replayed = 0;
+		for (int k = 0; k < total; k++) {
+			if (!failed[k]) {
+				bytes += sizes[k % sizes.length];
+				parseNanos[replayed] = parseNanos[k];
+				evaluateNanos[replayed] = evaluateNanos[k];
+				replayed++;
+			}
+		}
+		long allocatedTotal = 0;
+		for (long a : allocated) {
+			allocatedTotal = a < 0 || allocatedTotal < 0 ? -1 : allocatedTotal + a;
+		}
+		return new Report(threads, total - replayed, bytes, elapsed, 
+				Arrays.copyOf(parseNanos, replayed), Arrays.copyOf(evaluateNanos, replayed), 
+				allocatedTotal, Arrays.stream(matches).sum());
+	}
+	
+	/**
+	 * @return
+	 * 		thread bean measuring allocation, null if not supported
+	 */
+	private static com.sun.management.ThreadMXBean allocationBean() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+			return null;
+		}
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+		return threads.isThreadAllocatedMemorySupported() 
+				&& threads.isThreadAllocatedMemoryEnabled() ? threads : null;
+	}
+	
+	/**
+	 * @return
+	 * 		bytes allocated by the calling thread, -1 if not measured
+	 */
+	private static long allocatedBytes(com.sun.management.ThreadMXBean bean) {
+		return bean == null ? -1 : bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+}
@@ -0,0 +1,107 @@
+package xpathengine;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Attribute lookups of a single DOM document, from element name, attribute
+ * name and value to the elements holding the value, answered from the
+ * attribute postings of a DocumentIndex. The index is built lazily: the
+ * first lookups are answered from the DOM directly, and the index is only
+ * built once a document has had enough attribute tests run against it to
+ * pay for walking all of its elements once. The same index is used by the
+ * engine for queries planned bottom-up.
+ * The index is not updated if the document is modified afterwards.
+ */
+public class AttributeIndex {
+	
+	/**
+	 * Number of lookups answered from the DOM before the index is built
+	 */
+	static final int BUILD_THRESHOLD = 64;
+	
+	private Document document;
+	private DocumentIndex index = null;
+	private int lookups = 0;
+	
+	public AttributeIndex(Document document) {
+		this.document = document;
+	}
+	
+	/**
+	 * Discards the index, so that the object can be reused for another
+	 * document
+	 */
+	void reset(Document document) {
+		this.document = document;
+		this.index = null;
+		this.lookups = 0;
+	}
+	
+	public Document getDocument() {
+		return document;
+	}
+	
+	public boolean isBuilt() {
+		return index != null;
+	}
+	
+	/**
+	 * @return
+	 * 		index of the document, built if it is not built yet
+	 */
+	DocumentIndex index() {
+		if (index == null) {
+			index = new DocumentIndex(document);
+		}
+		return index;
+	}
+	
+	/**
+	 * Checks whether an element has an attribute with the given value. The
+	 * element's own attributes are checked, which is cheaper than a lookup,
+	 * but the lookup counts towards building the index.
+	 * @param n
+	 * 		element of the indexed document
+	 */
+	public boolean hasAttribute(Node n, String attName, String value) {
+		if (index == null && ++lookups > BUILD_THRESHOLD) {
+			index();
+		}
+		return hasAttributeValue(n, attName, value);
+	}
+	
+	/**
+	 * Gets the elements with the given name and attribute value, building
+	 * the index if it is not built yet
+	 * @return
+	 * 		empty list if no element matches
+	 */
+	public List<Node> getElements(String element, String attName, String value) {
+		List<Node> hits = index().getAttributeHits(attName, value);
+		List<Node> elements = new ArrayList<>(hits.size());
+		for (Node n : hits) {
+			if (n.getNodeName().equals(element)) {
+				elements.add(n);
+			}
+		}
+		return elements;
+	}
+	
+	/**
+	 * Checks an attribute value on the DOM, without the index
+	 */
+	static boolean hasAttributeValue(Node n, String attName, String value) {
+		NamedNodeMap attribs = n.getAttributes();
+		Node valNode = attribs.getNamedItem(attName);
+		// attribute does not exist
+		if (valNode == null) {
+			return false;
+		}
+		return valNode.getNodeValue().equals(value);
+	}
+}
@@ -0,0 +1,294 @@
+package xpathengine;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+import xpathengine.Token.TestType;
+import xpathengine.Token.Type;
+
+/**
+ * Evaluates a tokenized XPath query starting from the nodes found in a
+ * DocumentIndex, instead of walking down from the document root.
+ * An anchor is an attribute or text() test on a step of the query. The
+ * index hits of the most selective anchor are verified upwards against
+ * the steps above the anchor, and downwards against the rest of the query.
+ */
+public class BottomUpEvaluator {
+	
+	/**
+	 * Indexable test on a step of the query
+	 */
+	private static class Anchor {
+		int step;
+		// name of the element of the step
+		String element;
+		TestType testType;
+		String attName;
+		String literal;
+		
+		List<Node> lookup(DocumentIndex index) {
+			if (testType == TestType.ATTNAME) {
+				return index.getAttributeHits(attName, literal);
+			}
+			return index.getTextHits(literal);
+		}
+	}
+
+	private final Token[] tokens;
+	// token positions of the nodenames on the main path of the query
+	private final int[] steps;
+	private final List<Anchor> anchors;
+	
+	private BottomUpEvaluator(Token[] tokens, int[] steps, List<Anchor> anchors) {
+		this.tokens = tokens;
+		this.steps = steps;
+		this.anchors = anchors;
+	}
+	
+	/**
+	 * Analyses a tokenized query for tests that can be looked up in an index
+	 * @param tokens
+	 * 		checked tokens, as returned by XPathQuery.getCheckedTokens()
+	 * @return
+	 * 		null if the query has no indexable test
+	 */
+	public static BottomUpEvaluator compile(Token[] tokens) {
+		if (tokens == null) {
+			return null;
+		}
+		int stepCount = 0;
+		String element = null;
+		List<Anchor> anchors = new ArrayList<>();
+		for (int i = 0; i < tokens.length; i++) {
+			Token t = tokens[i];
+			if (t.type == Type.NODENAME) {
+				stepCount++;
+				element = t.val;
+			} else if (t.type == Type.TEST) {
+				TestType tt = XPathQuery.getTestType(t);
+				Anchor anchor = new Anchor();
+				anchor.step = stepCount - 1;
+				anchor.element = element;
+				anchor.testType = tt;
+				if (tt == TestType.ATTNAME) {
+					String[] attTest = XPathQuery.getAttributeTest(t);
+					anchor.attName = attTest[0];
+					anchor.literal = attTest[1];
+				} else if (tt == TestType.TEXT) {
+					anchor.literal = XPathQuery.getTextLiteral(t.val);
+				} else {
+					continue;
+				}
+				anchors.add(anchor);
+			}
+		}
+		if (anchors.isEmpty()) {
+			return null;
+		}
+		return new BottomUpEvaluator(tokens, getStepPositions(tokens), anchors);
+	}
+	
+	/**
+	 * @return
+	 * 		token positions of the nodenames on the main path of the query
+	 */
+	static int[] getStepPositions(Token[] tokens) {
+		int count = 0;
+		for (Token t : tokens) {
+			if (t.type == Type.NODENAME) {
+				count++;
+			}
+		}
+		int[] steps = new int[count];
+		count = 0;
+		for (int i = 0; i < tokens.length; i++) {
+			if (tokens[i].type == Type.NODENAME) {
+				steps[count++] = i;
+			}
+		}
+		return steps;
+	}
+	
+	/**
+	 * Estimates the number of nodes checked when evaluating bottom-up,
+	 * which is comparable to the number of elements in the document
+	 * visited by a top-down walk in the worst case
+	 */
+	public int estimateCost(DocumentIndex index) {
+		return selectAnchor(index).lookup(index).size() * steps.length;
+	}
+	
+	/**
+	 * Estimates the number of index hits of the most selective anchor from
+	 * the attribute and text cardinalities of a document, assuming values
+	 * are evenly distributed
+	 */
+	public double estimateHits(DocumentStatistics stats) {
+		double best = Double.MAX_VALUE;
+		for (Anchor anchor : anchors) {
+			int count;
+			int cardinality;
+			if (anchor.testType == TestType.ATTNAME) {
+				count = stats.getAttributeCount(anchor.attName);
+				cardinality = stats.getAttributeCardinality(anchor.attName);
+			} else {
+				count = stats.getTextCount();
+				cardinality = stats.getTextCardinality();
+			}
+			double hits = cardinality == 0 ? 0 : (double) count / cardinality;
+			best = Math.min(best, hits);
+		}
+		return best;
+	}
+	
+	/**
+	 * @return
+	 * 		number of steps on the main path of the query
+	 */
+	public int getStepCount() {
+		return steps.length;
+	}
+	
+	/**
+	 * Checks whether the indexed document matches the query
+	 */
+	public boolean evaluate(DocumentIndex index) {
+		return evaluate(index, null);
+	}
+	
+	/**
+	 * Checks whether the indexed document matches the query, recording the
+	 * work done in the given context
+	 * @param ctx
+	 * 		evaluation context, may be null
+	 */
+	boolean evaluate(DocumentIndex index, EvaluationContext ctx) {
+		Anchor anchor = selectAnchor(index);
+		for (Node n : anchor.lookup(index)) {
+			if (matchFrom(index.getDocument(), n, tokens, steps, anchor.step, ctx)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * @return
+	 * 		whether the query has an attribute test that can be looked up in
+	 * 		an AttributeIndex
+	 */
+	public boolean hasAttributeAnchor() {
+		for (Anchor anchor : anchors) {
+			if (anchor.testType == TestType.ATTNAME) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Checks whether a document matches the query, starting from the
+	 * elements holding the attribute value of its most selective attribute
+	 * test
+	 * @param index
+	 * 		attributes of the document, built if they are not built yet
+	 * @param ctx
+	 * 		evaluation context, may be null
+	 */
+	boolean evaluate(AttributeIndex index, EvaluationContext ctx) {
+		Anchor best = null;
+		List<Node> bestHits = null;
+		for (Anchor anchor : anchors) {
+			if (anchor.testType != TestType.ATTNAME) {
+				continue;
+			}
+			List<Node> hits = index.getElements(anchor.element, anchor.attName, anchor.literal);
+			if (bestHits == null || hits.size() < bestHits.size()) {
+				best = anchor;
+				bestHits = hits;
+			}
+		}
+		if (best == null) {
+			throw new IllegalStateException("query has no attribute test");
+		}
+		for (Node n : bestHits) {
+			if (matchFrom(index.getDocument(), n, tokens, steps, best.step, ctx)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Gets the anchor with the fewest index hits
+	 */
+	private Anchor selectAnchor(DocumentIndex index) {
+		Anchor best = null;
+		int bestHits = Integer.MAX_VALUE;
+		for (Anchor anchor : anchors) {
+			int hits = anchor.lookup(index).size();
+			if (hits < bestHits) {
+				best = anchor;
+				bestHits = hits;
+			}
+		}
+		return best;
+	}
+	
+	/**
+	 * Verifies the ancestors of a candidate against the steps above it,
+	 * then matches the candidate and the rest of the query top-down
+	 * @param d
+	 * 		document the query is evaluated against
+	 * @param n
+	 * 		candidate node for the given step
+	 * @param tokens
+	 * 		checked tokens of the query
+	 * @param steps
+	 * 		token positions of the nodenames on the main path of the query
+	 * @param step
+	 * 		index of the step on the main path of the query
+	 * @param ctx
+	 * 		evaluation context, may be null
+	 */
+	static boolean matchFrom(Document d, Node n, Token[] tokens, int[] steps, 
+			int step, EvaluationContext ctx) {
+		if (ctx == null) {
+			return matchFrom(d, n, tokens, new TokenIterator(tokens), steps, step, 
+					ctx);
+		}
+		try {
+			return matchFrom(d, n, tokens, ctx.acquireIterator(tokens), steps, step, 
+					ctx);
+		} finally {
+			ctx.releaseIterator();
+		}
+	}
+	
+	private static boolean matchFrom(Document d, Node n, Token[] tokens, 
+			TokenIterator it, int[] steps, int step, EvaluationContext ctx) {
+		Node parent = n.getParentNode();
+		for (int s = step - 1; s >= 0; s--) {
+			if (parent == null) {
+				return false;
+			}
+			it.setPos(steps[s]);
+			if (!XPathEngineImpl.matchNodeTests(parent, it, ctx)) {
+				return false;
+			}
+			parent = parent.getParentNode();
+		}
+		// first step of the query must be a child of the document
+		if (parent != d) {
+			return false;
+		}
+		if (ctx != null) {
+			return ctx.getMatcher().matchToken(n, tokens, steps[step], ctx);
+		}
+		it.setPos(steps[step]);
+		return XPathEngineImpl.matchToken(n, it, ctx);
+	}
+}
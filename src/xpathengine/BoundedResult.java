@@ -0,0 +1,85 @@
+package xpathengine;
+
+/**
+ * Result of evaluating a document within an EvaluationBudget. Each query
+ * either matches, does not match, or is undecided because the budget ran
+ * out before it was evaluated to the end.
+ */
+public class BoundedResult {
+	
+	private final boolean[] matches;
+	private final boolean[] decided;
+	private final long nodesVisited;
+	private final long elapsedNanos;
+	
+	/**
+	 * @param matches
+	 * 		i'th element is true if the document matches the i'th XPath,
+	 * 		false if it does not or the XPath is undecided
+	 * @param decided
+	 * 		i'th element is true if the i'th XPath was decided
+	 * @param nodesVisited
+	 * 		number of nodes checked against a step
+	 * @param elapsedNanos
+	 * 		time spent evaluating
+	 */
+	public BoundedResult(boolean[] matches, boolean[] decided, long nodesVisited, 
+			long elapsedNanos) {
+		this.matches = matches;
+		this.decided = decided;
+		this.nodesVisited = nodesVisited;
+		this.elapsedNanos = elapsedNanos;
+	}
+	
+	public int size() {
+		return matches.length;
+	}
+	
+	/**
+	 * @return
+	 * 		whether the document matches the i'th XPath, false if it is
+	 * 		undecided
+	 */
+	public boolean matches(int i) {
+		return matches[i];
+	}
+	
+	public boolean isDecided(int i) {
+		return decided[i];
+	}
+	
+	/**
+	 * @return
+	 * 		whether all XPaths were decided within the budget
+	 */
+	public boolean isComplete() {
+		return getUndecidedCount() == 0;
+	}
+	
+	public int getUndecidedCount() {
+		int count = 0;
+		for (boolean d : decided) {
+			if (!d) {
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * @return
+	 * 		i'th element is true if the document matches the i'th XPath, with
+	 * 		undecided XPaths reported as not matching
+	 */
+	public boolean[] getMatches() {
+		return matches.clone();
+	}
+	
+	public long getNodesVisited() {
+		return nodesVisited;
+	}
+	
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+}
@@ -0,0 +1,63 @@
+package xpathengine;
+
+import java.util.Arrays;
+
+/**
+ * Record of a document evaluation that ran out of its EvaluationBudget
+ */
+public class BudgetViolation {
+	
+	private final String documentId;
+	private final int[] undecided;
+	private final long nodesVisited;
+	private final long elapsedNanos;
+	private final long timestamp;
+	
+	BudgetViolation(String documentId, int[] undecided, long nodesVisited, 
+			long elapsedNanos) {
+		this.documentId = documentId;
+		this.undecided = undecided;
+		this.nodesVisited = nodesVisited;
+		this.elapsedNanos = elapsedNanos;
+		this.timestamp = System.currentTimeMillis();
+	}
+	
+	/**
+	 * @return
+	 * 		id of the document given by the caller, may be null
+	 */
+	public String getDocumentId() {
+		return documentId;
+	}
+	
+	/**
+	 * @return
+	 * 		indices of the XPaths left undecided, in increasing order
+	 */
+	public int[] getUndecided() {
+		return undecided.clone();
+	}
+	
+	public long getNodesVisited() {
+		return nodesVisited;
+	}
+	
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+	
+	/**
+	 * @return
+	 * 		time of the violation, in milliseconds since the epoch
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+	
+	@Override
+	public String toString() {
+		return documentId + ": " + undecided.length + " undecided " 
+				+ Arrays.toString(undecided) + " after " + nodesVisited + " nodes, " 
+				+ elapsedNanos / 1000 + " us";
+	}
+}
@@ -0,0 +1,27 @@
+package xpathengine;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event for compiling a single XPath into an XPathQuery
+ */
+@Name("xpathengine.Compile")
+@Label("Query Compile")
+@Category({ "XPath Engine", "Queries" })
+@Description("Tokenizing and checking an XPath")
+final class CompileEvent extends Event {
+
+	@Label("Query")
+	String query;
+
+	@Label("Tokens")
+	@Description("Number of tokens of the query, 0 if it is invalid")
+	int tokens;
+
+	@Label("Valid")
+	boolean valid;
+}
@@ -0,0 +1,770 @@
+package xpathengine;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+
+import models.Doc;
+import models.PackedDocument;
+import models.PackedDocumentStore;
+
+/**
+ * Persistent structural index of the documents of a PackedDocumentStore,
+ * answering which stored documents match a compiled XPathQuery without
+ * evaluating every one of them.
+ *
+ * Each element of a document contributes its root-to-node label path,
+ * e.g. html/body/div, and postings for its attribute values and its text
+ * under that path. As queries only have child steps and conjunctive tests,
+ * each step and each attribute or text() test of a query corresponds to a
+ * single key, and a matching document must hold all of them. Documents
+ * holding all keys of a query are candidates, which are verified by
+ * evaluating the query against their stored PackedDocument.
+ *
+ * Documents are numbered in the order they are added. Postings of added
+ * documents are buffered in memory, and written as immutable segment files
+ * covering consecutive document numbers, so that adding documents never
+ * rewrites the index. compact() merges all segments into one.
+ */
+public class CorpusIndex implements AutoCloseable {
+
+	static final int MAGIC = 0x58434958;
+	static final int VERSION = 2;
+	public static final String SEGMENT_PREFIX = "segment-";
+	public static final String SEGMENT_EXTENSION = ".xci";
+	/**
+	 * Number of added documents buffered before they are written as a
+	 * segment
+	 */
+	public static final int DEFAULT_FLUSH_THRESHOLD = 1000;
+
+	// first character of keys, by kind of posting
+	private static final char PATH = 'P';
+	private static final char ATTRIBUTE = 'A';
+	private static final char TEXT = 'T';
+	private static final char SEPARATOR = '\u0000';
+	/**
+	 * Attribute and text values longer than this are keyed by a prefix and
+	 * a hash, so that keys do not hold long texts. Collisions only add
+	 * candidates, which are verified.
+	 */
+	static final int MAX_VALUE_LENGTH = 64;
+
+	/**
+	 * Order of keys in segments, by code point, which is the order of
+	 * their UTF-8 encoding
+	 */
+	static final Comparator<String> KEY_ORDER = (a, b) -> {
+		int i = 0;
+		int j = 0;
+		while (i < a.length() && j < b.length()) {
+			int ca = a.codePointAt(i);
+			int cb = b.codePointAt(j);
+			if (ca != cb) {
+				return Integer.compare(ca, cb);
+			}
+			i += Character.charCount(ca);
+			j += Character.charCount(cb);
+		}
+		return Integer.compare(a.length() - i, b.length() - j);
+	};
+
+	/**
+	 * Increasing document numbers holding a key
+	 */
+	private static class Postings {
+		int[] docs = new int[2];
+		int size = 0;
+
+		void add(int doc) {
+			if (size == docs.length) {
+				docs = Arrays.copyOf(docs, size * 2);
+			}
+			docs[size++] = doc;
+		}
+	}
+
+	/**
+	 * Memory-mapped segment file. The header holds the first document
+	 * number and the ids of the documents of the segment, followed by the
+	 * keys in increasing order, each with its postings. A table of the
+	 * positions of the keys and a trailer with the number of keys and the
+	 * position of the table end the file, so that keys are looked up in
+	 * the mapped file rather than loaded onto the heap.
+	 */
+	private static class Segment {
+		final Path file;
+		final int docBase;
+		final String[] docIds;
+		final int keyCount;
+		// position of the table of key positions
+		private final int table;
+		private final ByteBuffer buffer;
+
+		Segment(Path file) throws IOException {
+			this.file = file;
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+				buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+			}
+			if (buffer.remaining() < 24 || buffer.getInt() != MAGIC) {
+				throw new IOException("not an index segment: " + file);
+			}
+			if (buffer.getInt() != VERSION) {
+				throw new IOException("unsupported segment version: " + file);
+			}
+			docBase = buffer.getInt();
+			docIds = new String[buffer.getInt()];
+			for (int i = 0; i < docIds.length; i++) {
+				docIds[i] = readString(buffer);
+			}
+			keyCount = buffer.getInt(buffer.limit() - 8);
+			table = buffer.getInt(buffer.limit() - 4);
+			if (keyCount < 0 || table < buffer.position() 
+					|| (long) table + keyCount * 4L != buffer.limit() - 8) {
+				throw new IOException("corrupt index segment: " + file);
+			}
+		}
+
+		private int position(int k) {
+			return buffer.getInt(table + k * 4);
+		}
+
+		String key(int k) {
+			ByteBuffer b = buffer.duplicate();
+			b.position(position(k));
+			return readString(b);
+		}
+
+		int postingCount(int k) {
+			int p = position(k);
+			return buffer.getInt(p + 4 + buffer.getInt(p));
+		}
+
+		/**
+		 * Copies the postings of a key into an array
+		 * @return
+		 * 		position in the array after the postings
+		 */
+		int copyPostings(int k, int[] docs, int pos) {
+			int p = position(k);
+			p += 4 + buffer.getInt(p);
+			int count = buffer.getInt(p);
+			for (int i = 0; i < count; i++) {
+				docs[pos++] = buffer.getInt(p + 4 + i * 4);
+			}
+			return pos;
+		}
+
+		/**
+		 * Binary searches the keys in the mapped file
+		 * @param key
+		 * 		UTF-8 encoded key
+		 * @return
+		 * 		number of the key, -1 if no document of the segment holds it
+		 */
+		int find(byte[] key) {
+			int low = 0;
+			int high = keyCount - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				int c = compareKey(mid, key);
+				if (c < 0) {
+					low = mid + 1;
+				} else if (c > 0) {
+					high = mid - 1;
+				} else {
+					return mid;
+				}
+			}
+			return -1;
+		}
+
+		private int compareKey(int k, byte[] key) {
+			int p = position(k);
+			int length = buffer.getInt(p);
+			int n = Math.min(length, key.length);
+			for (int i = 0; i < n; i++) {
+				int c = Integer.compare(buffer.get(p + 4 + i) & 0xff, key[i] & 0xff);
+				if (c != 0) {
+					return c;
+				}
+			}
+			return Integer.compare(length, key.length);
+		}
+
+		private static String readString(ByteBuffer b) {
+			byte[] bytes = new byte[b.getInt()];
+			b.get(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * Position of a compaction in the keys of a segment
+	 */
+	private static class Cursor {
+		final int segment;
+		int k = 0;
+		String key;
+
+		Cursor(int segment) {
+			this.segment = segment;
+		}
+	}
+
+	private final Path directory;
+	private final PackedDocumentStore store;
+	// segments in increasing order of document numbers
+	private final List<Segment> segments = new ArrayList<>();
+	private int nextSegment = 0;
+	private final List<String> docIds = new ArrayList<>();
+	private final Map<String, Integer> docNumbers = new HashMap<>();
+	// postings of the documents added since the last flush
+	private TreeMap<String, Postings> buffered = new TreeMap<>(KEY_ORDER);
+	// number of the first document added since the last flush
+	private int bufferedBase = 0;
+	private int flushThreshold = DEFAULT_FLUSH_THRESHOLD;
+	private boolean closed = false;
+
+	/**
+	 * Opens the index in a directory, creating it if it does not exist
+	 * @param directory
+	 * 		directory of the segment files
+	 * @param store
+	 * 		store holding the packed documents added to the index, used to
+	 * 		verify candidates
+	 */
+	public CorpusIndex(Path directory, PackedDocumentStore store) throws IOException {
+		this.directory = directory;
+		this.store = store;
+		Files.createDirectories(directory);
+		TreeMap<Integer, Path> files = new TreeMap<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+				SEGMENT_PREFIX + "*" + SEGMENT_EXTENSION)) {
+			for (Path file : stream) {
+				String name = file.getFileName().toString();
+				try {
+					files.put(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+							name.length() - SEGMENT_EXTENSION.length())), file);
+				} catch (NumberFormatException e) {
+					// not written by this class
+				}
+			}
+		}
+		List<Segment> found = new ArrayList<>();
+		for (Map.Entry<Integer, Path> e : files.entrySet()) {
+			found.add(new Segment(e.getValue()));
+			nextSegment = e.getKey() + 1;
+		}
+		// a compaction writes a segment starting at document 0, which
+		// replaces all earlier segments even if a crash left some of them
+		int first = 0;
+		for (int s = 0; s < found.size(); s++) {
+			if (found.get(s).docBase == 0) {
+				first = s;
+			}
+		}
+		for (Segment replaced : found.subList(0, first)) {
+			Files.deleteIfExists(replaced.file);
+		}
+		for (Segment segment : found.subList(first, found.size())) {
+			if (segment.docBase != docIds.size()) {
+				throw new IOException("segment " + segment.file + " starts at document "
+						+ segment.docBase + ", expected " + docIds.size());
+			}
+			segments.add(segment);
+			for (String id : segment.docIds) {
+				docNumbers.put(id, docIds.size());
+				docIds.add(id);
+			}
+		}
+		bufferedBase = docIds.size();
+	}
+
+	/**
+	 * @param threshold
+	 * 		number of added documents buffered before they are written as a
+	 * 		segment
+	 */
+	public synchronized void setFlushThreshold(int threshold) {
+		this.flushThreshold = threshold;
+	}
+
+	/**
+	 * Adds a document to the index, storing its packed encoding if it is
+	 * not stored yet. Documents are identified by id, and a document that
+	 * has already been added is not indexed again.
+	 * @return
+	 * 		whether the document was added
+	 */
+	public synchronized boolean add(Doc doc) throws IOException {
+		checkOpen();
+		String id = doc.getId();
+		if (docNumbers.containsKey(id)) {
+			return false;
+		}
+		PackedDocument packed = store.get(doc);
+		int number = docIds.size();
+		for (String key : documentKeys(packed)) {
+			Postings postings = buffered.get(key);
+			if (postings == null) {
+				postings = new Postings();
+				buffered.put(key, postings);
+			}
+			postings.add(number);
+		}
+		docIds.add(id);
+		docNumbers.put(id, number);
+		if (docIds.size() - bufferedBase >= flushThreshold) {
+			flush();
+		}
+		return true;
+	}
+
+	public synchronized boolean contains(String docId) {
+		return docNumbers.containsKey(docId);
+	}
+
+	/**
+	 * @return
+	 * 		number of documents added
+	 */
+	public synchronized int size() {
+		return docIds.size();
+	}
+
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * Writes the postings of the documents added since the last flush as
+	 * a new segment
+	 */
+	public synchronized void flush() throws IOException {
+		checkOpen();
+		if (docIds.size() == bufferedBase) {
+			return;
+		}
+		int number = nextSegment;
+		Path file = segmentPath(number);
+		try (SegmentWriter writer = new SegmentWriter(file, bufferedBase,
+				docIds.subList(bufferedBase, docIds.size()))) {
+			for (Map.Entry<String, Postings> e : buffered.entrySet()) {
+				writer.write(e.getKey(), e.getValue().docs, e.getValue().size);
+			}
+			writer.finish();
+		}
+		segments.add(new Segment(file));
+		nextSegment = number + 1;
+		buffered = new TreeMap<>(KEY_ORDER);
+		bufferedBase = docIds.size();
+	}
+
+	/**
+	 * Flushes buffered documents and merges all segments into one, so that
+	 * queries look up each key once
+	 */
+	public synchronized void compact() throws IOException {
+		flush();
+		if (segments.size() < 2) {
+			return;
+		}
+		int number = nextSegment;
+		Path file = segmentPath(number);
+		// merges the sorted keys of all segments
+		PriorityQueue<Cursor> cursors = new PriorityQueue<>(
+				Comparator.comparing((Cursor c) -> c.key, KEY_ORDER)
+						.thenComparingInt(c -> c.segment));
+		for (int s = 0; s < segments.size(); s++) {
+			if (segments.get(s).keyCount > 0) {
+				Cursor cursor = new Cursor(s);
+				cursor.key = segments.get(s).key(0);
+				cursors.add(cursor);
+			}
+		}
+		try (SegmentWriter writer = new SegmentWriter(file, 0, docIds)) {
+			int[] merged = new int[16];
+			while (!cursors.isEmpty()) {
+				Cursor cursor = cursors.poll();
+				String key = cursor.key;
+				int size = 0;
+				// postings of equal keys are polled in segment order
+				while (true) {
+					Segment segment = segments.get(cursor.segment);
+					int count = segment.postingCount(cursor.k);
+					if (size + count > merged.length) {
+						merged = Arrays.copyOf(merged, Math.max(merged.length * 2, size + count));
+					}
+					size = segment.copyPostings(cursor.k, merged, size);
+					if (++cursor.k < segment.keyCount) {
+						cursor.key = segment.key(cursor.k);
+						cursors.add(cursor);
+					}
+					Cursor next = cursors.peek();
+					if (next == null || !next.key.equals(key)) {
+						break;
+					}
+					cursor = cursors.poll();
+				}
+				writer.write(key, merged, size);
+			}
+			writer.finish();
+		}
+		List<Segment> replaced = new ArrayList<>(segments);
+		segments.clear();
+		segments.add(new Segment(file));
+		nextSegment = number + 1;
+		// newest first, so that the remaining segments stay contiguous
+		for (int s = replaced.size() - 1; s >= 0; s--) {
+			Files.deleteIfExists(replaced.get(s).file);
+		}
+	}
+
+	/**
+	 * Finds the added documents holding all index keys of a query, which
+	 * is a superset of the documents matching it
+	 * @return
+	 * 		ids of the candidate documents, in the order they were added
+	 */
+	public synchronized List<String> getCandidates(XPathQuery query) {
+		checkOpen();
+		List<String> ids = new ArrayList<>();
+		for (int doc : candidates(query.getTokens())) {
+			ids.add(docIds.get(doc));
+		}
+		return ids;
+	}
+
+	/**
+	 * Finds the added documents matching a query, by verifying each
+	 * candidate against its stored packed document. Candidates that are no
+	 * longer stored are skipped.
+	 * @return
+	 * 		ids of the matching documents, in the order they were added
+	 */
+	public synchronized List<String> query(XPathQuery query) throws IOException {
+		checkOpen();
+		Token[] tokens = query.getTokens();
+		List<String> ids = new ArrayList<>();
+		PackedEvaluator evaluator = new PackedEvaluator();
+		for (int doc : candidates(tokens)) {
+			String id = docIds.get(doc);
+			PackedDocument packed = store.get(id);
+			if (packed == null) {
+				continue;
+			}
+			evaluator.reset(packed, new byte[0][]);
+			if (evaluator.checkQueryMatch(tokens)) {
+				ids.add(id);
+			}
+		}
+		evaluator.release();
+		return ids;
+	}
+
+	/**
+	 * Flushes buffered documents and closes the index
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		flush();
+		closed = true;
+		segments.clear();
+	}
+
+	/**
+	 * @return
+	 * 		numbers of the documents holding all keys of the query, in
+	 * 		increasing order
+	 */
+	private int[] candidates(Token[] tokens) {
+		List<String> keys = new ArrayList<>();
+		if (!collectKeys(tokens, null, keys)) {
+			return new int[0];
+		}
+		List<int[]> lists = new ArrayList<>();
+		for (String key : new HashSet<>(keys)) {
+			int[] postings = lookup(key);
+			if (postings.length == 0) {
+				return postings;
+			}
+			lists.add(postings);
+		}
+		// intersect the shortest lists first
+		lists.sort(Comparator.comparingInt(l -> l.length));
+		int[] result = lists.get(0);
+		for (int i = 1; i < lists.size() && result.length > 0; i++) {
+			result = intersect(result, lists.get(i));
+		}
+		return result;
+	}
+
+	/**
+	 * @return
+	 * 		numbers of the documents holding a key, over all segments and
+	 * 		buffered documents
+	 */
+	private int[] lookup(String key) {
+		byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+		int[] found = new int[segments.size()];
+		int total = 0;
+		for (int s = 0; s < segments.size(); s++) {
+			found[s] = segments.get(s).find(bytes);
+			if (found[s] >= 0) {
+				total += segments.get(s).postingCount(found[s]);
+			}
+		}
+		Postings postings = buffered.get(key);
+		if (postings != null) {
+			total += postings.size;
+		}
+		// segments and buffered documents cover consecutive ranges of
+		// document numbers, so their postings are merged in order
+		int[] docs = new int[total];
+		int pos = 0;
+		for (int s = 0; s < segments.size(); s++) {
+			if (found[s] >= 0) {
+				pos = segments.get(s).copyPostings(found[s], docs, pos);
+			}
+		}
+		if (postings != null) {
+			System.arraycopy(postings.docs, 0, docs, pos, postings.size);
+		}
+		return docs;
+	}
+
+	private static int[] intersect(int[] a, int[] b) {
+		int[] c = new int[Math.min(a.length, b.length)];
+		int i = 0, j = 0, k = 0;
+		while (i < a.length && j < b.length) {
+			if (a[i] < b[j]) {
+				i++;
+			} else if (a[i] > b[j]) {
+				j++;
+			} else {
+				c[k++] = a[i];
+				i++;
+				j++;
+			}
+		}
+		return Arrays.copyOf(c, k);
+	}
+
+	/**
+	 * Collects the keys every document matching the tokens must hold
+	 * @param path
+	 * 		label path of the node the tokens are matched from, null for
+	 * 		the document
+	 * @return
+	 * 		false if no document can match the tokens
+	 */
+	static boolean collectKeys(Token[] tokens, String path, List<String> keys) {
+		for (Token t : tokens) {
+			switch (t.type) {
+			case AXIS:
+				// only the child axis matches
+				if (!t.val.equals("/")) {
+					return false;
+				}
+				break;
+			case NODENAME:
+				path = path == null ? t.val : path + "/" + t.val;
+				keys.add(PATH + path);
+				break;
+			case TEST:
+				switch (XPathQuery.getTestType(t)) {
+				case ATTNAME: {
+					String[] attTest = XPathQuery.getAttributeTest(t);
+					keys.add(attributeKey(path, attTest[0], attTest[1]));
+					break;
+				}
+				case TEXT:
+					keys.add(textKey(path, XPathQuery.getMatcher(t).getPattern()));
+					break;
+				case STEP:
+					if (!collectKeys(XPathQuery.getStepTokens(t), path, keys)) {
+						return false;
+					}
+					break;
+				default:
+					// contains() is only checked when verifying candidates
+				}
+				break;
+			default:
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return
+	 * 		keys of the label paths, attribute values and texts of the
+	 * 		elements of a document
+	 */
+	static Set<String> documentKeys(PackedDocument doc) {
+		Set<String> keys = new HashSet<>();
+		Map<Integer, String> names = new HashMap<>();
+		int count = doc.getNodeCount();
+		String[] paths = new String[count];
+		// nodes are numbered in document order, so parents come first
+		for (int n = PackedDocument.ROOT + 1; n < count; n++) {
+			String name = name(doc, doc.getNameId(n), names);
+			int parent = doc.getParent(n);
+			String path = parent == PackedDocument.ROOT ? name : paths[parent] + "/" + name;
+			paths[n] = path;
+			keys.add(PATH + path);
+			for (int a = 0; a < doc.getAttributeCount(n); a++) {
+				keys.add(attributeKey(path, name(doc, doc.getAttributeNameAt(n, a), names),
+						doc.getString(doc.getAttributeValueAt(n, a))));
+			}
+			int text = doc.getTextId(n);
+			if (text != PackedDocument.NONE) {
+				keys.add(textKey(path, doc.getString(text)));
+			}
+		}
+		return keys;
+	}
+
+	private static String name(PackedDocument doc, int id, Map<Integer, String> names) {
+		String name = names.get(id);
+		if (name == null) {
+			name = doc.getString(id);
+			names.put(id, name);
+		}
+		return name;
+	}
+
+	private static String attributeKey(String path, String att, String value) {
+		return ATTRIBUTE + path + SEPARATOR + att + SEPARATOR + valueKey(value);
+	}
+
+	private static String textKey(String path, String text) {
+		return TEXT + path + SEPARATOR + valueKey(text);
+	}
+
+	/**
+	 * @return
+	 * 		the value, or a prefix and a hash of the value if it is longer
+	 * 		than MAX_VALUE_LENGTH
+	 */
+	static String valueKey(String value) {
+		if (value.length() <= MAX_VALUE_LENGTH) {
+			return value;
+		}
+		// 64-bit FNV-1a of the characters
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < value.length(); i++) {
+			hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+		}
+		return value.substring(0, MAX_VALUE_LENGTH) + SEPARATOR + Long.toHexString(hash);
+	}
+
+	private Path segmentPath(int number) {
+		return directory.resolve(String.format("%s%06d%s", SEGMENT_PREFIX, number,
+				SEGMENT_EXTENSION));
+	}
+
+	private void checkOpen() {
+		if (closed) {
+			throw new IllegalStateException("index is closed");
+		}
+	}
+
+	/**
+	 * Writes a segment to a temporary file, which is only moved into place
+	 * by finish(), so that an interrupted write never leaves a partial
+	 * segment
+	 */
+	private static class SegmentWriter implements AutoCloseable {
+		private final Path file;
+		private final Path tmp;
+		private final DataOutputStream out;
+		// positions of the keys written
+		private int[] positions = new int[16];
+		private int keyCount = 0;
+		private boolean finished = false;
+
+		SegmentWriter(Path file, int docBase, List<String> docIds) throws IOException {
+			this.file = file;
+			this.tmp = file.resolveSibling(file.getFileName() + ".tmp");
+			this.out = new DataOutputStream(new BufferedOutputStream(
+					Files.newOutputStream(tmp)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(docBase);
+			out.writeInt(docIds.size());
+			for (String id : docIds) {
+				writeString(id);
+			}
+		}
+
+		/**
+		 * Writes a key and its postings. Keys must be written in
+		 * increasing order.
+		 */
+		void write(String key, int[] docs, int size) throws IOException {
+			if (keyCount == positions.length) {
+				positions = Arrays.copyOf(positions, keyCount * 2);
+			}
+			positions[keyCount++] = out.size();
+			writeString(key);
+			out.writeInt(size);
+			for (int i = 0; i < size; i++) {
+				out.writeInt(docs[i]);
+			}
+		}
+
+		private void writeString(String s) throws IOException {
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+
+		void finish() throws IOException {
+			int table = out.size();
+			for (int k = 0; k < keyCount; k++) {
+				out.writeInt(positions[k]);
+			}
+			out.writeInt(keyCount);
+			out.writeInt(table);
+			out.close();
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			finished = true;
+		}
+
+		/**
+		 * Discards the temporary file unless the segment was finished
+		 */
+		@Override
+		public void close() throws IOException {
+			if (!finished) {
+				out.close();
+				Files.deleteIfExists(tmp);
+			}
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package xpathengine;
+
+import java.util.Arrays;
+
+/**
+ * Estimates the number of distinct strings added, keeping only the K
+ * smallest hashes seen. Exact up to K distinct hashes, and within a few
+ * percent beyond, in memory bounded by K however many strings are added.
+ * Strings are hashed by their hash code, so strings with equal hash codes
+ * count once.
+ */
+final class DistinctCounter {
+	
+	static final int K = 256;
+	
+	// smallest hashes seen, non-negative, sorted and distinct
+	private long[] hashes = new long[16];
+	private int size = 0;
+	
+	void add(String s) {
+		long h = mix(s.hashCode());
+		if (size == K && h >= hashes[K - 1]) {
+			return;
+		}
+		int pos = Arrays.binarySearch(hashes, 0, size, h);
+		if (pos >= 0) {
+			return;
+		}
+		pos = -pos - 1;
+		if (size < K) {
+			if (size == hashes.length) {
+				hashes = Arrays.copyOf(hashes, Math.min(K, size * 2));
+			}
+			size++;
+		}
+		System.arraycopy(hashes, pos, hashes, pos + 1, size - pos - 1);
+		hashes[pos] = h;
+	}
+	
+	/**
+	 * @return
+	 * 		estimated number of distinct strings added
+	 */
+	int estimate() {
+		if (size < K) {
+			return size;
+		}
+		// the K'th smallest of n uniform hashes is near K / n of the range
+		double fraction = (hashes[K - 1] + 1.0) / 0x1.0p63;
+		return (int) Math.min(Integer.MAX_VALUE, Math.round((K - 1) / fraction));
+	}
+	
+	private static long mix(long h) {
+		h *= 0x9e3779b97f4a7c15L;
+		h ^= h >>> 32;
+		h *= 0xbf58476d1ce4e5b9L;
+		h ^= h >>> 29;
+		return h >>> 1;
+	}
+}
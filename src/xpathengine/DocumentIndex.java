@@ -0,0 +1,133 @@
+package xpathengine;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Index over the elements of a single DOM document, mapping attribute values
+ * and text literals to the elements holding them. Used for evaluating
+ * selective queries bottom-up, starting from the index hits.
+ * The index is built in a single pass and is not updated if the document
+ * is modified afterwards.
+ */
+public class DocumentIndex {
+	
+	private static final char KEY_SEPARATOR = '\u0000';
+
+	private final Document document;
+	private final Map<String, List<Node>> attributes = new HashMap<>();
+	private final Map<String, List<Node>> texts = new HashMap<>();
+	private final DocumentStatistics statistics = new DocumentStatistics();
+
+	public DocumentIndex(Document document) {
+		this.document = document;
+		build();
+	}
+	
+	public Document getDocument() {
+		return document;
+	}
+	
+	/**
+	 * @return
+	 * 		number of element nodes in the document
+	 */
+	public int getElementCount() {
+		return statistics.getElementCount();
+	}
+	
+	/**
+	 * @return
+	 * 		statistics of the document, gathered while building the index
+	 */
+	public DocumentStatistics getStatistics() {
+		return statistics;
+	}
+	
+	/**
+	 * Gets all elements that have the given attribute value
+	 * @param attName
+	 * @param value
+	 * @return
+	 * 		empty list if no element matches
+	 */
+	public List<Node> getAttributeHits(String attName, String value) {
+		return lookup(attributes, attName + KEY_SEPARATOR + value);
+	}
+	
+	/**
+	 * Gets all elements whose text value (as used by text() tests) equals
+	 * the given text
+	 * @param text
+	 * @return
+	 * 		empty list if no element matches
+	 */
+	public List<Node> getTextHits(String text) {
+		return lookup(texts, text);
+	}
+	
+	private static List<Node> lookup(Map<String, List<Node>> map, String key) {
+		List<Node> hits = map.get(key);
+		if (hits == null) {
+			return Collections.emptyList();
+		}
+		return hits;
+	}
+	
+	/**
+	 * Walks the document once with an explicit stack, so that deeply nested
+	 * documents do not overflow the call stack
+	 */
+	private void build() {
+		Deque<Node> stack = new ArrayDeque<>();
+		Deque<Integer> depths = new ArrayDeque<>();
+		for (Node c = document.getFirstChild(); c != null; c = c.getNextSibling()) {
+			statistics.addRootChild();
+			stack.push(c);
+			depths.push(1);
+		}
+		while (!stack.isEmpty()) {
+			Node n = stack.pop();
+			int depth = depths.pop();
+			if (n.getNodeType() != Node.ELEMENT_NODE) {
+				continue;
+			}
+			statistics.add(n, depth);
+			NamedNodeMap attribs = n.getAttributes();
+			if (attribs != null) {
+				for (int i = 0; i < attribs.getLength(); i++) {
+					Node att = attribs.item(i);
+					String key = att.getNodeName() + KEY_SEPARATOR + att.getNodeValue();
+					add(attributes, key, n);
+				}
+			}
+			String text = XPathEngineImpl.getTextVal(n);
+			if (text != null) {
+				add(texts, text, n);
+			}
+			for (Node c = n.getFirstChild(); c != null; c = c.getNextSibling()) {
+				stack.push(c);
+				depths.push(depth + 1);
+			}
+		}
+		statistics.finish();
+	}
+	
+	private static void add(Map<String, List<Node>> map, String key, Node n) {
+		List<Node> nodes = map.get(key);
+		if (nodes == null) {
+			nodes = new ArrayList<>(1);
+			map.put(key, nodes);
+		}
+		nodes.add(n);
+	}
+}
@@ -0,0 +1,205 @@
+package xpathengine;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Statistics of a single DOM document used for estimating the cost of
+ * evaluating a query: element name counts, depth, fan-out and the
+ * cardinalities of attribute values and text values. Cardinalities are
+ * exact up to DistinctCounter.K distinct values and estimated beyond, so
+ * that building statistics does not copy every value of the document.
+ */
+public class DocumentStatistics {
+	
+	private final Map<String, Integer> nameCounts = new HashMap<>();
+	// number of occurrences of each attribute name
+	private final Map<String, Integer> attributeCounts = new HashMap<>();
+	// distinct values seen for each attribute name, only used while building
+	private Map<String, DistinctCounter> attributeValues = new HashMap<>();
+	private final Map<String, Integer> attributeCardinalities = new HashMap<>();
+	private DistinctCounter textValues = new DistinctCounter();
+	private int textCount = 0;
+	private int textCardinality = 0;
+	private int elementCount = 0;
+	private int rootChildCount = 0;
+	private int childCount = 0;
+	private int parentCount = 0;
+	private int maxDepth = 0;
+
+	/**
+	 * Builds statistics in a single walk over the document
+	 */
+	public DocumentStatistics(Document d) {
+		Deque<Node> stack = new ArrayDeque<>();
+		Deque<Integer> depths = new ArrayDeque<>();
+		for (Node c = d.getFirstChild(); c != null; c = c.getNextSibling()) {
+			addRootChild();
+			stack.push(c);
+			depths.push(1);
+		}
+		while (!stack.isEmpty()) {
+			Node n = stack.pop();
+			int depth = depths.pop();
+			if (n.getNodeType() != Node.ELEMENT_NODE) {
+				continue;
+			}
+			add(n, depth);
+			for (Node c = n.getFirstChild(); c != null; c = c.getNextSibling()) {
+				stack.push(c);
+				depths.push(depth + 1);
+			}
+		}
+		finish();
+	}
+	
+	/**
+	 * Statistics are accumulated by DocumentIndex while it builds the index
+	 */
+	DocumentStatistics() {}
+	
+	/**
+	 * Counts a node directly below the document node, of any type
+	 */
+	void addRootChild() {
+		rootChildCount++;
+	}
+	
+	/**
+	 * Adds an element to the statistics
+	 * @param n
+	 * 		element node
+	 * @param depth
+	 * 		depth of the element, 1 for children of the document
+	 */
+	void add(Node n, int depth) {
+		elementCount++;
+		maxDepth = Math.max(maxDepth, depth);
+		increment(nameCounts, n.getNodeName());
+		
+		int children = 0;
+		for (Node c = n.getFirstChild(); c != null; c = c.getNextSibling()) {
+			children++;
+		}
+		childCount += children;
+		if (children > 0) {
+			parentCount++;
+		}
+		
+		NamedNodeMap attribs = n.getAttributes();
+		if (attribs != null) {
+			for (int i = 0; i < attribs.getLength(); i++) {
+				Node att = attribs.item(i);
+				String attName = att.getNodeName();
+				increment(attributeCounts, attName);
+				DistinctCounter values = attributeValues.get(attName);
+				if (values == null) {
+					values = new DistinctCounter();
+					attributeValues.put(attName, values);
+				}
+				values.add(att.getNodeValue());
+			}
+		}
+		String text = XPathEngineImpl.getTextVal(n);
+		if (text != null) {
+			textCount++;
+			textValues.add(text);
+		}
+	}
+	
+	/**
+	 * Reduces the distinct value counters to their estimates once all
+	 * elements have been added
+	 */
+	void finish() {
+		for (Map.Entry<String, DistinctCounter> e : attributeValues.entrySet()) {
+			attributeCardinalities.put(e.getKey(), e.getValue().estimate());
+		}
+		textCardinality = textValues.estimate();
+		attributeValues = null;
+		textValues = null;
+	}
+	
+	private static void increment(Map<String, Integer> counts, String key) {
+		Integer count = counts.get(key);
+		counts.put(key, count == null ? 1 : count + 1);
+	}
+	
+	public int getElementCount() {
+		return elementCount;
+	}
+	
+	/**
+	 * @return
+	 * 		number of elements with the given name
+	 */
+	public int getNameCount(String name) {
+		Integer count = nameCounts.get(name);
+		return count == null ? 0 : count;
+	}
+	
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+	
+	/**
+	 * @return
+	 * 		number of nodes directly below the document node
+	 */
+	public int getRootChildCount() {
+		return rootChildCount;
+	}
+	
+	/**
+	 * @return
+	 * 		average number of child nodes of elements that have children
+	 */
+	public double getAverageFanOut() {
+		if (parentCount == 0) {
+			return 0;
+		}
+		return (double) childCount / parentCount;
+	}
+	
+	/**
+	 * @return
+	 * 		number of elements that have the given attribute
+	 */
+	public int getAttributeCount(String attName) {
+		Integer count = attributeCounts.get(attName);
+		return count == null ? 0 : count;
+	}
+	
+	/**
+	 * @return
+	 * 		number of distinct values of the given attribute, estimated
+	 * 		beyond DistinctCounter.K values
+	 */
+	public int getAttributeCardinality(String attName) {
+		Integer count = attributeCardinalities.get(attName);
+		return count == null ? 0 : count;
+	}
+	
+	/**
+	 * @return
+	 * 		number of elements that have a text value
+	 */
+	public int getTextCount() {
+		return textCount;
+	}
+	
+	/**
+	 * @return
+	 * 		number of distinct text values, estimated beyond
+	 * 		DistinctCounter.K values
+	 */
+	public int getTextCardinality() {
+		return textCardinality;
+	}
+}
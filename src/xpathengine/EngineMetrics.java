@@ -0,0 +1,252 @@
+package xpathengine;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Per-query evaluation metrics of an engine, enabled with 
+ * XPathEngineImpl.setMetricsEnabled(). Each evaluating thread records into
+ * counters of its own, which are only summed when a snapshot is taken, so
+ * that recording does not contend between threads. A thread keeps 36 longs
+ * per XPath, so metrics of millions of XPaths cost a lot of memory. The
+ * counters of threads that have ended are folded into a single retired
+ * total, so memory is bounded by the threads alive rather than by all
+ * threads that ever evaluated a document.
+ * 
+ * Counters are written with opaque access by their thread and read with
+ * opaque access by snapshots, so that a value read is never torn. A
+ * snapshot is not atomic: it may miss the evaluations in progress, and the
+ * counters of one thread may be read at slightly different times.
+ * 
+ * Also a standard MBean, which can be registered with an MBean server to
+ * read the metrics over JMX.
+ */
+public class EngineMetrics implements EngineMetricsMBean {
+	
+	// evaluations, matches, nodes visited, total nanos, then the histogram
+	private static final int EVALUATIONS = 0;
+	private static final int MATCHES = 1;
+	private static final int NODES = 2;
+	private static final int NANOS = 3;
+	private static final int STRIDE = 4 + QueryMetrics.BUCKETS;
+	private static final VarHandle COUNTERS = 
+			MethodHandles.arrayElementVarHandle(long[].class);
+	
+	/**
+	 * Recorders of the XPaths set at one time, replaced as a whole on reset
+	 */
+	private static final class Generation {
+		final String[] xpaths;
+		final long start = System.nanoTime();
+		final CopyOnWriteArrayList<Recorder> recorders = new CopyOnWriteArrayList<>();
+		// counters of the recorders of ended threads, guarded by this
+		private long[] retired = null;
+		
+		Generation(String[] xpaths) {
+			this.xpaths = xpaths;
+		}
+		
+		/**
+		 * Folds the counters of ended threads into the retired total, and
+		 * drops their recorders
+		 */
+		synchronized void retire() {
+			for (Recorder r : recorders) {
+				Thread owner = r.owner.get();
+				if (owner != null && owner.isAlive()) {
+					continue;
+				}
+				// the thread has ended, so all its writes are visible
+				if (retired == null) {
+					retired = new long[r.counters.length];
+				}
+				for (int k = 0; k < retired.length; k++) {
+					retired[k] += r.counters[k];
+				}
+				recorders.remove(r);
+			}
+		}
+		
+		/**
+		 * Sums consecutive counters over the retired total and the live
+		 * recorders
+		 * @param from
+		 * 		first counter summed
+		 * @param sums
+		 * 		receives the sums, as many as its length
+		 */
+		synchronized void sum(int from, long[] sums) {
+			for (int k = 0; k < sums.length; k++) {
+				sums[k] = retired != null ? retired[from + k] : 0;
+			}
+			for (Recorder r : recorders) {
+				for (int k = 0; k < sums.length; k++) {
+					sums[k] += (long) COUNTERS.getOpaque(r.counters, from + k);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Counters of a single thread, followed by its documents and their
+	 * total nanos. Only written by that thread.
+	 */
+	static final class Recorder {
+		private final Generation generation;
+		private final WeakReference<Thread> owner;
+		private final long[] counters;
+		private final int documents;
+		
+		private Recorder(Generation generation) {
+			this.generation = generation;
+			this.owner = new WeakReference<>(Thread.currentThread());
+			this.documents = generation.xpaths.length * STRIDE;
+			this.counters = new long[documents + 2];
+		}
+		
+		/**
+		 * Records an evaluation of the i'th XPath
+		 */
+		void record(int i, boolean matched, long nanos, long nodesVisited) {
+			int base = i * STRIDE;
+			add(base + EVALUATIONS, 1);
+			if (matched) {
+				add(base + MATCHES, 1);
+			}
+			add(base + NODES, nodesVisited);
+			add(base + NANOS, nanos);
+			add(base + 4 + QueryMetrics.bucket(nanos), 1);
+		}
+		
+		/**
+		 * Records the evaluation of a document against all XPaths
+		 */
+		void recordDocument(long nanos) {
+			add(documents, 1);
+			add(documents + 1, nanos);
+		}
+		
+		private void add(int k, long n) {
+			// only this thread writes, so a plain read is current
+			COUNTERS.setOpaque(counters, k, counters[k] + n);
+		}
+	}
+	
+	private volatile Generation generation;
+	private final ThreadLocal<Recorder> recorders = new ThreadLocal<>();
+	
+	EngineMetrics(String[] xpaths) {
+		this.generation = new Generation(xpaths == null ? new String[0] : xpaths);
+	}
+	
+	/**
+	 * Drops the metrics recorded so far, and starts recording for the
+	 * given XPaths
+	 */
+	void reset(String[] xpaths) {
+		generation = new Generation(xpaths == null ? new String[0] : xpaths);
+	}
+	
+	/**
+	 * @return
+	 * 		recorder of the calling thread for the current XPaths
+	 * @param queryCount
+	 * 		number of XPaths evaluated, a new recorder is started if this
+	 * 		does not match the XPaths recorded
+	 */
+	Recorder recorder(int queryCount) {
+		Generation current = generation;
+		Recorder recorder = recorders.get();
+		if (recorder == null || recorder.generation != current) {
+			if (current.xpaths.length != queryCount) {
+				// XPaths set concurrently with the evaluation
+				return null;
+			}
+			// a new thread may replace threads that have ended
+			current.retire();
+			recorder = new Recorder(current);
+			current.recorders.add(recorder);
+			recorders.set(recorder);
+		}
+		return recorder;
+	}
+	
+	/**
+	 * @return
+	 * 		metrics summed over all threads that evaluated documents
+	 */
+	public MetricsSnapshot snapshot() {
+		Generation current = generation;
+		current.retire();
+		QueryMetrics[] queries = new QueryMetrics[current.xpaths.length];
+		for (int i = 0; i < queries.length; i++) {
+			queries[i] = query(current, i);
+		}
+		long[] documents = new long[2];
+		current.sum(current.xpaths.length * STRIDE, documents);
+		return new MetricsSnapshot(documents[0], documents[1], 
+				System.nanoTime() - current.start, queries);
+	}
+	
+	/**
+	 * @return
+	 * 		metrics of the i'th XPath summed over all threads
+	 */
+	public QueryMetrics query(int i) {
+		return query(generation, i);
+	}
+	
+	private static QueryMetrics query(Generation current, int i) {
+		long[] sums = new long[STRIDE];
+		current.sum(i * STRIDE, sums);
+		long[] histogram = new long[QueryMetrics.BUCKETS];
+		System.arraycopy(sums, 4, histogram, 0, histogram.length);
+		return new QueryMetrics(i, current.xpaths[i], sums[EVALUATIONS], sums[MATCHES], 
+				sums[NODES], sums[NANOS], histogram);
+	}
+	
+	@Override
+	public long getDocumentsEvaluated() {
+		return documents(generation);
+	}
+	
+	private static long documents(Generation current) {
+		long[] documents = new long[1];
+		current.sum(current.xpaths.length * STRIDE, documents);
+		return documents[0];
+	}
+	
+	@Override
+	public double getThroughput() {
+		Generation current = generation;
+		long elapsed = System.nanoTime() - current.start;
+		return elapsed == 0 ? 0 : documents(current) * 1e9 / elapsed;
+	}
+	
+	@Override
+	public int getQueryCount() {
+		return generation.xpaths.length;
+	}
+	
+	@Override
+	public String[] topQueries(int n) {
+		QueryMetrics[] top = snapshot().getTopQueries(n);
+		String[] lines = new String[top.length];
+		for (int k = 0; k < top.length; k++) {
+			lines[k] = top[k].toString();
+		}
+		return lines;
+	}
+	
+	@Override
+	public double latencyPercentileMicros(int i, double percentile) {
+		return query(i).getLatencyPercentile(percentile) / 1000.0;
+	}
+	
+	@Override
+	public void reset() {
+		reset(generation.xpaths);
+	}
+}
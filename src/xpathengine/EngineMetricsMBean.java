@@ -0,0 +1,34 @@
+package xpathengine;
+
+/**
+ * Management interface of EngineMetrics
+ */
+public interface EngineMetricsMBean {
+	
+	long getDocumentsEvaluated();
+	
+	/**
+	 * @return
+	 * 		documents evaluated per second of wall time since metrics were
+	 * 		enabled or reset
+	 */
+	double getThroughput();
+	
+	int getQueryCount();
+	
+	/**
+	 * @return
+	 * 		up to n XPaths that took the most evaluation time in total, each
+	 * 		with its metrics
+	 */
+	String[] topQueries(int n);
+	
+	/**
+	 * @return
+	 * 		upper bound in microseconds of the given percentile of the
+	 * 		latencies of the i'th XPath
+	 */
+	double latencyPercentileMicros(int i, double percentile);
+	
+	void reset();
+}
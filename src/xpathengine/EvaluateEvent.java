@@ -0,0 +1,32 @@
+package xpathengine;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event for evaluating the XPaths of an engine against a
+ * document
+ */
+@Name("xpathengine.Evaluate")
+@Label("Evaluate")
+@Category({ "XPath Engine", "Queries" })
+@Description("Evaluating all XPaths against a document")
+final class EvaluateEvent extends Event {
+
+	@Label("Query Count")
+	int queryCount;
+
+	@Label("Nodes Visited")
+	@Description("Nodes checked against a step")
+	long nodesVisited;
+
+	@Label("Predicates Evaluated")
+	@Description("Tests run on a node, excluding results reused from shared tests")
+	long predicatesEvaluated;
+
+	@Label("Matches")
+	int matches;
+}
@@ -0,0 +1,57 @@
+package xpathengine;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limit on the work done by a single evaluation of a document, as the
+ * number of nodes checked against a step, the elapsed time, or both.
+ * Queries not decided within the budget are reported as undecided.
+ */
+public class EvaluationBudget {
+	
+	public static final EvaluationBudget UNLIMITED = 
+			new EvaluationBudget(Long.MAX_VALUE, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+	
+	private final long maxNodes;
+	private final long maxNanos;
+	
+	/**
+	 * @param maxNodes
+	 * 		maximum number of nodes checked against a step
+	 * @param maxTime
+	 * 		maximum time spent evaluating the document
+	 */
+	public EvaluationBudget(long maxNodes, long maxTime, TimeUnit unit) {
+		if (maxNodes < 0 || maxTime < 0) {
+			throw new IllegalArgumentException("budget must not be negative");
+		}
+		this.maxNodes = maxNodes;
+		this.maxNanos = unit.toNanos(maxTime);
+	}
+	
+	public static EvaluationBudget ofNodes(long maxNodes) {
+		return new EvaluationBudget(maxNodes, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+	}
+	
+	public static EvaluationBudget ofTime(long maxTime, TimeUnit unit) {
+		return new EvaluationBudget(Long.MAX_VALUE, maxTime, unit);
+	}
+	
+	public long getMaxNodes() {
+		return maxNodes;
+	}
+	
+	public long getMaxNanos() {
+		return maxNanos;
+	}
+	
+	public boolean isTimed() {
+		return maxNanos != Long.MAX_VALUE;
+	}
+	
+	@Override
+	public String toString() {
+		return "budget of " + (maxNodes == Long.MAX_VALUE ? "unlimited" : maxNodes) 
+				+ " nodes, " + (isTimed() ? maxNanos + " ns" : "unlimited time");
+	}
+}
@@ -0,0 +1,295 @@
+package xpathengine;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+/**
+ * State carried through the evaluation of queries against a document.
+ * A context is not thread-safe, and should only be used by one
+ * evaluation at a time.
+ */
+public class EvaluationContext {
+	
+	long nodesVisited = 0;
+	// whether to record runtime statistics of the tests of compiled queries
+	boolean collectStatistics = false;
+	// nodes that reached the tests of a step while collecting, used to
+	// probe every few of them
+	long nodesTested = 0;
+	// tests run on a node, excluding results reused from shared tests
+	long predicatesEvaluated = 0;
+	// results of shared tests for the document, null if not shared
+	PredicateCache predicates = null;
+	// attributes of the document, null if not indexed
+	AttributeIndex attributes = null;
+	/*
+	 * nodesVisited at which the budget is next checked. Long.MAX_VALUE when
+	 * evaluating without a budget, so that the check in matchNodeTests is a
+	 * single comparison
+	 */
+	long budgetCheckpoint = Long.MAX_VALUE;
+	
+	/**
+	 * Nodes visited between checks of the deadline of a timed budget, or
+	 * of the cancellation of a parallel match
+	 */
+	static final int DEADLINE_CHECK_INTERVAL = 1024;
+	
+	// pool matching the children of large nodes in parallel, null if
+	// children are matched sequentially
+	ForkJoinPool pool = null;
+	// number of children above which they are matched in parallel
+	int parallelThreshold = Integer.MAX_VALUE;
+	
+	/**
+	 * Thrown out of matching when the budget of an evaluation is spent, or
+	 * when a parallel match is cancelled.
+	 * Preallocated and without a stack trace, as it is part of normal
+	 * operation under load.
+	 */
+	static final class BudgetExceededException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		static final BudgetExceededException INSTANCE = new BudgetExceededException();
+		
+		private BudgetExceededException() {
+			super("evaluation budget exceeded", null, false, false);
+		}
+	}
+	
+	// iterators by nesting depth of the query being matched
+	private TokenIterator[] iterators = new TokenIterator[4];
+	private int depth = 0;
+	// structures kept for the next document evaluated with this context
+	private PredicateCache predicateCache = null;
+	private AttributeIndex attributeIndex = null;
+	private PackedEvaluator packedEvaluator = null;
+	private IterativeMatcher matcher = null;
+	private long maxNodes = Long.MAX_VALUE;
+	private long deadline = 0;
+	private boolean timed = false;
+	// cancellation of the parallel match run with this context, may be null
+	private ForkJoinMatch.Cancellation cancellation = null;
+	// open addressing table of the nodes numbered, by identity
+	private Node[] numberedNodes = new Node[64];
+	private int[] nodeNumbers = new int[64];
+	private int numberedCount = 0;
+	
+	/**
+	 * @return
+	 * 		number of nodes checked against a step since the last reset
+	 */
+	public long getNodesVisited() {
+		return nodesVisited;
+	}
+	
+	public void reset() {
+		nodesVisited = 0;
+		nodesTested = 0;
+		predicatesEvaluated = 0;
+		depth = 0;
+		clearNumbering();
+		endBudget();
+	}
+	
+	/**
+	 * Starts limiting the evaluation to a budget, counted from the nodes
+	 * visited so far
+	 * @param start
+	 * 		System.nanoTime() at which the evaluation started
+	 */
+	void startBudget(EvaluationBudget budget, long start) {
+		long nodes = budget.getMaxNodes();
+		maxNodes = nodes > Long.MAX_VALUE - nodesVisited ? Long.MAX_VALUE 
+				: nodesVisited + nodes;
+		timed = budget.isTimed();
+		deadline = start + budget.getMaxNanos();
+		budgetCheckpoint = timed ? Math.min(maxNodes, nodesVisited) : maxNodes;
+	}
+	
+	void endBudget() {
+		maxNodes = Long.MAX_VALUE;
+		timed = false;
+		cancellation = null;
+		budgetCheckpoint = Long.MAX_VALUE;
+	}
+	
+	/**
+	 * Makes matching with this context stop once a parallel match is
+	 * cancelled
+	 */
+	void startCancellable(ForkJoinMatch.Cancellation cancellation) {
+		this.cancellation = cancellation;
+		budgetCheckpoint = Math.min(maxNodes, nodesVisited + DEADLINE_CHECK_INTERVAL);
+	}
+	
+	/**
+	 * @return
+	 * 		whether the children of large nodes can be matched in parallel,
+	 * 		which is not done within a budget, as it would not be exact
+	 */
+	boolean canFork() {
+		return pool != null && maxNodes == Long.MAX_VALUE && !timed;
+	}
+	
+	ForkJoinMatch.Cancellation getCancellation() {
+		return cancellation;
+	}
+	
+	/**
+	 * Called when nodesVisited passes the checkpoint. Throws if the budget
+	 * is spent, and otherwise sets the next checkpoint.
+	 */
+	void checkBudget() {
+		if (nodesVisited > maxNodes || (timed && System.nanoTime() - deadline > 0)
+				|| (cancellation != null && cancellation.isCancelled())) {
+			throw BudgetExceededException.INSTANCE;
+		}
+		budgetCheckpoint = timed || cancellation != null
+				? Math.min(maxNodes, nodesVisited + DEADLINE_CHECK_INTERVAL) : maxNodes;
+	}
+	
+	/**
+	 * Gets an iterator over the tokens of a query or step test, reusing the
+	 * iterator of the current nesting depth. Must be paired with a call to
+	 * releaseIterator() once matching the tokens is done.
+	 */
+	TokenIterator acquireIterator(Token[] tokens) {
+		if (depth == iterators.length) {
+			iterators = Arrays.copyOf(iterators, depth * 2);
+		}
+		TokenIterator it = iterators[depth];
+		if (it == null) {
+			it = new TokenIterator(tokens);
+			iterators[depth] = it;
+		} else {
+			it.reset(tokens);
+		}
+		depth++;
+		return it;
+	}
+	
+	void releaseIterator() {
+		depth--;
+	}
+	
+	/**
+	 * @return
+	 * 		dense number of a node of the document being evaluated, given on
+	 * 		first request in the order in which nodes are requested
+	 */
+	int nodeNumber(Node n) {
+		int mask = numberedNodes.length - 1;
+		int slot = System.identityHashCode(n) & mask;
+		for (Node m; (m = numberedNodes[slot]) != null; slot = (slot + 1) & mask) {
+			if (m == n) {
+				return nodeNumbers[slot];
+			}
+		}
+		if ((numberedCount + 1) * 2 > numberedNodes.length) {
+			growNumbering();
+			return nodeNumber(n);
+		}
+		numberedNodes[slot] = n;
+		nodeNumbers[slot] = numberedCount;
+		return numberedCount++;
+	}
+	
+	private void clearNumbering() {
+		if (numberedCount > 0) {
+			Arrays.fill(numberedNodes, null);
+			numberedCount = 0;
+		}
+	}
+	
+	private void growNumbering() {
+		Node[] oldNodes = numberedNodes;
+		int[] oldNumbers = nodeNumbers;
+		numberedNodes = new Node[oldNodes.length * 2];
+		nodeNumbers = new int[oldNodes.length * 2];
+		int mask = numberedNodes.length - 1;
+		for (int i = 0; i < oldNodes.length; i++) {
+			if (oldNodes[i] != null) {
+				int slot = System.identityHashCode(oldNodes[i]) & mask;
+				while (numberedNodes[slot] != null) {
+					slot = (slot + 1) & mask;
+				}
+				numberedNodes[slot] = oldNodes[i];
+				nodeNumbers[slot] = oldNumbers[i];
+			}
+		}
+	}
+	
+	/**
+	 * @return
+	 * 		empty cache for the shared tests of a document, reused across
+	 * 		documents
+	 */
+	PredicateCache getPredicateCache(int predicateCount) {
+		if (predicateCache == null || predicateCache.getPredicateCount() != predicateCount) {
+			predicateCache = new PredicateCache(predicateCount);
+		} else {
+			predicateCache.clear();
+		}
+		return predicateCache;
+	}
+	
+	/**
+	 * @return
+	 * 		unbuilt attribute index of a document, reused across documents
+	 */
+	AttributeIndex getAttributeIndex(Document d) {
+		if (attributeIndex == null) {
+			attributeIndex = new AttributeIndex(d);
+		} else {
+			attributeIndex.reset(d);
+		}
+		return attributeIndex;
+	}
+	
+	/**
+	 * @return
+	 * 		packed document evaluator, reused across documents
+	 */
+	PackedEvaluator getPackedEvaluator() {
+		if (packedEvaluator == null) {
+			packedEvaluator = new PackedEvaluator();
+		}
+		return packedEvaluator;
+	}
+	
+	/**
+	 * @return
+	 * 		matcher of queries against a DOM, reused across documents
+	 */
+	IterativeMatcher getMatcher() {
+		if (matcher == null) {
+			matcher = new IterativeMatcher();
+		}
+		return matcher;
+	}
+	
+	/**
+	 * Drops references to the last document evaluated, so that a context
+	 * kept for reuse does not keep it reachable
+	 */
+	void release() {
+		predicates = null;
+		attributes = null;
+		clearNumbering();
+		if (predicateCache != null) {
+			predicateCache.clear();
+		}
+		if (attributeIndex != null) {
+			attributeIndex.reset(null);
+		}
+		if (packedEvaluator != null) {
+			packedEvaluator.release();
+		}
+		if (matcher != null) {
+			matcher.release();
+		}
+	}
+}
@@ -0,0 +1,208 @@
+package xpathengine;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import xpathengine.EvaluationContext.BudgetExceededException;
+
+/**
+ * Matches the children of a node with many children in parallel, by
+ * splitting them into ranges on a fork-join pool. Ranges are halved until
+ * they hold at most the parallel threshold of the context, so idle workers
+ * steal the halves not yet started. Once a child matches, the match is
+ * cancelled, and the other ranges stop at their next cancellation check.
+ *
+ * Each range is matched with a context of its own, without shared test
+ * results, the attribute index or test statistics, as those are not
+ * thread-safe. The DOM is only read, but DOM implementations may still
+ * write on reads: JTidy creates the W3C adapter of a node on first access,
+ * and a deferred Xerces DOM expands nodes on first access. So before the
+ * outermost parallel match forks, the calling thread visits every node and
+ * attribute below the children once, and the workers then only read state
+ * published to them by the fork.
+ */
+final class ForkJoinMatch {
+
+	/**
+	 * Cancellation of a parallel match, which is also cancelled when the
+	 * parallel match it is nested in is cancelled
+	 */
+	static final class Cancellation {
+		private final Cancellation parent;
+		private volatile boolean cancelled = false;
+
+		Cancellation(Cancellation parent) {
+			this.parent = parent;
+		}
+
+		void cancel() {
+			cancelled = true;
+		}
+
+		boolean isCancelled() {
+			return cancelled || (parent != null && parent.isCancelled());
+		}
+	}
+
+	private ForkJoinMatch() {}
+
+	/**
+	 * @return
+	 * 		children of the node if there are more than threshold of them,
+	 * 		null otherwise
+	 */
+	static Node[] children(Node n, int threshold) {
+		int count = 0;
+		for (Node c = n.getFirstChild(); c != null; c = c.getNextSibling()) {
+			if (++count > threshold) {
+				break;
+			}
+		}
+		if (count <= threshold) {
+			return null;
+		}
+		count = 0;
+		for (Node c = n.getFirstChild(); c != null; c = c.getNextSibling()) {
+			count++;
+		}
+		Node[] children = new Node[count];
+		int i = 0;
+		for (Node c = n.getFirstChild(); c != null; c = c.getNextSibling()) {
+			children[i++] = c;
+		}
+		return children;
+	}
+
+	/**
+	 * Checks whether any of the children matches the tokens from the given
+	 * position, as the child loop of an axis step or step test does
+	 * @param ctx
+	 * 		context of the calling match, whose pool is used and to which the
+	 * 		nodes visited are added
+	 */
+	static boolean matchChildren(Node[] children, Token[] tokens, int pos,
+			EvaluationContext ctx) {
+		if (ctx.getCancellation() == null) {
+			// nested matches run on subtrees visited by the outermost one
+			visit(children);
+		}
+		Cancellation cancellation = new Cancellation(ctx.getCancellation());
+		LongAdder nodesVisited = new LongAdder();
+		ChildrenTask task = new ChildrenTask(children, 0, children.length, tokens, pos,
+				ctx.pool, ctx.parallelThreshold, cancellation, nodesVisited);
+		// a worker of the pool runs the task itself rather than waiting on it
+		boolean matches = ForkJoinTask.getPool() == ctx.pool
+				? task.invoke() : ctx.pool.invoke(task);
+		ctx.nodesVisited += nodesVisited.sum();
+		if (!matches && cancellation.isCancelled()) {
+			// cancelled by an enclosing parallel match
+			throw BudgetExceededException.INSTANCE;
+		}
+		return matches;
+	}
+
+	/**
+	 * Visits every node and attribute below the children once, with an
+	 * explicit stack as documents may be deeper than the call stack
+	 */
+	static void visit(Node[] children) {
+		ArrayDeque<Node> stack = new ArrayDeque<>();
+		for (Node child : children) {
+			stack.push(child);
+			while (!stack.isEmpty()) {
+				Node n = stack.pop();
+				n.getNodeName();
+				n.getNodeValue();
+				NamedNodeMap attribs = n.getAttributes();
+				if (attribs != null) {
+					for (int i = 0; i < attribs.getLength(); i++) {
+						Node att = attribs.item(i);
+						att.getNodeName();
+						att.getNodeValue();
+					}
+				}
+				for (Node c = n.getFirstChild(); c != null; c = c.getNextSibling()) {
+					stack.push(c);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Matches a range of children, splitting it while it is larger than
+	 * the threshold
+	 */
+	private static class ChildrenTask extends RecursiveTask<Boolean> {
+		private static final long serialVersionUID = 1L;
+
+		private final Node[] children;
+		private final int from;
+		private final int to;
+		private final Token[] tokens;
+		private final int pos;
+		private final ForkJoinPool pool;
+		private final int threshold;
+		private final Cancellation cancellation;
+		private final LongAdder nodesVisited;
+
+		ChildrenTask(Node[] children, int from, int to, Token[] tokens, int pos,
+				ForkJoinPool pool, int threshold,
+				Cancellation cancellation, LongAdder nodesVisited) {
+			this.children = children;
+			this.from = from;
+			this.to = to;
+			this.tokens = tokens;
+			this.pos = pos;
+			this.pool = pool;
+			this.threshold = threshold;
+			this.cancellation = cancellation;
+			this.nodesVisited = nodesVisited;
+		}
+
+		@Override
+		protected Boolean compute() {
+			if (cancellation.isCancelled()) {
+				return false;
+			}
+			if (to - from > threshold) {
+				int mid = (from + to) >>> 1;
+				ChildrenTask left = new ChildrenTask(children, from, mid, tokens, pos,
+						pool, threshold, cancellation, nodesVisited);
+				ChildrenTask right = new ChildrenTask(children, mid, to, tokens, pos,
+						pool, threshold, cancellation, nodesVisited);
+				left.fork();
+				boolean matches = right.compute();
+				// joined even after a match, so that no task outlives the match
+				return left.join() || matches;
+			}
+			EvaluationContext ctx = new EvaluationContext();
+			ctx.pool = pool;
+			ctx.parallelThreshold = threshold;
+			ctx.startCancellable(cancellation);
+			IterativeMatcher matcher = ctx.getMatcher();
+			try {
+				for (int i = from; i < to; i++) {
+					if (cancellation.isCancelled()) {
+						return false;
+					}
+					if (matcher.matchToken(children[i], tokens, pos, ctx)) {
+						cancellation.cancel();
+						return true;
+					}
+				}
+				return false;
+			} catch (BudgetExceededException e) {
+				// cancelled while matching a child
+				return false;
+			} finally {
+				nodesVisited.add(ctx.getNodesVisited());
+			}
+		}
+	}
+}
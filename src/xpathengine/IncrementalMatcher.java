@@ -0,0 +1,206 @@
+package xpathengine;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import models.Doc;
+import models.IncrementalParser;
+
+/**
+ * Matches a set of compiled queries against a document that is pushed in
+ * chunks, reporting each query's result as soon as it is decided.
+ * 
+ * Whenever an element is closed, queries whose last step has its name are
+ * checked with the element as the final node of the path, verifying its
+ * ancestors upwards. As elements are only ever added to the document, and
+ * text values and attributes do not change once parsed, a query found to
+ * match is decided. Queries that have not matched by the end of the
+ * document are evaluated top-down against the complete document, which
+ * also covers matches whose tests depend on content parsed after the final
+ * node of the path.
+ * 
+ * HTML is restructured by Doc.getDOM(), which adds the implied html, head
+ * and body elements and closes paragraphs, so a partial HTML document
+ * cannot be matched like the complete one. HTML documents are collected
+ * and parsed by Doc.getDOM() when finished, deciding all queries at once.
+ */
+public class IncrementalMatcher implements IncrementalParser.Handler {
+	
+	public interface Listener {
+		
+		/**
+		 * Called once for each query, when its result is decided
+		 * @param i
+		 * 		index of the XPath specified in setXPaths()
+		 * @param matches
+		 * 		whether the document matches the XPath
+		 */
+		void decided(int i, boolean matches);
+	}
+	
+	private final XPathQuery[] queries;
+	private final int[][] steps;
+	// queries to check when an element with the given name is closed
+	private final Map<String, List<Integer>> byLastName = new HashMap<>();
+	private final Listener listener;
+	// parser of an XML document, null for HTML
+	private final IncrementalParser parser;
+	// bytes of an HTML document, null for XML
+	private final ByteArrayOutputStream html;
+	private final Charset charset;
+	private Document document = null;
+	private final boolean[] results;
+	private final boolean[] decided;
+	private int undecided;
+	
+	/**
+	 * @param queries
+	 * 		compiled queries, null for invalid XPaths
+	 * @param isXML
+	 * 		whether the document is XML, rather than HTML
+	 * @param charset
+	 * 		encoding of the bytes fed to the matcher
+	 * @param listener
+	 * 		notified of decided results, may be null
+	 */
+	IncrementalMatcher(XPathQuery[] queries, boolean isXML, Charset charset, 
+			Listener listener) {
+		this.queries = queries;
+		this.listener = listener;
+		this.steps = new int[queries.length][];
+		this.results = new boolean[queries.length];
+		this.decided = new boolean[queries.length];
+		this.undecided = queries.length;
+		for (int i = 0; i < queries.length; i++) {
+			if (queries[i] == null) {
+				continue;
+			}
+			steps[i] = BottomUpEvaluator.getStepPositions(queries[i].getTokens());
+			String[] names = queries[i].getStepNames();
+			String last = names[names.length - 1];
+			List<Integer> list = byLastName.get(last);
+			if (list == null) {
+				list = new ArrayList<>();
+				byLastName.put(last, list);
+			}
+			list.add(i);
+		}
+		this.charset = charset;
+		this.parser = isXML ? new IncrementalParser(charset, this) : null;
+		this.html = isXML ? null : new ByteArrayOutputStream();
+	}
+	
+	public void feed(byte[] chunk) {
+		feed(chunk, 0, chunk.length);
+	}
+	
+	public void feed(byte[] chunk, int offset, int length) {
+		if (parser != null) {
+			parser.feed(chunk, offset, length);
+		} else {
+			checkNotFinished();
+			html.write(chunk, offset, length);
+		}
+	}
+	
+	/**
+	 * Consumes a chunk of the document, reporting results of queries that
+	 * are decided by it. Returns without waiting for further input.
+	 */
+	public void feed(ByteBuffer chunk) {
+		if (parser != null) {
+			parser.feed(chunk);
+		} else {
+			byte[] bytes = new byte[chunk.remaining()];
+			chunk.get(bytes);
+			feed(bytes);
+		}
+	}
+	
+	private void checkNotFinished() {
+		if (document != null) {
+			throw new IllegalStateException("matcher is finished");
+		}
+	}
+	
+	/**
+	 * Signals the end of the document, deciding all remaining queries
+	 * @return
+	 * 		i'th element is true if document matches the i'th XPath expression
+	 */
+	public boolean[] finish() {
+		Document d;
+		if (parser != null) {
+			d = parser.finish();
+		} else if (document != null) {
+			d = document;
+		} else {
+			d = Doc.getDOM(new String(html.toByteArray(), charset), false);
+			document = d;
+		}
+		for (int i = 0; i < queries.length; i++) {
+			if (!decided[i]) {
+				decide(i, queries[i] != null 
+						&& XPathEngineImpl.checkQueryMatch(d, queries[i].getTokens()));
+			}
+		}
+		return results.clone();
+	}
+	
+	public boolean isDecided(int i) {
+		return decided[i];
+	}
+	
+	/**
+	 * @return
+	 * 		whether all queries are decided, in which case the rest of the
+	 * 		document does not need to be fed
+	 */
+	public boolean isComplete() {
+		return undecided == 0;
+	}
+	
+	/**
+	 * @return
+	 * 		document parsed so far. For HTML, null until finish() is called.
+	 */
+	public Document getDocument() {
+		return parser != null ? parser.getDocument() : document;
+	}
+	
+	@Override
+	public void elementClosed(Element e) {
+		List<Integer> candidates = byLastName.get(e.getTagName());
+		if (candidates == null) {
+			return;
+		}
+		Document d = parser.getDocument();
+		for (int i : candidates) {
+			if (decided[i]) {
+				continue;
+			}
+			int last = steps[i].length - 1;
+			if (BottomUpEvaluator.matchFrom(d, e, queries[i].getTokens(), steps[i], 
+					last, null)) {
+				decide(i, true);
+			}
+		}
+	}
+	
+	private void decide(int i, boolean matches) {
+		results[i] = matches;
+		decided[i] = true;
+		undecided--;
+		if (listener != null) {
+			listener.decided(i, matches);
+		}
+	}
+}
@@ -0,0 +1,242 @@
+package xpathengine;
+
+import java.util.Arrays;
+
+import org.w3c.dom.Node;
+
+/**
+ * Matches tokenized XPath queries against a DOM with the same semantics as
+ * the recursive descent in XPathEngineImpl, keeping pending axis steps on
+ * an explicit stack rather than the call stack. A query is matched with
+ * constant call depth however deep the document and the query are.
+ *
+ * Tests of a step are run by XPathEngineImpl. A step test within them
+ * starts a nested match on top of the same stack, so the call depth only
+ * grows with the nesting of tests in the query text. The stack is reused
+ * across matches, and a matcher is not thread-safe.
+ *
+ * If the context has a fork-join pool, the children of nodes with more
+ * children than its parallel threshold are matched by ForkJoinMatch.
+ */
+public class IterativeMatcher {
+
+	private static final int FALSE = 0;
+	private static final int TRUE = 1;
+	// a frame was pushed, and the result is not known yet
+	private static final int PENDING = 2;
+
+	// states of a frame
+	// axis step whose axis has not been matched yet
+	private static final byte AXIS_START = 0;
+	// axis step waiting for the result of its axis
+	private static final byte AXIS_MATCHED = 1;
+	// axis step trying its children, after the axis matched
+	private static final byte AXIS_CHILDREN = 2;
+	// step test trying the children of the node tested
+	private static final byte STEP_CHILDREN = 3;
+
+	private Node[] nodes = new Node[16];
+	// next child to try for frames trying children
+	private Node[] children = new Node[16];
+	private int[] positions = new int[16];
+	private byte[] states = new byte[16];
+	private int top = 0;
+	// highest number of frames used since the last release
+	private int used = 0;
+	// iterators by nesting depth of matches
+	private TokenIterator[] iterators = new TokenIterator[4];
+	private int depth = 0;
+
+	/**
+	 * Checks whether a DOM node matches a tokenized XPath query, as
+	 * XPathEngineImpl.checkQueryMatch() does for a document
+	 */
+	public boolean checkQueryMatch(Node n, Token[] tokens) {
+		return matchToken(n, tokens, 0, null);
+	}
+
+	/**
+	 * Matches the token at the given position and the rest of the query,
+	 * as XPathEngineImpl.matchToken() does
+	 * @param ctx
+	 * 		evaluation context, may be null
+	 */
+	boolean matchToken(Node n, Token[] tokens, int pos, EvaluationContext ctx) {
+		int base = top;
+		TokenIterator it = acquireIterator(tokens);
+		try {
+			int result = enter(n, pos, it, ctx);
+			return result == PENDING ? run(base, it, ctx) : result == TRUE;
+		} finally {
+			top = base;
+			depth--;
+		}
+	}
+
+	/**
+	 * Matches the tokens of a step test against the children of a node
+	 * @param ctx
+	 * 		evaluation context, may be null
+	 */
+	boolean matchStep(Node n, Token[] tokens, EvaluationContext ctx) {
+		int base = top;
+		TokenIterator it = acquireIterator(tokens);
+		try {
+			int result = forkChildren(n, 0, it, ctx);
+			if (result != PENDING) {
+				return result == TRUE;
+			}
+			push(n, 0, STEP_CHILDREN);
+			children[base] = n.getFirstChild();
+			return run(base, it, ctx);
+		} finally {
+			top = base;
+			depth--;
+		}
+	}
+
+	/**
+	 * Drops references to the nodes of the last document matched, so that a
+	 * reused matcher does not keep it reachable
+	 */
+	void release() {
+		Arrays.fill(nodes, 0, used, null);
+		Arrays.fill(children, 0, used, null);
+		used = top;
+	}
+
+	/**
+	 * Matches the token at a position against a node as far as possible
+	 * without descending the tree
+	 * @return
+	 * 		TRUE or FALSE if decided, or PENDING if an axis step was pushed
+	 */
+	private int enter(Node n, int pos, TokenIterator it, EvaluationContext ctx) {
+		it.setPos(pos);
+		if (!it.hasCurr()) {
+			return TRUE;
+		}
+		Token curr = it.curr();
+		switch (curr.type) {
+		case XPATH:
+			push(n, pos, AXIS_START);
+			return PENDING;
+		case AXIS:
+			return curr.val.equals("/") ? TRUE : FALSE;
+		case NODENAME:
+			if (!XPathEngineImpl.matchNodeTests(n, it, ctx)) {
+				return FALSE;
+			}
+			if (!it.hasCurr()) {
+				return TRUE;
+			}
+			// axis step starting at the last token of this step
+			push(n, it.getPos() - 1, AXIS_START);
+			return PENDING;
+		default:
+			return FALSE;
+		}
+	}
+
+	/**
+	 * Matches the children of a node in parallel if the context allows it
+	 * and the node has more children than its parallel threshold
+	 * @return
+	 * 		TRUE or FALSE if matched in parallel, PENDING if the children are
+	 * 		to be matched sequentially
+	 */
+	private int forkChildren(Node n, int pos, TokenIterator it, EvaluationContext ctx) {
+		if (ctx == null || !ctx.canFork()) {
+			return PENDING;
+		}
+		Node[] forked = ForkJoinMatch.children(n, ctx.parallelThreshold);
+		if (forked == null) {
+			return PENDING;
+		}
+		return ForkJoinMatch.matchChildren(forked, it.getTokens(), pos, ctx) ? TRUE : FALSE;
+	}
+
+	/**
+	 * Runs frames above the base until the first of them is decided
+	 */
+	private boolean run(int base, TokenIterator it, EvaluationContext ctx) {
+		// result of the frame or match last decided
+		int result = PENDING;
+		while (top > base) {
+			int f = top - 1;
+			switch (states[f]) {
+			case AXIS_START:
+				states[f] = AXIS_MATCHED;
+				result = enter(nodes[f], positions[f] + 1, it, ctx);
+				break;
+			case AXIS_MATCHED:
+				if (result == FALSE) {
+					// if axis does not match, there is no need to check further
+					top--;
+					break;
+				}
+				result = forkChildren(nodes[f], positions[f] + 2, it, ctx);
+				if (result != PENDING) {
+					top--;
+					break;
+				}
+				states[f] = AXIS_CHILDREN;
+				children[f] = nodes[f].getFirstChild();
+				result = FALSE;
+				break;
+			case AXIS_CHILDREN:
+			case STEP_CHILDREN:
+				if (result == TRUE) {
+					top--;
+					break;
+				}
+				Node child = children[f];
+				if (child == null) {
+					// none of the children match the query
+					top--;
+					result = FALSE;
+					break;
+				}
+				children[f] = child.getNextSibling();
+				int pos = states[f] == AXIS_CHILDREN ? positions[f] + 2 : positions[f];
+				result = enter(child, pos, it, ctx);
+				break;
+			default:
+				throw new IllegalStateException("unknown frame state " + states[f]);
+			}
+		}
+		return result == TRUE;
+	}
+
+	private void push(Node n, int pos, byte state) {
+		if (top == nodes.length) {
+			int capacity = top * 2;
+			nodes = Arrays.copyOf(nodes, capacity);
+			children = Arrays.copyOf(children, capacity);
+			positions = Arrays.copyOf(positions, capacity);
+			states = Arrays.copyOf(states, capacity);
+		}
+		nodes[top] = n;
+		positions[top] = pos;
+		states[top] = state;
+		top++;
+		if (top > used) {
+			used = top;
+		}
+	}
+
+	private TokenIterator acquireIterator(Token[] tokens) {
+		if (depth == iterators.length) {
+			iterators = Arrays.copyOf(iterators, depth * 2);
+		}
+		TokenIterator it = iterators[depth];
+		if (it == null) {
+			it = new TokenIterator(tokens);
+			iterators[depth] = it;
+		} else {
+			it.reset(tokens);
+		}
+		depth++;
+		return it;
+	}
+}
@@ -0,0 +1,122 @@
+package xpathengine;
+
+import java.util.Arrays;
+
+/**
+ * MatchCollector setting one bit per matched XPath in a reused long[].
+ * The words holding matches are remembered, so that clearing the set for
+ * the next document only touches them rather than the whole array.
+ */
+public class MatchBitSet implements MatchCollector {
+	
+	private long[] words = new long[0];
+	// indices of the non-zero words
+	private int[] setWords = new int[16];
+	private int setWordCount = 0;
+	private int cardinality = 0;
+	private int queryCount = 0;
+	
+	@Override
+	public void begin(int queryCount) {
+		for (int i = 0; i < setWordCount; i++) {
+			words[setWords[i]] = 0;
+		}
+		setWordCount = 0;
+		cardinality = 0;
+		this.queryCount = queryCount;
+		int needed = (queryCount + 63) >>> 6;
+		if (words.length < needed) {
+			words = new long[needed];
+		}
+	}
+	
+	@Override
+	public void add(int query) {
+		int w = query >>> 6;
+		long bit = 1L << query;
+		if (words[w] == 0) {
+			if (setWordCount == setWords.length) {
+				setWords = Arrays.copyOf(setWords, setWordCount * 2);
+			}
+			setWords[setWordCount++] = w;
+		}
+		if ((words[w] & bit) == 0) {
+			words[w] |= bit;
+			cardinality++;
+		}
+	}
+	
+	/**
+	 * @param query
+	 * 		index of XPath specified in setXPaths()
+	 * @return
+	 * 		whether the document matches the XPath
+	 */
+	public boolean get(int query) {
+		int w = query >>> 6;
+		return w < words.length && (words[w] & (1L << query)) != 0;
+	}
+	
+	/**
+	 * @return
+	 * 		number of matched XPaths
+	 */
+	public int cardinality() {
+		return cardinality;
+	}
+	
+	/**
+	 * @return
+	 * 		number of XPaths the set was last begun for
+	 */
+	public int getQueryCount() {
+		return queryCount;
+	}
+	
+	/**
+	 * @param from
+	 * 		index to start searching from
+	 * @return
+	 * 		index of the first matched XPath at or after from, or -1 if
+	 * 		there is none
+	 */
+	public int nextSetBit(int from) {
+		int w = from >>> 6;
+		if (from < 0 || w >= words.length) {
+			return -1;
+		}
+		long word = words[w] & (-1L << from);
+		while (true) {
+			if (word != 0) {
+				return (w << 6) + Long.numberOfTrailingZeros(word);
+			}
+			if (++w == words.length) {
+				return -1;
+			}
+			word = words[w];
+		}
+	}
+	
+	/**
+	 * @return
+	 * 		indices of the matched XPaths, in increasing order
+	 */
+	public int[] toArray() {
+		int[] ids = new int[cardinality];
+		// words are set in increasing order, as matches are added in order
+		int k = 0;
+		for (int i = 0; i < setWordCount; i++) {
+			long word = words[setWords[i]];
+			while (word != 0) {
+				ids[k++] = (setWords[i] << 6) + Long.numberOfTrailingZeros(word);
+				word &= word - 1;
+			}
+		}
+		return ids;
+	}
+	
+	@Override
+	public String toString() {
+		return Arrays.toString(toArray());
+	}
+}
@@ -0,0 +1,23 @@
+package xpathengine;
+
+/**
+ * Receives the XPaths matched by a document, as an alternative to the
+ * boolean[] returned by XPathEngine.evaluate() when most of a large set of
+ * XPaths do not match. Collectors are reused from document to document.
+ */
+public interface MatchCollector {
+	
+	/**
+	 * Clears the matches of the previous document
+	 * @param queryCount
+	 * 		number of XPaths set in the engine
+	 */
+	void begin(int queryCount);
+	
+	/**
+	 * Adds a matched XPath. Called in increasing order of index.
+	 * @param query
+	 * 		index of XPath specified in setXPaths()
+	 */
+	void add(int query);
+}
@@ -0,0 +1,77 @@
+package xpathengine;
+
+import java.util.Arrays;
+
+/**
+ * Sparse MatchCollector holding the indices of the matched XPaths in
+ * increasing order. Its array only grows, so a reused list stops
+ * allocating once it has held the largest number of matches.
+ */
+public class MatchList implements MatchCollector {
+	
+	private int[] ids;
+	private int size = 0;
+	
+	public MatchList() {
+		this(16);
+	}
+	
+	/**
+	 * @param capacity
+	 * 		initial number of matches held without growing
+	 */
+	public MatchList(int capacity) {
+		this.ids = new int[Math.max(capacity, 1)];
+	}
+	
+	@Override
+	public void begin(int queryCount) {
+		size = 0;
+	}
+	
+	@Override
+	public void add(int query) {
+		if (size == ids.length) {
+			ids = Arrays.copyOf(ids, size * 2);
+		}
+		ids[size++] = query;
+	}
+	
+	/**
+	 * @return
+	 * 		number of matched XPaths
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * @param k
+	 * 		position in the list, less than size()
+	 * @return
+	 * 		index of the k'th matched XPath
+	 */
+	public int get(int k) {
+		if (k >= size) {
+			throw new IndexOutOfBoundsException(k + " >= " + size);
+		}
+		return ids[k];
+	}
+	
+	public boolean contains(int query) {
+		return Arrays.binarySearch(ids, 0, size, query) >= 0;
+	}
+	
+	/**
+	 * @return
+	 * 		copy of the indices of the matched XPaths
+	 */
+	public int[] toArray() {
+		return Arrays.copyOf(ids, size);
+	}
+	
+	@Override
+	public String toString() {
+		return Arrays.toString(toArray());
+	}
+}
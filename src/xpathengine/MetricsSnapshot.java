@@ -0,0 +1,80 @@
+package xpathengine;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Evaluation metrics of an engine and each of its XPaths at a point in
+ * time, see EngineMetrics
+ */
+public class MetricsSnapshot {
+	
+	private final long documents;
+	private final long evaluationNanos;
+	private final long elapsedNanos;
+	private final QueryMetrics[] queries;
+	
+	MetricsSnapshot(long documents, long evaluationNanos, long elapsedNanos, 
+			QueryMetrics[] queries) {
+		this.documents = documents;
+		this.evaluationNanos = evaluationNanos;
+		this.elapsedNanos = elapsedNanos;
+		this.queries = queries;
+	}
+	
+	/**
+	 * @return
+	 * 		number of documents evaluated since metrics were enabled or reset
+	 */
+	public long getDocumentsEvaluated() {
+		return documents;
+	}
+	
+	/**
+	 * @return
+	 * 		time spent evaluating documents, summed over threads
+	 */
+	public long getEvaluationNanos() {
+		return evaluationNanos;
+	}
+	
+	/**
+	 * @return
+	 * 		wall time since metrics were enabled or reset
+	 */
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+	
+	/**
+	 * @return
+	 * 		documents evaluated per second of wall time
+	 */
+	public double getThroughput() {
+		return elapsedNanos == 0 ? 0 : documents * 1e9 / elapsedNanos;
+	}
+	
+	public int getQueryCount() {
+		return queries.length;
+	}
+	
+	/**
+	 * @return
+	 * 		metrics of the i'th XPath set in setXPaths()
+	 */
+	public QueryMetrics getQuery(int i) {
+		return queries[i];
+	}
+	
+	/**
+	 * @return
+	 * 		up to n XPaths that took the most evaluation time in total, in
+	 * 		decreasing order of time
+	 */
+	public QueryMetrics[] getTopQueries(int n) {
+		QueryMetrics[] sorted = queries.clone();
+		Arrays.sort(sorted, Comparator.comparingLong(QueryMetrics::getTotalNanos)
+				.reversed());
+		return Arrays.copyOf(sorted, Math.min(n, sorted.length));
+	}
+}
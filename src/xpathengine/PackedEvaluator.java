@@ -0,0 +1,249 @@
+package xpathengine;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import models.PackedDocument;
+import models.TextMatcher;
+import xpathengine.Token.Type;
+
+/**
+ * Evaluates tokenized XPath queries directly against a PackedDocument,
+ * with the same semantics as the recursive descent over a DOM in
+ * XPathEngineImpl.
+ *
+ * Names of queries compiled by an engine are numbered into slots, and the
+ * ids of slot names in the current document are cached in arrays that are
+ * invalidated by a generation counter rather than cleared. Together with
+ * reused token iterators, this lets an evaluator be reset and reused for
+ * document after document without allocating. Names of other tokens are
+ * resolved through a map instead.
+ */
+public class PackedEvaluator {
+
+	private PackedDocument doc;
+	// UTF-8 names of the slots of the compiled queries, may be empty
+	private byte[][] slotNames = new byte[0][];
+	private int[] slotIds = new int[0];
+	private int[] slotGenerations = new int[0];
+	private int generation = 0;
+	// ids of names of tokens that are not numbered into slots
+	private final Map<String, Integer> nameIds = new HashMap<>();
+	// iterators by nesting depth of step tests
+	private TokenIterator[] iterators = new TokenIterator[4];
+	private int depth = 0;
+
+	public PackedEvaluator(PackedDocument doc) {
+		reset(doc, slotNames);
+	}
+
+	PackedEvaluator() {}
+
+	/**
+	 * Prepares the evaluator for another document
+	 * @param slotNames
+	 * 		UTF-8 names of the slots of the compiled queries
+	 */
+	void reset(PackedDocument doc, byte[][] slotNames) {
+		this.doc = doc;
+		this.slotNames = slotNames;
+		if (slotIds.length < slotNames.length) {
+			slotIds = new int[slotNames.length];
+			slotGenerations = new int[slotNames.length];
+			generation = 0;
+		}
+		if (++generation == 0) {
+			// wrapped around, so stale entries could look current
+			Arrays.fill(slotGenerations, 0);
+			generation = 1;
+		}
+		if (!nameIds.isEmpty()) {
+			nameIds.clear();
+		}
+		depth = 0;
+	}
+
+	/**
+	 * Releases the document, so that a reused evaluator does not keep it
+	 * reachable
+	 */
+	void release() {
+		this.doc = null;
+	}
+
+	/**
+	 * Checks whether the document contains an element or attribute name
+	 */
+	public boolean hasName(String name) {
+		return nameId(name) != PackedDocument.NONE;
+	}
+
+	/**
+	 * Checks whether the document contains the name of a slot
+	 */
+	boolean hasName(int slot) {
+		return slotId(slot) != PackedDocument.NONE;
+	}
+
+	/**
+	 * Checks whether the document matches a tokenized XPath query
+	 */
+	public boolean checkQueryMatch(Token[] tokens) {
+		TokenIterator it = acquireIterator(tokens);
+		boolean matches = matchToken(PackedDocument.ROOT, it);
+		depth--;
+		return matches;
+	}
+
+	private TokenIterator acquireIterator(Token[] tokens) {
+		if (depth == iterators.length) {
+			iterators = Arrays.copyOf(iterators, depth * 2);
+		}
+		TokenIterator it = iterators[depth];
+		if (it == null) {
+			it = new TokenIterator(tokens);
+			iterators[depth] = it;
+		} else {
+			it.reset(tokens);
+		}
+		depth++;
+		return it;
+	}
+
+	private int slotId(int slot) {
+		if (slotGenerations[slot] != generation) {
+			slotIds[slot] = doc.findName(slotNames[slot]);
+			slotGenerations[slot] = generation;
+		}
+		return slotIds[slot];
+	}
+
+	private int nameId(String name) {
+		Integer id = nameIds.get(name);
+		if (id == null) {
+			id = doc.findName(name);
+			nameIds.put(name, id);
+		}
+		return id;
+	}
+
+	/**
+	 * @return
+	 * 		id of the name of a NODENAME token, or of the attribute of an
+	 * 		ATTNAME test
+	 */
+	private int nameId(Token t, String name) {
+		if (t.nameSlot >= 0 && t.nameSlot < slotNames.length) {
+			return slotId(t.nameSlot);
+		}
+		return nameId(name);
+	}
+
+	private boolean matchToken(int n, TokenIterator it) {
+		if (!it.hasCurr()) {
+			return true;
+		}
+		Token curr = it.curr();
+		switch (curr.type) {
+		case XPATH:
+			return matchAxisStep(n, it);
+		case AXIS:
+			it.step();
+			return curr.val.equals("/");
+		case NODENAME:
+			if (!matchNodeTests(n, it)) {
+				return false;
+			}
+			if (!it.hasCurr()) {
+				return true;
+			} else {
+				it.stepBack();
+				return matchAxisStep(n, it);
+			}
+		default:
+			return false;
+		}
+	}
+
+	private boolean matchNodeTests(int n, TokenIterator it) {
+		Token curr = it.curr();
+		int nameId = doc.getNameId(n);
+		if (nameId == PackedDocument.NONE || nameId != nameId(curr, curr.val)) {
+			return false;
+		}
+		it.step();
+		Token afterName = it.curr();
+		while (afterName != null && afterName.type == Type.TEST) {
+			if (!matchTest(n, afterName)) {
+				return false;
+			}
+			it.step();
+			afterName = it.curr();
+		}
+		return true;
+	}
+
+	private boolean matchTest(int n, Token test) {
+		switch (XPathQuery.getTestType(test)) {
+		case ATTNAME: {
+			String[] attTest = XPathQuery.getAttributeTest(test);
+			int attNameId = nameId(test, attTest[0]);
+			if (attNameId == PackedDocument.NONE) {
+				return false;
+			}
+			int valueId = doc.getAttributeValueId(n, attNameId);
+			return valueId != PackedDocument.NONE
+					&& doc.stringEquals(valueId, XPathQuery.getMatcher(test));
+		}
+		case CONTAINS: {
+			TextMatcher matcher = XPathQuery.getMatcher(test);
+			int textId = doc.getTextId(n);
+			return matcher != null && textId != PackedDocument.NONE
+					&& doc.stringContains(textId, matcher);
+		}
+		case TEXT: {
+			int textId = doc.getTextId(n);
+			return textId != PackedDocument.NONE
+					&& doc.stringEquals(textId, XPathQuery.getMatcher(test));
+		}
+		case STEP: {
+			TokenIterator it = acquireIterator(XPathQuery.getStepTokens(test));
+			boolean matches = matchStep(n, it);
+			depth--;
+			return matches;
+		}
+		default:
+			return false;
+		}
+	}
+
+	private boolean matchStep(int n, TokenIterator it) {
+		int currPos = it.getPos();
+		for (int c = doc.getFirstChild(n); c != PackedDocument.NONE;
+				c = doc.getNextSibling(c)) {
+			it.setPos(currPos);
+			if (matchToken(c, it)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean matchAxisStep(int n, TokenIterator it) {
+		int currPos = it.getPos();
+		it.step();
+		if (!matchToken(n, it)) {
+			return false;
+		}
+		for (int c = doc.getFirstChild(n); c != PackedDocument.NONE;
+				c = doc.getNextSibling(c)) {
+			it.setPos(currPos);
+			it.step(2);
+			if (matchToken(c, it)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
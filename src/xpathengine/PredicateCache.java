@@ -0,0 +1,85 @@
+package xpathengine;
+
+import java.util.Arrays;
+
+/**
+ * Results of tests shared by several queries, for the nodes of a single
+ * document. Shared tests are numbered when the queries are compiled, and
+ * nodes by the evaluation context, so a result is stored per node number
+ * and test number, and a test is run at most once on a node however many
+ * queries contain it.
+ */
+final class PredicateCache {
+	
+	private static final byte EMPTY = 0;
+	private static final byte FAILED = 1;
+	private static final byte PASSED = 2;
+	
+	private final int predicateCount;
+	// results by node number * predicateCount + test number
+	private byte[] results;
+	// length of the prefix of results holding results of the document
+	private int used = 0;
+	private long hits = 0;
+	
+	/**
+	 * @param predicateCount
+	 * 		number of shared tests of the compiled queries
+	 */
+	PredicateCache(int predicateCount) {
+		this.predicateCount = predicateCount;
+		this.results = new byte[predicateCount * 16];
+	}
+	
+	/**
+	 * @param node
+	 * 		number of the node in the evaluation context
+	 * @return
+	 * 		1 if the node passed the test, 0 if it failed, -1 if the test
+	 * 		has not been run on the node
+	 */
+	int lookup(int node, int predicateId) {
+		int i = node * predicateCount + predicateId;
+		if (i >= used || results[i] == EMPTY) {
+			return -1;
+		}
+		hits++;
+		return results[i] == PASSED ? 1 : 0;
+	}
+	
+	/**
+	 * @param node
+	 * 		number of the node in the evaluation context
+	 */
+	void store(int node, int predicateId, boolean passed) {
+		int end = (node + 1) * predicateCount;
+		if (end > results.length) {
+			results = Arrays.copyOf(results, Math.max(end, results.length * 2));
+		}
+		used = Math.max(used, end);
+		results[node * predicateCount + predicateId] = passed ? PASSED : FAILED;
+	}
+	
+	int getPredicateCount() {
+		return predicateCount;
+	}
+	
+	/**
+	 * Empties the cache for another document, keeping its table
+	 */
+	void clear() {
+		if (used > 0) {
+			Arrays.fill(results, 0, used, EMPTY);
+			used = 0;
+		}
+		hits = 0;
+	}
+	
+	/**
+	 * @return
+	 * 		number of test runs answered from the cache
+	 */
+	long getHits() {
+		return hits;
+	}
+}
@@ -0,0 +1,90 @@
+package xpathengine;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runtime statistics of a test of a compiled query, used to order the tests
+ * of a step so that cheap tests that reject many nodes run first. Only
+ * probed nodes are recorded, on which every test of the step is run, so
+ * that the pass rate of a test does not depend on the tests before it.
+ * Counters may be updated by concurrent evaluations.
+ */
+public class PredicateStatistics {
+	
+	private final String test;
+	private final LongAdder evaluations = new LongAdder();
+	private final LongAdder passes = new LongAdder();
+	private final LongAdder nanos = new LongAdder();
+	
+	PredicateStatistics(String test) {
+		this.test = test;
+	}
+	
+	/**
+	 * @param passed
+	 * 		whether the node passed the test
+	 * @param nanos
+	 * 		time taken by the test
+	 */
+	void record(boolean passed, long nanos) {
+		evaluations.increment();
+		if (passed) {
+			passes.increment();
+		}
+		this.nanos.add(nanos);
+	}
+	
+	void reset() {
+		evaluations.reset();
+		passes.reset();
+		nanos.reset();
+	}
+	
+	/**
+	 * @return
+	 * 		the test, as written in the query
+	 */
+	public String getTest() {
+		return test;
+	}
+	
+	/**
+	 * @return
+	 * 		number of probed nodes the test was run on
+	 */
+	public long getEvaluations() {
+		return evaluations.sum();
+	}
+	
+	/**
+	 * @return
+	 * 		fraction of evaluated nodes that passed the test
+	 */
+	public double getPassRate() {
+		long n = evaluations.sum();
+		return n == 0 ? 1 : (double) passes.sum() / n;
+	}
+	
+	public double getMeanCostNanos() {
+		long n = evaluations.sum();
+		return n == 0 ? 0 : (double) nanos.sum() / n;
+	}
+	
+	/**
+	 * Tests of a step are run in increasing order of rank, the expected
+	 * cost paid per node rejected, which minimizes the expected cost of
+	 * running all of them.
+	 * @return
+	 * 		positive infinity for tests that never reject a node
+	 */
+	public double getRank() {
+		double reject = 1 - getPassRate();
+		return reject == 0 ? Double.POSITIVE_INFINITY : getMeanCostNanos() / reject;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("%s: %d evaluations, %.1f%% passed, %.0f ns", 
+				test, getEvaluations(), getPassRate() * 100, getMeanCostNanos());
+	}
+}
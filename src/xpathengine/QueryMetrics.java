@@ -0,0 +1,145 @@
+package xpathengine;
+
+/**
+ * Evaluation metrics of a single XPath, as of a MetricsSnapshot. Latencies
+ * are kept in a histogram of power of two buckets, so percentiles are
+ * upper bounds within a factor of two.
+ */
+public class QueryMetrics {
+	
+	/**
+	 * Number of latency buckets. Bucket 0 holds latencies under 64ns, bucket
+	 * k holds latencies from 2^(k+5) up to 2^(k+6) nanoseconds, and the last
+	 * bucket holds everything from about 69 seconds.
+	 */
+	public static final int BUCKETS = 32;
+	
+	private final int index;
+	private final String xpath;
+	private final long evaluations;
+	private final long matches;
+	private final long nodesVisited;
+	private final long totalNanos;
+	private final long[] histogram;
+	
+	QueryMetrics(int index, String xpath, long evaluations, long matches, 
+			long nodesVisited, long totalNanos, long[] histogram) {
+		this.index = index;
+		this.xpath = xpath;
+		this.evaluations = evaluations;
+		this.matches = matches;
+		this.nodesVisited = nodesVisited;
+		this.totalNanos = totalNanos;
+		this.histogram = histogram;
+	}
+	
+	/**
+	 * @return
+	 * 		latency bucket of an evaluation taking the given time
+	 */
+	static int bucket(long nanos) {
+		int bits = 64 - Long.numberOfLeadingZeros(nanos);
+		return Math.min(BUCKETS - 1, Math.max(0, bits - 6));
+	}
+	
+	/**
+	 * @return
+	 * 		exclusive upper bound in nanoseconds of the latencies in a bucket,
+	 * 		Long.MAX_VALUE for the last bucket
+	 */
+	public static long getBucketUpperBound(int bucket) {
+		return bucket == BUCKETS - 1 ? Long.MAX_VALUE : 1L << (bucket + 6);
+	}
+	
+	/**
+	 * @return
+	 * 		index of the XPath in setXPaths()
+	 */
+	public int getIndex() {
+		return index;
+	}
+	
+	public String getXPath() {
+		return xpath;
+	}
+	
+	/**
+	 * @return
+	 * 		number of documents the XPath was evaluated against
+	 */
+	public long getEvaluations() {
+		return evaluations;
+	}
+	
+	public long getMatches() {
+		return matches;
+	}
+	
+	/**
+	 * @return
+	 * 		fraction of evaluations that matched, 0 if never evaluated
+	 */
+	public double getMatchRate() {
+		return evaluations == 0 ? 0 : (double) matches / evaluations;
+	}
+	
+	/**
+	 * @return
+	 * 		nodes checked against a step over all evaluations. Only counted
+	 * 		when evaluating DOMs.
+	 */
+	public long getNodesVisited() {
+		return nodesVisited;
+	}
+	
+	/**
+	 * @return
+	 * 		time spent evaluating the XPath over all evaluations
+	 */
+	public long getTotalNanos() {
+		return totalNanos;
+	}
+	
+	public double getMeanNanos() {
+		return evaluations == 0 ? 0 : (double) totalNanos / evaluations;
+	}
+	
+	/**
+	 * @return
+	 * 		number of evaluations in each latency bucket
+	 */
+	public long[] getHistogram() {
+		return histogram.clone();
+	}
+	
+	/**
+	 * @param percentile
+	 * 		between 0 and 100
+	 * @return
+	 * 		upper bound of the bucket holding the given percentile of the
+	 * 		latencies, 0 if never evaluated
+	 */
+	public long getLatencyPercentile(double percentile) {
+		if (evaluations == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(percentile / 100 * evaluations);
+		long seen = 0;
+		for (int k = 0; k < BUCKETS; k++) {
+			seen += histogram[k];
+			if (seen >= rank && seen > 0) {
+				return getBucketUpperBound(k);
+			}
+		}
+		return getBucketUpperBound(BUCKETS - 1);
+	}
+	
+	@Override
+	public String toString() {
+		return xpath + ": " + evaluations + " evaluations, " 
+				+ String.format("%.3f", getMatchRate()) + " match rate, " 
+				+ nodesVisited + " nodes, " 
+				+ String.format("%.1f", getMeanNanos() / 1000) + "us mean, " 
+				+ "p99 < " + getLatencyPercentile(99) / 1000 + "us";
+	}
+}
@@ -0,0 +1,99 @@
+package xpathengine;
+
+/**
+ * Strategy chosen for evaluating one query against one document, with the
+ * estimated costs it was chosen from. Costs are in nodes visited, i.e.
+ * nodes checked against a step of the query.
+ */
+public class QueryPlan {
+	
+	public enum Strategy {
+		// document lacks a node name required by the query, no nodes visited
+		NAME_PREFILTER,
+		// recursive descent from the document root
+		TOP_DOWN,
+		// verify upwards from the hits of a DocumentIndex
+		BOTTOM_UP
+	}
+	
+	private final String query;
+	private final Strategy strategy;
+	private final double topDownCost;
+	private final double bottomUpCost;
+	private long actualNodesVisited = -1;
+	
+	QueryPlan(String query, Strategy strategy, double topDownCost, 
+			double bottomUpCost) {
+		this.query = query;
+		this.strategy = strategy;
+		this.topDownCost = topDownCost;
+		this.bottomUpCost = bottomUpCost;
+	}
+	
+	public String getQuery() {
+		return query;
+	}
+	
+	public Strategy getStrategy() {
+		return strategy;
+	}
+	
+	/**
+	 * @return
+	 * 		estimated nodes visited by the chosen strategy
+	 */
+	public double getEstimatedNodesVisited() {
+		switch (strategy) {
+		case TOP_DOWN:
+			return topDownCost;
+		case BOTTOM_UP:
+			return bottomUpCost;
+		default:
+			return 0;
+		}
+	}
+	
+	public double getTopDownCost() {
+		return topDownCost;
+	}
+	
+	/**
+	 * @return
+	 * 		negative if the query cannot be evaluated bottom-up
+	 */
+	public double getBottomUpCost() {
+		return bottomUpCost;
+	}
+	
+	/**
+	 * @return
+	 * 		nodes visited when the plan was executed, including the share of
+	 * 		building the index of a bottom-up plan. Negative if the plan has
+	 * 		not been executed
+	 */
+	public long getActualNodesVisited() {
+		return actualNodesVisited;
+	}
+	
+	void setActualNodesVisited(long nodesVisited) {
+		this.actualNodesVisited = nodesVisited;
+	}
+	
+	/**
+	 * Describes the plan, in the format returned by XPathEngineImpl.explain()
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("query: ").append(query).append("\n");
+		sb.append("plan: ").append(strategy).append("\n");
+		sb.append(String.format("estimated cost: top-down %.1f, bottom-up %s%n", 
+				topDownCost, 
+				bottomUpCost < 0 ? "n/a" : String.format("%.1f", bottomUpCost)));
+		sb.append(String.format("estimated nodes visited: %.1f%n", 
+				getEstimatedNodesVisited()));
+		sb.append("actual nodes visited: ");
+		sb.append(actualNodesVisited < 0 ? "n/a" : String.valueOf(actualNodesVisited));
+		return sb.toString();
+	}
+}
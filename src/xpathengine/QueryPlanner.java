@@ -0,0 +1,86 @@
+package xpathengine;
+
+import xpathengine.QueryPlan.Strategy;
+
+/**
+ * Chooses how a compiled query is evaluated against a document, by
+ * estimating the nodes visited by each strategy from the statistics of
+ * the document
+ */
+public class QueryPlanner {
+	
+	private boolean bottomUpEnabled = true;
+	
+	public void setBottomUpEnabled(boolean enabled) {
+		this.bottomUpEnabled = enabled;
+	}
+	
+	/**
+	 * @param query
+	 * 		compiled query
+	 * @param bottomUp
+	 * 		bottom-up evaluator for the query, null if it has no indexable test
+	 * @param stats
+	 * 		statistics of the document
+	 * @param index
+	 * 		index of the document, null if it has not been built
+	 * @param indexUsers
+	 * 		number of queries evaluated against the document that could use
+	 * 		the index, over which the cost of building it is shared
+	 * @return
+	 * 		plan for evaluating the query against the document
+	 */
+	public QueryPlan plan(XPathQuery query, BottomUpEvaluator bottomUp, 
+			DocumentStatistics stats, DocumentIndex index, int indexUsers) {
+		String q = query.getOriginalQuery();
+		double topDown = estimateTopDown(query, stats);
+		double bottomUpCost = -1;
+		if (bottomUpEnabled && bottomUp != null) {
+			bottomUpCost = estimateBottomUp(bottomUp, stats, index, indexUsers);
+		}
+		
+		// a node name that does not occur in the document rules out a match
+		for (String name : query.getRequiredNames()) {
+			if (stats.getNameCount(name) == 0) {
+				return new QueryPlan(q, Strategy.NAME_PREFILTER, topDown, bottomUpCost);
+			}
+		}
+		if (bottomUpCost >= 0 && bottomUpCost < topDown) {
+			return new QueryPlan(q, Strategy.BOTTOM_UP, topDown, bottomUpCost);
+		}
+		return new QueryPlan(q, Strategy.TOP_DOWN, topDown, bottomUpCost);
+	}
+	
+	/**
+	 * Estimates the nodes visited by a top-down walk, which checks every
+	 * child of the nodes matching the previous step. The number of nodes
+	 * matching a step is bounded by the number of elements with its name.
+	 */
+	static double estimateTopDown(XPathQuery query, DocumentStatistics stats) {
+		double fanOut = stats.getAverageFanOut();
+		double visited = stats.getRootChildCount();
+		double candidates = Math.min(stats.getRootChildCount(), 
+				stats.getNameCount(query.getStepNames()[0]));
+		String[] steps = query.getStepNames();
+		for (int i = 1; i < steps.length && candidates > 0; i++) {
+			double children = candidates * fanOut;
+			visited += children;
+			candidates = Math.min(children, stats.getNameCount(steps[i]));
+		}
+		return visited;
+	}
+	
+	/**
+	 * Estimates the nodes visited when verifying each hit of the most
+	 * selective anchor, plus this query's share of building the index
+	 */
+	static double estimateBottomUp(BottomUpEvaluator bottomUp, 
+			DocumentStatistics stats, DocumentIndex index, int indexUsers) {
+		if (index != null) {
+			return bottomUp.estimateCost(index);
+		}
+		double hits = bottomUp.estimateHits(stats);
+		double build = (double) stats.getElementCount() / Math.max(1, indexUsers);
+		return hits * bottomUp.getStepCount() + build;
+	}
+}
@@ -0,0 +1,235 @@
+package xpathengine;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import models.TextMatcher;
+import xpathengine.Token.TestType;
+import xpathengine.Token.Type;
+
+/**
+ * Compiled XPaths of an engine and the indexes built over them, saved as a
+ * versioned binary file so that an engine can be restored without parsing
+ * and checking every XPath again. The file is memory-mapped when read.
+ * 
+ * Format, big-endian: magic, version, a table of distinct strings, names
+ * by slot, the number of shared tests, then each XPath with its required
+ * slots and tokens. Tokens refer to strings by their number in the table,
+ * and carry their name slot, shared test number, test type and the parsed
+ * parts of their test, with the tokens of step tests nested. Token and
+ * test types are written by ordinal, so the version must change with them.
+ */
+final class QuerySnapshot {
+	
+	static final int MAGIC = 0x58505153;
+	static final int VERSION = 1;
+	private static final int NONE = -1;
+	
+	final String[] xpaths;
+	final XPathQuery[] queries;
+	final byte[][] slotNames;
+	final int[][] requiredSlots;
+	final int sharedPredicates;
+	
+	QuerySnapshot(String[] xpaths, XPathQuery[] queries, byte[][] slotNames, 
+			int[][] requiredSlots, int sharedPredicates) {
+		this.xpaths = xpaths;
+		this.queries = queries;
+		this.slotNames = slotNames;
+		this.requiredSlots = requiredSlots;
+		this.sharedPredicates = sharedPredicates;
+	}
+	
+	/**
+	 * Writes the snapshot to a temporary file, and moves it over the given
+	 * file once complete
+	 */
+	void write(Path file) throws IOException {
+		Map<String, Integer> strings = new HashMap<>();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream body = new DataOutputStream(bytes);
+		body.writeInt(slotNames.length);
+		for (byte[] name : slotNames) {
+			body.writeInt(string(new String(name, StandardCharsets.UTF_8), strings));
+		}
+		body.writeInt(sharedPredicates);
+		body.writeInt(xpaths.length);
+		for (int i = 0; i < xpaths.length; i++) {
+			body.writeInt(xpaths[i] == null ? NONE : string(xpaths[i], strings));
+			body.writeBoolean(queries[i] != null);
+			if (queries[i] == null) {
+				continue;
+			}
+			body.writeInt(requiredSlots[i].length);
+			for (int slot : requiredSlots[i]) {
+				body.writeInt(slot);
+			}
+			writeTokens(body, queries[i].getWrittenTokens(), strings);
+		}
+		body.flush();
+		
+		String[] table = new String[strings.size()];
+		for (Map.Entry<String, Integer> e : strings.entrySet()) {
+			table[e.getValue()] = e.getKey();
+		}
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					Files.newOutputStream(tmp)))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(table.length);
+				for (String s : table) {
+					byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+					out.writeInt(utf8.length);
+					out.write(utf8);
+				}
+				bytes.writeTo(out);
+			}
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, 
+					StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+	
+	private static void writeTokens(DataOutputStream out, Token[] tokens, 
+			Map<String, Integer> strings) throws IOException {
+		out.writeInt(tokens.length);
+		for (Token t : tokens) {
+			out.writeByte(t.type.ordinal());
+			out.writeInt(string(t.val, strings));
+			out.writeInt(t.nameSlot);
+			out.writeInt(t.predicateId);
+			if (t.type != Type.TEST) {
+				continue;
+			}
+			TestType tt = XPathQuery.getTestType(t);
+			out.writeByte(tt.ordinal());
+			switch (tt) {
+			case ATTNAME: {
+				String[] attTest = XPathQuery.getAttributeTest(t);
+				out.writeInt(string(attTest[0], strings));
+				out.writeInt(string(attTest[1], strings));
+				break;
+			}
+			case STEP:
+				writeTokens(out, XPathQuery.getStepTokens(t), strings);
+				break;
+			default: {
+				TextMatcher matcher = XPathQuery.getMatcher(t);
+				out.writeInt(matcher == null ? NONE : string(matcher.getPattern(), strings));
+			}
+			}
+		}
+	}
+	
+	private static int string(String s, Map<String, Integer> strings) {
+		Integer id = strings.get(s);
+		if (id == null) {
+			id = strings.size();
+			strings.put(s, id);
+		}
+		return id;
+	}
+	
+	/**
+	 * Maps and reads a snapshot
+	 * @throws IOException
+	 * 		if the file cannot be read, or is not a snapshot of this version
+	 */
+	static QuerySnapshot read(Path file) throws IOException {
+		ByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+		}
+		try {
+			if (buffer.remaining() < 8 || buffer.getInt() != MAGIC) {
+				throw new IOException("not a query snapshot: " + file);
+			}
+			if (buffer.getInt() != VERSION) {
+				throw new IOException("unsupported snapshot version: " + file);
+			}
+			String[] strings = new String[buffer.getInt()];
+			for (int i = 0; i < strings.length; i++) {
+				byte[] utf8 = new byte[buffer.getInt()];
+				buffer.get(utf8);
+				strings[i] = new String(utf8, StandardCharsets.UTF_8);
+			}
+			byte[][] slotNames = new byte[buffer.getInt()][];
+			for (int i = 0; i < slotNames.length; i++) {
+				slotNames[i] = strings[buffer.getInt()].getBytes(StandardCharsets.UTF_8);
+			}
+			int sharedPredicates = buffer.getInt();
+			// literals shared by tests compile to a single matcher
+			Map<String, TextMatcher> matchers = new HashMap<>();
+			String[] xpaths = new String[buffer.getInt()];
+			XPathQuery[] queries = new XPathQuery[xpaths.length];
+			int[][] requiredSlots = new int[xpaths.length][];
+			for (int i = 0; i < xpaths.length; i++) {
+				int xpath = buffer.getInt();
+				xpaths[i] = xpath == NONE ? null : strings[xpath];
+				if (buffer.get() == 0) {
+					continue;
+				}
+				requiredSlots[i] = new int[buffer.getInt()];
+				for (int r = 0; r < requiredSlots[i].length; r++) {
+					requiredSlots[i][r] = buffer.getInt();
+				}
+				queries[i] = new XPathQuery(xpaths[i], readTokens(buffer, strings, matchers));
+			}
+			return new QuerySnapshot(xpaths, queries, slotNames, requiredSlots, 
+					sharedPredicates);
+		} catch (BufferUnderflowException | IndexOutOfBoundsException 
+				| NegativeArraySizeException e) {
+			throw new IOException("corrupt query snapshot: " + file, e);
+		}
+	}
+	
+	private static Token[] readTokens(ByteBuffer buffer, String[] strings, 
+			Map<String, TextMatcher> matchers) {
+		Token[] tokens = new Token[buffer.getInt()];
+		for (int k = 0; k < tokens.length; k++) {
+			Token t = new Token(Type.values()[buffer.get()], strings[buffer.getInt()]);
+			t.nameSlot = buffer.getInt();
+			t.predicateId = buffer.getInt();
+			tokens[k] = t;
+			if (t.type != Type.TEST) {
+				continue;
+			}
+			TestType tt = TestType.values()[buffer.get()];
+			t.testType = tt;
+			switch (tt) {
+			case ATTNAME: {
+				String[] attTest = { strings[buffer.getInt()], strings[buffer.getInt()] };
+				t.attributeTest = attTest;
+				t.matcher = matchers.computeIfAbsent(attTest[1], TextMatcher::new);
+				break;
+			}
+			case STEP:
+				t.stepTokens = readTokens(buffer, strings, matchers);
+				break;
+			default: {
+				int literal = buffer.getInt();
+				if (literal != NONE) {
+					t.matcher = matchers.computeIfAbsent(strings[literal], TextMatcher::new);
+				}
+			}
+			}
+		}
+		return tokens;
+	}
+}
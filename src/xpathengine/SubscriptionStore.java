@@ -0,0 +1,348 @@
+package xpathengine;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+import xpathengine.Token.Type;
+
+/**
+ * Holds many XPath subscriptions in primitive arrays rather than as Strings
+ * and Token objects. Names and tests are stored once as UTF-8 in a shared
+ * pool, identical steps are stored once as a name and its tests, and each
+ * subscription is a list of steps whose tails are shared with every other
+ * subscription ending in the same steps. Subscriptions that end alike,
+ * such as many tests on the same element path, cost little more than
+ * their first steps.
+ * 
+ * Subscriptions are kept in the canonical form produced by tokenizing
+ * them, and are rebuilt as text or tokens on demand. Not thread-safe.
+ */
+public class SubscriptionStore {
+	
+	private static final int NONE = -1;
+	// bytes of the header of an array, used to estimate the size
+	private static final int ARRAY_HEADER = 16;
+	
+	// UTF-8 names and tests, each string stored once
+	private byte[] strings = new byte[1024];
+	private int stringBytes = 0;
+	private int[] stringOffsets = new int[64];
+	private int stringCount = 0;
+	private final IdTable stringTable = new IdTable();
+	
+	// steps as name, number of tests, then the tests, each step stored once
+	private int[] steps = new int[256];
+	private int stepInts = 0;
+	private int[] stepOffsets = new int[64];
+	private int stepCount = 0;
+	private final IdTable stepTable = new IdTable();
+	
+	// list cells of a step and the next cell, each cell stored once, so
+	// that lists with equal tails share them
+	private int[] cellSteps = new int[64];
+	private int[] cellNext = new int[64];
+	private int cellCount = 0;
+	private final IdTable cellTable = new IdTable();
+	
+	// first cell of each subscription
+	private int[] heads = new int[64];
+	private int size = 0;
+	
+	// step and steps of the subscription being added, reused across adds
+	private int[] pending = new int[16];
+	private int[] subscriptionSteps = new int[16];
+	
+	/**
+	 * Open addressing table from hashes to ids, comparing candidates through
+	 * the store so that no key objects are kept
+	 */
+	private static final class IdTable {
+		private int[] ids = new int[64];
+		private int[] hashes = new int[64];
+		private int count = 0;
+		
+		IdTable() {
+			Arrays.fill(ids, NONE);
+		}
+		
+		/**
+		 * @return
+		 * 		position of the id with the given hash equal to the key, or
+		 * 		of the empty position where it would be inserted
+		 */
+		int find(int hash, IntPredicate equalsKey) {
+			int mask = ids.length - 1;
+			int pos = mix(hash) & mask;
+			while (ids[pos] != NONE) {
+				if (hashes[pos] == hash && equalsKey.test(ids[pos])) {
+					return pos;
+				}
+				pos = (pos + 1) & mask;
+			}
+			return pos;
+		}
+		
+		int get(int pos) {
+			return ids[pos];
+		}
+		
+		void insert(int pos, int hash, int id) {
+			ids[pos] = id;
+			hashes[pos] = hash;
+			if (++count * 2 > ids.length) {
+				grow();
+			}
+		}
+		
+		private void grow() {
+			int[] oldIds = ids;
+			int[] oldHashes = hashes;
+			ids = new int[oldIds.length * 2];
+			hashes = new int[oldIds.length * 2];
+			Arrays.fill(ids, NONE);
+			int mask = ids.length - 1;
+			for (int k = 0; k < oldIds.length; k++) {
+				if (oldIds[k] == NONE) {
+					continue;
+				}
+				int pos = mix(oldHashes[k]) & mask;
+				while (ids[pos] != NONE) {
+					pos = (pos + 1) & mask;
+				}
+				ids[pos] = oldIds[k];
+				hashes[pos] = oldHashes[k];
+			}
+		}
+		
+		long bytes() {
+			return 2 * (ARRAY_HEADER + 4L * ids.length);
+		}
+		
+		private static int mix(int hash) {
+			int h = hash * 0x9e3779b9;
+			return h ^ (h >>> 16);
+		}
+	}
+	
+	/**
+	 * Adds a subscription
+	 * @return
+	 * 		id of the subscription, or -1 if the XPath is invalid
+	 */
+	public int add(String xpath) {
+		Token[] tokens = XPathQuery.getCheckedTokens(xpath);
+		if (tokens == null) {
+			return NONE;
+		}
+		// intern each step, after the XPATH token
+		int count = 0;
+		int k = 1;
+		while (k < tokens.length) {
+			// AXIS, then NODENAME, then its tests
+			int length = 0;
+			pending = ensure(pending, 2);
+			pending[length++] = intern(tokens[k + 1].val);
+			pending[length++] = 0;
+			k += 2;
+			while (k < tokens.length && tokens[k].type == Type.TEST) {
+				pending = ensure(pending, length + 1);
+				pending[length++] = intern(tokens[k].val);
+				pending[1]++;
+				k++;
+			}
+			subscriptionSteps = ensure(subscriptionSteps, count + 1);
+			subscriptionSteps[count++] = internStep(pending, length);
+		}
+		// build the list from its tail, so that equal tails are shared
+		int cell = NONE;
+		for (int s = count - 1; s >= 0; s--) {
+			cell = internCell(subscriptionSteps[s], cell);
+		}
+		heads = ensure(heads, size + 1);
+		heads[size] = cell;
+		return size++;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * @return
+	 * 		XPath of the subscription in canonical form
+	 */
+	public String get(int id) {
+		StringBuilder sb = new StringBuilder();
+		for (int cell = heads[id]; cell != NONE; cell = cellNext[cell]) {
+			int step = stepOffsets[cellSteps[cell]];
+			sb.append('/').append(string(steps[step]));
+			for (int t = 0; t < steps[step + 1]; t++) {
+				sb.append('[').append(string(steps[step + 2 + t])).append(']');
+			}
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * @return
+	 * 		tokens of the subscription, equal to those of 
+	 * 		XPathQuery.getCheckedTokens() for the XPath added
+	 */
+	public Token[] getTokens(int id) {
+		int count = 1;
+		for (int cell = heads[id]; cell != NONE; cell = cellNext[cell]) {
+			count += 2 + steps[stepOffsets[cellSteps[cell]] + 1];
+		}
+		Token[] tokens = new Token[count];
+		int k = 0;
+		tokens[k++] = new Token(Type.XPATH, "");
+		for (int cell = heads[id]; cell != NONE; cell = cellNext[cell]) {
+			int step = stepOffsets[cellSteps[cell]];
+			tokens[k++] = new Token(Type.AXIS, "/");
+			tokens[k++] = new Token(Type.NODENAME, string(steps[step]));
+			for (int t = 0; t < steps[step + 1]; t++) {
+				tokens[k++] = new Token(Type.TEST, string(steps[step + 2 + t]));
+			}
+		}
+		return tokens;
+	}
+	
+	/**
+	 * @return
+	 * 		number of distinct names and tests
+	 */
+	public int getStringCount() {
+		return stringCount;
+	}
+	
+	/**
+	 * @return
+	 * 		number of distinct steps
+	 */
+	public int getStepCount() {
+		return stepCount;
+	}
+	
+	/**
+	 * @return
+	 * 		number of list cells, which is the number of steps of all
+	 * 		subscriptions less those in shared tails
+	 */
+	public int getCellCount() {
+		return cellCount;
+	}
+	
+	/**
+	 * @return
+	 * 		estimated heap bytes of the store, counting the capacity of its
+	 * 		arrays
+	 */
+	public long getBytes() {
+		return arrayBytes(strings.length, 1) + arrayBytes(stringOffsets.length, 4)
+				+ arrayBytes(steps.length, 4) + arrayBytes(stepOffsets.length, 4)
+				+ arrayBytes(cellSteps.length, 4) + arrayBytes(cellNext.length, 4)
+				+ arrayBytes(heads.length, 4) + stringTable.bytes() + stepTable.bytes() 
+				+ cellTable.bytes();
+	}
+	
+	/**
+	 * Releases the spare capacity of the arrays once all subscriptions are
+	 * added. Subscriptions can still be added afterwards.
+	 */
+	public void trim() {
+		strings = Arrays.copyOf(strings, Math.max(1, stringBytes));
+		stringOffsets = Arrays.copyOf(stringOffsets, stringCount + 1);
+		steps = Arrays.copyOf(steps, Math.max(1, stepInts));
+		stepOffsets = Arrays.copyOf(stepOffsets, Math.max(1, stepCount));
+		cellSteps = Arrays.copyOf(cellSteps, Math.max(1, cellCount));
+		cellNext = Arrays.copyOf(cellNext, Math.max(1, cellCount));
+		heads = Arrays.copyOf(heads, Math.max(1, size));
+	}
+	
+	private static long arrayBytes(int length, int elementBytes) {
+		return ARRAY_HEADER + (long) length * elementBytes;
+	}
+	
+	private String string(int id) {
+		int start = stringOffsets[id];
+		return new String(strings, start, stringOffsets[id + 1] - start, 
+				StandardCharsets.UTF_8);
+	}
+	
+	private int intern(String s) {
+		byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+		int hash = Arrays.hashCode(utf8);
+		int pos = stringTable.find(hash, id -> {
+			int start = stringOffsets[id];
+			return Arrays.equals(strings, start, stringOffsets[id + 1], utf8, 0, utf8.length);
+		});
+		int id = stringTable.get(pos);
+		if (id != NONE) {
+			return id;
+		}
+		while (stringBytes + utf8.length > strings.length) {
+			strings = Arrays.copyOf(strings, strings.length * 2);
+		}
+		System.arraycopy(utf8, 0, strings, stringBytes, utf8.length);
+		stringBytes += utf8.length;
+		id = stringCount++;
+		// offsets hold the start of each string and the end of the last
+		stringOffsets = ensure(stringOffsets, stringCount + 1);
+		stringOffsets[stringCount] = stringBytes;
+		stringTable.insert(pos, hash, id);
+		return id;
+	}
+	
+	private int internStep(int[] step, int length) {
+		int hash = hash(step, 0, length);
+		int pos = stepTable.find(hash, id -> {
+			int start = stepOffsets[id];
+			return steps[start + 1] == step[1] 
+					&& Arrays.equals(steps, start, start + length, step, 0, length);
+		});
+		int id = stepTable.get(pos);
+		if (id != NONE) {
+			return id;
+		}
+		while (stepInts + length > steps.length) {
+			steps = Arrays.copyOf(steps, steps.length * 2);
+		}
+		System.arraycopy(step, 0, steps, stepInts, length);
+		stepOffsets = ensure(stepOffsets, stepCount + 1);
+		stepOffsets[stepCount] = stepInts;
+		stepInts += length;
+		id = stepCount++;
+		stepTable.insert(pos, hash, id);
+		return id;
+	}
+	
+	private int internCell(int step, int next) {
+		int hash = step * 31 + next;
+		int pos = cellTable.find(hash, id -> cellSteps[id] == step && cellNext[id] == next);
+		int id = cellTable.get(pos);
+		if (id != NONE) {
+			return id;
+		}
+		cellSteps = ensure(cellSteps, cellCount + 1);
+		cellNext = ensure(cellNext, cellCount + 1);
+		cellSteps[cellCount] = step;
+		cellNext[cellCount] = next;
+		id = cellCount++;
+		cellTable.insert(pos, hash, id);
+		return id;
+	}
+	
+	private static int hash(int[] values, int from, int to) {
+		int hash = 1;
+		for (int k = from; k < to; k++) {
+			hash = hash * 31 + values[k];
+		}
+		return hash;
+	}
+	
+	private static int[] ensure(int[] array, int length) {
+		return length <= array.length ? array : Arrays.copyOf(array, 
+				Math.max(length, array.length * 2));
+	}
+}
@@ -3,6 +3,8 @@
  */
 package xpathengine;
 
+import models.TextMatcher;
+
 /**
  * Represents a token in the XPath query
  */
@@ -18,6 +20,21 @@ public class Token {
 
 	Type type;
 	String val;
+	// type of a TEST token, set on first use
+	TestType testType;
+	// compiled literal of a CONTAINS, TEXT or ATTNAME test, set on first use
+	TextMatcher matcher;
+	// attribute name and value of an ATTNAME test, set on first use
+	String[] attributeTest;
+	// tokens of a STEP test, set on first use
+	Token[] stepTokens;
+	// slot of the name of a NODENAME token or of the attribute of an
+	// ATTNAME test in the names of compiled queries, -1 if not numbered
+	int nameSlot = -1;
+	// runtime statistics of a test of a compiled query, null otherwise
+	PredicateStatistics stats;
+	// number of a test shared by several compiled queries, -1 otherwise
+	int predicateId = -1;
 	
 	public Token(Type type, String val) {
 		this.type = type;
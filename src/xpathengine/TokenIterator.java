@@ -17,6 +17,14 @@ public class TokenIterator {
 		this.curr = 0;
 	}
 	
+	/**
+	 * Restarts the iterator over other tokens, so that it can be reused
+	 */
+	public void reset(Token[] tokens) {
+		this.tokens = tokens;
+		this.curr = 0;
+	}
+	
 	public boolean hasNext() {
 		return hasNext(1);
 	}
@@ -74,6 +82,14 @@ public class TokenIterator {
 		return tokens[curr - offset];
 	}
 	
+	/**
+	 * @return
+	 * 		tokens iterated over
+	 */
+	Token[] getTokens() {
+		return tokens;
+	}
+	
 	public int getPos() {
 		return curr;
 	}
@@ -1,5 +1,7 @@
 package xpathengine;
 
+import java.util.Arrays;
+
 import org.w3c.dom.Document;
 
 public interface XPathEngine {
@@ -30,4 +32,48 @@ public interface XPathEngine {
 	 */
 	boolean[] evaluate(Document document);
 
+	/**
+	 * Evaluates XPaths set in setXPaths() against the document, adding the
+	 * matched XPaths to a collector. For large sets of XPaths of which few
+	 * match, this avoids allocating and scanning an element per XPath.
+	 * @param document
+	 * 		DOM root node
+	 * @param matches
+	 * 		collector, begun for the number of XPaths set, or for none if
+	 * 		setXPaths() has not been called
+	 */
+	default void evaluate(Document document, MatchCollector matches) {
+		boolean[] result = evaluate(document);
+		matches.begin(result == null ? 0 : result.length);
+		for (int i = 0; result != null && i < result.length; i++) {
+			if (result[i]) {
+				matches.add(i);
+			}
+		}
+	}
+
+	/**
+	 * Evaluates XPaths set in setXPaths() against the document within a
+	 * budget. XPaths not decided when the budget is spent are reported as
+	 * undecided. Engines that cannot bound their work evaluate the document
+	 * in full.
+	 * @param document
+	 * 		DOM root node
+	 * @param budget
+	 * 		limit on the nodes visited and time spent
+	 * @return
+	 * 		decided and undecided results of each XPath. null if setXPaths()
+	 * 		has not been called
+	 */
+	default BoundedResult evaluate(Document document, EvaluationBudget budget) {
+		long start = System.nanoTime();
+		boolean[] matches = evaluate(document);
+		if (matches == null) {
+			return null;
+		}
+		boolean[] decided = new boolean[matches.length];
+		Arrays.fill(decided, true);
+		return new BoundedResult(matches, decided, 0, System.nanoTime() - start);
+	}
+
 }
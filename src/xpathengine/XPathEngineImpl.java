@@ -3,48 +3,881 @@
  */
 package xpathengine;
 
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
 import org.w3c.dom.Document;
-import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
+import models.PackedDocument;
+import models.TextMatcher;
+
+import xpathengine.EvaluationContext.BudgetExceededException;
+import xpathengine.QueryPlan.Strategy;
 import xpathengine.Token.TestType;
 import xpathengine.Token.Type;
 
 public class XPathEngineImpl implements XPathEngine {
 
 	private String[] xpaths = null;
+	// compiled queries, null for invalid XPaths
+	private XPathQuery[] queries = null;
+	// bottom-up evaluators, null for queries without indexable tests
+	private BottomUpEvaluator[] bottomUp = null;
+	// number of queries that can be evaluated bottom-up
+	private int indexUsers = 0;
+	private final QueryPlanner planner = new QueryPlanner();
+	private boolean plannerEnabled = true;
+	
+	/**
+	 * Every PROBE_MASK + 1'th node reaching the tests of a step is probed
+	 * for test statistics
+	 */
+	static final int PROBE_MASK = 15;
+	/**
+	 * Number of documents evaluated between reorderings of tests
+	 */
+	static final int REORDER_INTERVAL = 64;
+	private volatile boolean adaptiveOrderingEnabled = false;
+	private volatile boolean testOrderFrozen = false;
+	private final AtomicLong documentsEvaluated = new AtomicLong();
+	// number of distinct tests occurring in more than one query
+	private int sharedPredicates = 0;
+	private volatile boolean predicateSharingEnabled = false;
+	private final LongAdder testsSaved = new LongAdder();
+	private volatile boolean attributeIndexEnabled = false;
+	// UTF-8 names occurring in the compiled queries, by slot
+	private byte[][] slotNames = new byte[0][];
+	// slots of the names required by each compiled query
+	private int[][] requiredSlots = null;
+	// evaluation state reused by each thread across documents
+	private final ThreadLocal<EvaluationContext> contexts = 
+			ThreadLocal.withInitial(EvaluationContext::new);
+	/**
+	 * Number of most recent budget violations kept
+	 */
+	static final int VIOLATION_LOG_CAPACITY = 1000;
+	private final Deque<BudgetViolation> violations = new ArrayDeque<>();
+	private final LongAdder violationCount = new LongAdder();
+	private final LongAdder undecidedCount = new LongAdder();
+	private volatile ForkJoinPool parallelPool = null;
+	private volatile int parallelThreshold = Integer.MAX_VALUE;
+	// null unless metrics are enabled
+	private volatile EngineMetrics metrics = null;
 
 	public XPathEngineImpl() {}
 
 	public void setXPaths(String[] s) {
 		this.xpaths = s;
+		if (s == null) {
+			this.queries = null;
+			this.bottomUp = null;
+			this.indexUsers = 0;
+			return;
+		}
+		// compile XPaths once, rather than on each evaluation
+		XPathQuery[] queries = new XPathQuery[s.length];
+		for (int i = 0; i < s.length; i++) {
+			try {
+				queries[i] = new XPathQuery(s[i]);
+			} catch (IllegalArgumentException e) {
+				queries[i] = null;
+			}
+		}
+		this.queries = queries;
+		compileBottomUp(queries);
+		this.sharedPredicates = numberSharedPredicates(queries);
+		numberNames(queries);
+		EngineMetrics metrics = this.metrics;
+		if (metrics != null) {
+			metrics.reset(s);
+		}
+	}
+
+	/**
+	 * Saves the XPaths set, compiled, with the numbering of their names and
+	 * shared tests, so that loadSnapshot() can restore them without parsing
+	 * them again. Tests are saved in the order written, without statistics.
+	 * @param file
+	 * 		replaced once the snapshot is complete
+	 */
+	public void saveSnapshot(Path file) throws IOException {
+		if (xpaths == null) {
+			throw new IllegalStateException("no XPaths set");
+		}
+		new QuerySnapshot(xpaths, queries, slotNames, requiredSlots, sharedPredicates)
+				.write(file);
+	}
+
+	/**
+	 * Sets the XPaths saved by saveSnapshot(), as setXPaths() would set
+	 * them, memory-mapping the snapshot rather than parsing the XPaths
+	 * @throws IOException
+	 * 		if the file is not a snapshot of this version
+	 */
+	public void loadSnapshot(Path file) throws IOException {
+		QuerySnapshot snapshot = QuerySnapshot.read(file);
+		this.xpaths = snapshot.xpaths;
+		this.queries = snapshot.queries;
+		compileBottomUp(snapshot.queries);
+		this.sharedPredicates = snapshot.sharedPredicates;
+		this.slotNames = snapshot.slotNames;
+		this.requiredSlots = snapshot.requiredSlots;
+		EngineMetrics metrics = this.metrics;
+		if (metrics != null) {
+			metrics.reset(snapshot.xpaths);
+		}
+	}
+
+	private void compileBottomUp(XPathQuery[] queries) {
+		BottomUpEvaluator[] bottomUp = new BottomUpEvaluator[queries.length];
+		int indexUsers = 0;
+		for (int i = 0; i < queries.length; i++) {
+			if (queries[i] != null) {
+				bottomUp[i] = BottomUpEvaluator.compile(queries[i].getTokens());
+				if (bottomUp[i] != null) {
+					indexUsers++;
+				}
+			}
+		}
+		this.bottomUp = bottomUp;
+		this.indexUsers = indexUsers;
+	}
+
+	/**
+	 * Numbers the element and attribute names of the compiled queries,
+	 * including those in step tests, into slots. Compiles the tests on
+	 * the way, so that evaluating them does not parse them again.
+	 */
+	private void numberNames(XPathQuery[] queries) {
+		Map<String, Integer> slots = new HashMap<>();
+		int[][] requiredSlots = new int[queries.length][];
+		for (int i = 0; i < queries.length; i++) {
+			if (queries[i] == null) {
+				continue;
+			}
+			numberNames(queries[i].getTokens(), slots);
+			Set<String> required = queries[i].getRequiredNames();
+			requiredSlots[i] = new int[required.size()];
+			int r = 0;
+			for (String name : required) {
+				requiredSlots[i][r++] = slot(name, slots);
+			}
+		}
+		byte[][] slotNames = new byte[slots.size()][];
+		for (Map.Entry<String, Integer> e : slots.entrySet()) {
+			slotNames[e.getValue()] = e.getKey().getBytes(StandardCharsets.UTF_8);
+		}
+		this.slotNames = slotNames;
+		this.requiredSlots = requiredSlots;
+	}
+
+	private static void numberNames(Token[] tokens, Map<String, Integer> slots) {
+		for (Token t : tokens) {
+			if (t.type == Type.NODENAME) {
+				t.nameSlot = slot(t.val, slots);
+			} else if (t.type == Type.TEST) {
+				switch (XPathQuery.getTestType(t)) {
+				case ATTNAME:
+					t.nameSlot = slot(XPathQuery.getAttributeTest(t)[0], slots);
+					XPathQuery.getMatcher(t);
+					break;
+				case STEP:
+					numberNames(XPathQuery.getStepTokens(t), slots);
+					break;
+				default:
+					XPathQuery.getMatcher(t);
+				}
+			}
+		}
+	}
+
+	private static int slot(String name, Map<String, Integer> slots) {
+		Integer slot = slots.get(name);
+		if (slot == null) {
+			slot = slots.size();
+			slots.put(name, slot);
+		}
+		return slot;
+	}
+
+	/**
+	 * Numbers the distinct tests that occur more than once in the compiled
+	 * queries, so that their results can be shared within a document
+	 * @return
+	 * 		number of shared tests
+	 */
+	private static int numberSharedPredicates(XPathQuery[] queries) {
+		Map<String, List<Token>> tests = new HashMap<>();
+		for (XPathQuery q : queries) {
+			if (q == null) {
+				continue;
+			}
+			for (Token t : q.getTokens()) {
+				if (t.type == Type.TEST) {
+					List<Token> same = tests.get(t.val);
+					if (same == null) {
+						same = new ArrayList<>();
+						tests.put(t.val, same);
+					}
+					same.add(t);
+				}
+			}
+		}
+		int shared = 0;
+		for (List<Token> same : tests.values()) {
+			if (same.size() > 1) {
+				for (Token t : same) {
+					t.predicateId = shared;
+				}
+				shared++;
+			}
+		}
+		return shared;
+	}
+
+	/**
+	 * Enables or disables evaluating selective queries bottom-up from a
+	 * DocumentIndex. Enabled by default.
+	 */
+	public void setBottomUpEnabled(boolean enabled) {
+		planner.setBottomUpEnabled(enabled);
+	}
+
+	/**
+	 * Enables or disables choosing an evaluation strategy per query from
+	 * the statistics of each document. If disabled, all queries are
+	 * evaluated top-down. Enabled by default. Statistics are only collected
+	 * for documents evaluated against a query that can be evaluated
+	 * bottom-up, or taken from the index if one is given.
+	 */
+	public void setPlannerEnabled(boolean enabled) {
+		this.plannerEnabled = enabled;
+	}
+
+	/**
+	 * Enables or disables collecting statistics of the tests of each step
+	 * while evaluating documents, and periodically reordering the tests so
+	 * that cheap tests rejecting many nodes run first. Disabled by default,
+	 * as probing costs every query, while reordering only pays off for
+	 * steps with several tests whose costs and pass rates differ.
+	 */
+	public void setAdaptiveOrderingEnabled(boolean enabled) {
+		this.adaptiveOrderingEnabled = enabled;
+	}
+
+	/**
+	 * Freezes the order of tests learned so far, and stops collecting
+	 * statistics, or resumes learning
+	 */
+	public void setTestOrderFrozen(boolean frozen) {
+		this.testOrderFrozen = frozen;
+	}
+
+	/**
+	 * Restores the order of tests written in each query, and discards the
+	 * statistics learned so far
+	 */
+	public void resetTestOrder() {
+		XPathQuery[] queries = this.queries;
+		if (queries == null) {
+			return;
+		}
+		for (XPathQuery q : queries) {
+			if (q != null) {
+				q.resetTestOrder();
+			}
+		}
+	}
+
+	/**
+	 * Reorders the tests of all queries from the statistics collected so
+	 * far, as is done every REORDER_INTERVAL documents
+	 * @return
+	 * 		number of queries whose order changed
+	 */
+	public int reorderTests() {
+		XPathQuery[] queries = this.queries;
+		int changed = 0;
+		if (queries == null) {
+			return changed;
+		}
+		for (XPathQuery q : queries) {
+			if (q != null && q.reorderTests()) {
+				changed++;
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * @param i
+	 * 		index of XPath specified in setXPaths()
+	 * @return
+	 * 		statistics of the tests of the i'th XPath, in the order in which
+	 * 		they are currently run. null if the XPath is not valid
+	 */
+	public List<PredicateStatistics> getPredicateStatistics(int i) {
+		return isValid(i) ? queries[i].getPredicateStatistics() : null;
+	}
+
+	/**
+	 * Enables or disables running tests shared by several queries at most
+	 * once per node of a document. Disabled by default, as looking results
+	 * up costs every shared test, while it only pays off when the queries
+	 * share tests that are expensive or reached by many nodes.
+	 */
+	public void setPredicateSharingEnabled(boolean enabled) {
+		this.predicateSharingEnabled = enabled;
+	}
+
+	/**
+	 * Enables or disables indexing the attributes of a document once
+	 * enough attribute tests have been run against it. Once the index is
+	 * built, queries with an attribute test are evaluated from the elements
+	 * holding the attribute, and queries planned bottom-up use the same
+	 * index rather than building their own. Disabled by default, as whether building the index pays
+	 * off depends on the number of attribute tests per document.
+	 */
+	public void setAttributeIndexEnabled(boolean enabled) {
+		this.attributeIndexEnabled = enabled;
+	}
+
+	/**
+	 * Enables or disables recording per-query evaluation metrics when
+	 * evaluating DOMs or packed documents. Metrics are dropped when
+	 * disabled, and restarted when XPaths are set.
+	 */
+	public void setMetricsEnabled(boolean enabled) {
+		if (!enabled) {
+			metrics = null;
+		} else if (metrics == null) {
+			metrics = new EngineMetrics(xpaths);
+		}
+	}
+
+	/**
+	 * @return
+	 * 		metrics of the evaluations since they were enabled or the XPaths
+	 * 		were set, null if disabled. Also an MBean.
+	 */
+	public EngineMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Enables matching the children of a node in parallel on a fork-join
+	 * pool when evaluating top-down, once the node has more than threshold
+	 * children. Children are split into ranges of at most threshold
+	 * children, and the remaining ranges are cancelled once a child
+	 * matches. Ranges are matched without shared test results, the
+	 * attribute index or test statistics. The calling thread visits the
+	 * nodes below the children once before they are forked, so the DOM only
+	 * needs to allow concurrent reads of nodes already read once, as JTidy
+	 * and Xerces DOMs do. Disabled by default, and not used when evaluating
+	 * within a budget.
+	 * @param pool
+	 * 		pool matching the ranges, null to match children sequentially
+	 * @param threshold
+	 * 		number of children above which they are matched in parallel
+	 */
+	public void setParallelMatching(ForkJoinPool pool, int threshold) {
+		if (threshold < 1) {
+			throw new IllegalArgumentException("threshold must be positive");
+		}
+		this.parallelThreshold = threshold;
+		this.parallelPool = pool;
+	}
+
+	/**
+	 * @return
+	 * 		number of distinct tests that occur in more than one of the
+	 * 		XPaths set in setXPaths()
+	 */
+	public int getSharedPredicateCount() {
+		return sharedPredicates;
+	}
+
+	/**
+	 * @return
+	 * 		number of test runs avoided by sharing results, over all
+	 * 		documents evaluated
+	 */
+	public long getTestsSaved() {
+		return testsSaved.sum();
 	}
 
 	public boolean isValid(int i) {
 		if (this.xpaths == null || i >= xpaths.length || i < 0) {
 			return false;
 		}
-		return XPathQuery.isValid(xpaths[i]);
+		return queries[i] != null;
 	}
 
 	public boolean[] evaluate(Document d) {
+		return evaluate(d, (DocumentIndex) null);
+	}
+
+	/**
+	 * Evaluates XPaths set in setXPaths() against the document, using the
+	 * given index for queries that are cheaper to evaluate bottom-up
+	 * @param d
+	 * 		DOM root node
+	 * @param index
+	 * 		index of the document, may be null. If null, an index is built
+	 * 		when the first query planned bottom-up is evaluated
+	 * @return
+	 * 		i'th element is true if document matches the i'th XPath expression
+	 */
+	public boolean[] evaluate(Document d, DocumentIndex index) {
 		if (xpaths == null) {
 			return new boolean[0];
 		}
-		// evaluate document for each XPath specified
 		boolean[] result = new boolean[xpaths.length];
+		evaluate(d, index, result, null);
+		return result; 
+	}
+
+	/**
+	 * Evaluates XPaths set in setXPaths() against the document, adding
+	 * the matched XPaths to a collector instead of returning an array with
+	 * an element for each XPath
+	 * @param d
+	 * 		DOM root node
+	 * @param matches
+	 * 		collector, begun for the number of XPaths set
+	 */
+	@Override
+	public void evaluate(Document d, MatchCollector matches) {
+		evaluate(d, (DocumentIndex) null, matches);
+	}
+
+	/**
+	 * Evaluates XPaths set in setXPaths() against the document, using the
+	 * given index for queries that are cheaper to evaluate bottom-up, and
+	 * adds the matched XPaths to a collector
+	 * @param d
+	 * 		DOM root node
+	 * @param index
+	 * 		index of the document, may be null
+	 * @param matches
+	 * 		collector, begun for the number of XPaths set
+	 */
+	public void evaluate(Document d, DocumentIndex index, MatchCollector matches) {
+		matches.begin(xpaths == null ? 0 : xpaths.length);
+		if (xpaths != null) {
+			evaluate(d, index, null, matches);
+		}
+	}
+
+	/**
+	 * Evaluates each XPath into either the result array or the collector
+	 */
+	private void evaluate(Document d, DocumentIndex index, boolean[] result, 
+			MatchCollector matches) {
+		EvaluateEvent event = new EvaluateEvent();
+		event.begin();
+		// collecting statistics walks the whole document, which only pays
+		// off for queries the planner may evaluate bottom-up
+		DocumentStatistics stats = index != null ? index.getStatistics() : null;
+		boolean learning = adaptiveOrderingEnabled && !testOrderFrozen;
+		boolean sharing = predicateSharingEnabled && sharedPredicates > 0;
+		EvaluationContext ctx = prepareContext(d, learning, sharing, 
+				attributeIndexEnabled);
+		EngineMetrics metrics = this.metrics;
+		EngineMetrics.Recorder recorder = metrics != null 
+				? metrics.recorder(xpaths.length) : null;
+		long documentStart = recorder != null ? System.nanoTime() : 0;
+		int matchCount = 0;
+		// evaluate document for each XPath specified
 		for (int i = 0; i < xpaths.length; i++) {
-			String query = xpaths[i];
+			long start = recorder != null ? System.nanoTime() : 0;
+			long nodesBefore = ctx.nodesVisited;
+			boolean matched = false;
 			if (isValid(i)) {
-				// tokenize XPath query
-				Token[] tokens = XPathQuery.getCheckedTokens(query);
-				result[i] = checkQueryMatch(d, tokens);				
-			} else {
-				result[i] = false;
+				if (!plannerEnabled || (stats == null && bottomUp[i] == null)) {
+					matched = matchTopDown(i, d, ctx);
+				} else {
+					if (index == null && ctx.attributes != null && ctx.attributes.isBuilt()) {
+						// built by the attribute index for an earlier query
+						index = ctx.attributes.index();
+					}
+					if (stats == null) {
+						stats = index != null ? index.getStatistics() : new DocumentStatistics(d);
+					}
+					QueryPlan plan = planner.plan(queries[i], bottomUp[i], stats, 
+							index, indexUsers);
+					if (plan.getStrategy() == Strategy.BOTTOM_UP && index == null) {
+						// shared with the attribute index, if enabled
+						index = ctx.attributes != null ? ctx.attributes.index() 
+								: new DocumentIndex(d);
+					}
+					matched = execute(plan, i, d, index, ctx);
+				}
+			}
+			if (result != null) {
+				result[i] = matched;
+			} else if (matched) {
+				matches.add(i);
+			}
+			if (matched) {
+				matchCount++;
+			}
+			if (recorder != null) {
+				recorder.record(i, matched, System.nanoTime() - start, 
+						ctx.nodesVisited - nodesBefore);
 			}
 		}
-		return result; 
+		if (recorder != null) {
+			recorder.recordDocument(System.nanoTime() - documentStart);
+		}
+		event.end();
+		if (event.shouldCommit()) {
+			event.queryCount = xpaths.length;
+			event.nodesVisited = ctx.nodesVisited;
+			event.predicatesEvaluated = ctx.predicatesEvaluated;
+			event.matches = matchCount;
+			event.commit();
+		}
+		finishContext(ctx, sharing, learning);
+	}
+
+	/**
+	 * Evaluates XPaths set in setXPaths() against the document within a
+	 * budget, see evaluate(Document, EvaluationBudget, String)
+	 */
+	@Override
+	public BoundedResult evaluate(Document d, EvaluationBudget budget) {
+		return evaluate(d, budget, null);
+	}
+
+	/**
+	 * Evaluates XPaths set in setXPaths() against the document within a
+	 * budget. Queries are evaluated top-down in order, and once the budget
+	 * is spent, the query being evaluated and all queries after it are
+	 * undecided. The planner and the attribute index are not used, as
+	 * collecting document statistics and building the index both walk the
+	 * whole document, which the budget is meant to avoid.
+	 * 
+	 * Evaluations leaving queries undecided are recorded, see
+	 * getBudgetViolations().
+	 * @param d
+	 * 		DOM root node
+	 * @param budget
+	 * 		limit on the nodes checked against a step and the time spent
+	 * @param documentId
+	 * 		id of the document recorded with a violation, may be null
+	 */
+	public BoundedResult evaluate(Document d, EvaluationBudget budget, 
+			String documentId) {
+		long start = System.nanoTime();
+		if (xpaths == null) {
+			return new BoundedResult(new boolean[0], new boolean[0], 0, 0);
+		}
+		boolean learning = adaptiveOrderingEnabled && !testOrderFrozen;
+		boolean sharing = predicateSharingEnabled && sharedPredicates > 0;
+		EvaluationContext ctx = prepareContext(d, learning, sharing, false);
+		ctx.startBudget(budget, start);
+		boolean[] result = new boolean[xpaths.length];
+		boolean[] decided = new boolean[xpaths.length];
+		int undecided = 0;
+		boolean spent = false;
+		try {
+			for (int i = 0; i < xpaths.length; i++) {
+				if (!isValid(i)) {
+					decided[i] = true;
+				} else if (!spent) {
+					try {
+						result[i] = checkQueryMatch(d, queries[i].getTokens(), ctx);
+						decided[i] = true;
+					} catch (BudgetExceededException e) {
+						spent = true;
+					}
+				}
+				if (!decided[i]) {
+					undecided++;
+				}
+			}
+		} finally {
+			ctx.endBudget();
+		}
+		long nodesVisited = ctx.getNodesVisited();
+		finishContext(ctx, sharing, learning);
+		long elapsed = System.nanoTime() - start;
+		if (undecided > 0) {
+			recordViolation(documentId, decided, undecided, nodesVisited, elapsed);
+		}
+		return new BoundedResult(result, decided, nodesVisited, elapsed);
+	}
+
+	private EvaluationContext prepareContext(Document d, boolean learning, 
+			boolean sharing, boolean indexAttributes) {
+		EvaluationContext ctx = contexts.get();
+		ctx.reset();
+		ctx.collectStatistics = learning;
+		ctx.pool = parallelPool;
+		ctx.parallelThreshold = parallelThreshold;
+		if (sharing) {
+			ctx.predicates = ctx.getPredicateCache(sharedPredicates);
+		}
+		if (indexAttributes) {
+			ctx.attributes = ctx.getAttributeIndex(d);
+		}
+		return ctx;
+	}
+
+	private void finishContext(EvaluationContext ctx, boolean sharing, 
+			boolean learning) {
+		if (sharing) {
+			testsSaved.add(ctx.predicates.getHits());
+		}
+		ctx.release();
+		if (learning && documentsEvaluated.incrementAndGet() % REORDER_INTERVAL == 0) {
+			reorderTests();
+		}
+	}
+
+	private void recordViolation(String documentId, boolean[] decided, 
+			int undecided, long nodesVisited, long elapsed) {
+		int[] indices = new int[undecided];
+		int u = 0;
+		for (int i = 0; i < decided.length; i++) {
+			if (!decided[i]) {
+				indices[u++] = i;
+			}
+		}
+		BudgetViolation violation = new BudgetViolation(documentId, indices, 
+				nodesVisited, elapsed);
+		violationCount.increment();
+		undecidedCount.add(undecided);
+		synchronized (violations) {
+			if (violations.size() == VIOLATION_LOG_CAPACITY) {
+				violations.removeFirst();
+			}
+			violations.addLast(violation);
+		}
+	}
+
+	/**
+	 * @return
+	 * 		most recent evaluations that left queries undecided, oldest first,
+	 * 		at most VIOLATION_LOG_CAPACITY of them
+	 */
+	public List<BudgetViolation> getBudgetViolations() {
+		synchronized (violations) {
+			return new ArrayList<>(violations);
+		}
+	}
+
+	/**
+	 * @return
+	 * 		number of evaluations that left queries undecided, including
+	 * 		those no longer kept
+	 */
+	public long getBudgetViolationCount() {
+		return violationCount.sum();
+	}
+
+	/**
+	 * @return
+	 * 		number of query results left undecided over all evaluations
+	 */
+	public long getUndecidedCount() {
+		return undecidedCount.sum();
+	}
+
+	public void clearBudgetViolations() {
+		synchronized (violations) {
+			violations.clear();
+		}
+	}
+
+	/**
+	 * Creates a matcher for a document arriving in chunks, which reports
+	 * the result of each XPath set in setXPaths() as soon as it is decided
+	 * @param isXML
+	 * 		whether the document is XML, rather than HTML. HTML documents
+	 * 		are only matched once finished, see IncrementalMatcher.
+	 * @param charset
+	 * 		encoding of the document bytes
+	 * @param listener
+	 * 		notified of each decided result, may be null
+	 */
+	public IncrementalMatcher newIncrementalMatcher(boolean isXML, Charset charset, 
+			IncrementalMatcher.Listener listener) {
+		XPathQuery[] queries = this.queries != null ? this.queries : new XPathQuery[0];
+		return new IncrementalMatcher(queries, isXML, charset, listener);
+	}
+
+	/**
+	 * Evaluates XPaths set in setXPaths() directly against an off-heap
+	 * encoded document
+	 * @param doc
+	 * 		open packed document
+	 * @return
+	 * 		i'th element is true if document matches the i'th XPath expression
+	 */
+	public boolean[] evaluate(PackedDocument doc) {
+		if (xpaths == null) {
+			return new boolean[0];
+		}
+		return evaluate(doc, new boolean[xpaths.length]);
+	}
+
+	/**
+	 * Evaluates XPaths set in setXPaths() directly against an off-heap
+	 * encoded document, into a result array supplied by the caller.
+	 * The evaluation state is kept per thread and reused, so that this
+	 * does not allocate once the thread has evaluated a few documents.
+	 * @param doc
+	 * 		open packed document
+	 * @param result
+	 * 		array with at least as many elements as XPaths set, whose i'th
+	 * 		element is set to whether the document matches the i'th XPath
+	 * @return
+	 * 		the result array
+	 */
+	public boolean[] evaluate(PackedDocument doc, boolean[] result) {
+		if (xpaths == null) {
+			return result;
+		}
+		evaluate(doc, result, null);
+		return result;
+	}
+
+	/**
+	 * Evaluates XPaths set in setXPaths() directly against an off-heap
+	 * encoded document, adding the matched XPaths to a collector. Like
+	 * evaluate(PackedDocument, boolean[]), this does not allocate once the
+	 * thread and the collector have been used for a few documents.
+	 * @param doc
+	 * 		open packed document
+	 * @param matches
+	 * 		collector, begun for the number of XPaths set
+	 */
+	public void evaluate(PackedDocument doc, MatchCollector matches) {
+		matches.begin(xpaths == null ? 0 : xpaths.length);
+		if (xpaths != null) {
+			evaluate(doc, null, matches);
+		}
+	}
+
+	/**
+	 * Evaluates each XPath into either the result array or the collector
+	 */
+	private void evaluate(PackedDocument doc, boolean[] result, 
+			MatchCollector matches) {
+		XPathQuery[] queries = this.queries;
+		int[][] requiredSlots = this.requiredSlots;
+		PackedEvaluator evaluator = contexts.get().getPackedEvaluator();
+		evaluator.reset(doc, slotNames);
+		EngineMetrics metrics = this.metrics;
+		EngineMetrics.Recorder recorder = metrics != null 
+				? metrics.recorder(queries.length) : null;
+		long documentStart = recorder != null ? System.nanoTime() : 0;
+		try {
+			for (int i = 0; i < queries.length; i++) {
+				long start = recorder != null ? System.nanoTime() : 0;
+				boolean matched = queries[i] != null 
+						&& hasRequiredNames(evaluator, requiredSlots[i])
+						&& evaluator.checkQueryMatch(queries[i].getTokens());
+				if (result != null) {
+					result[i] = matched;
+				} else if (matched) {
+					matches.add(i);
+				}
+				if (recorder != null) {
+					// nodes are not counted by the packed evaluator
+					recorder.record(i, matched, System.nanoTime() - start, 0);
+				}
+			}
+			if (recorder != null) {
+				recorder.recordDocument(System.nanoTime() - documentStart);
+			}
+		} finally {
+			evaluator.release();
+		}
+	}
+
+	private static boolean hasRequiredNames(PackedEvaluator evaluator, 
+			int[] slots) {
+		for (int slot : slots) {
+			if (!evaluator.hasName(slot)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Plans and evaluates the i'th XPath against the document, recording
+	 * the nodes visited
+	 * @param d
+	 * 		DOM root node
+	 * @param i
+	 * 		index of XPath specified in setXPaths()
+	 * @return
+	 * 		executed plan, describing the chosen strategy and the estimated
+	 * 		and actual nodes visited. Both include the share of building the
+	 * 		index of a bottom-up plan. null if the XPath is not valid
+	 */
+	public QueryPlan explain(Document d, int i) {
+		if (!isValid(i)) {
+			return null;
+		}
+		DocumentStatistics stats = new DocumentStatistics(d);
+		QueryPlan plan = planner.plan(queries[i], bottomUp[i], stats, null, 
+				indexUsers);
+		DocumentIndex index = null;
+		if (plan.getStrategy() == Strategy.BOTTOM_UP) {
+			index = new DocumentIndex(d);
+		}
+		EvaluationContext ctx = new EvaluationContext();
+		execute(plan, i, d, index, ctx);
+		long visited = ctx.getNodesVisited();
+		if (index != null) {
+			// building visits every element, shared as in the estimate
+			visited += Math.round((double) stats.getElementCount() / Math.max(1, indexUsers));
+		}
+		plan.setActualNodesVisited(visited);
+		return plan;
+	}
+
+	private boolean execute(QueryPlan plan, int i, Document d, 
+			DocumentIndex index, EvaluationContext ctx) {
+		switch (plan.getStrategy()) {
+		case NAME_PREFILTER:
+			return false;
+		case BOTTOM_UP:
+			return bottomUp[i].evaluate(index, ctx);
+		default:
+			return matchTopDown(i, d, ctx);
+		}
+	}
+
+	/**
+	 * Evaluates a query top-down, unless the attribute index of the
+	 * document has been built and the query has an attribute test, in
+	 * which case only the elements holding the attribute are checked
+	 */
+	private boolean matchTopDown(int i, Document d, EvaluationContext ctx) {
+		if (ctx != null && ctx.attributes != null && ctx.attributes.isBuilt()
+				&& bottomUp[i] != null && bottomUp[i].hasAttributeAnchor()) {
+			return bottomUp[i].evaluate(ctx.attributes, ctx);
+		}
+		return checkQueryMatch(d, queries[i].getTokens(), ctx);
 	}
 
 	/**
@@ -52,8 +885,23 @@ public class XPathEngineImpl implements XPathEngine {
 	 * Method invokes recursive descent algorithm.
 	 */
 	public static boolean checkQueryMatch(Document d, Token[] tokens) {
-		TokenIterator it = new TokenIterator(tokens);
-		return matchToken(d, it);
+		return checkQueryMatch(d, tokens, null);
+	}
+
+	/**
+	 * Checks whether a DOM document matches a tokenized XPath query,
+	 * recording the work done in the given context. With a context, the
+	 * query is matched by its IterativeMatcher, so that queries as deep as
+	 * the document do not overflow the call stack.
+	 * @param ctx
+	 * 		evaluation context, may be null
+	 */
+	static boolean checkQueryMatch(Document d, Token[] tokens, 
+			EvaluationContext ctx) {
+		if (ctx == null) {
+			return matchToken(d, new TokenIterator(tokens), ctx);
+		}
+		return ctx.getMatcher().matchToken(d, tokens, 0, ctx);
 	}
 
 	/**
@@ -68,6 +916,10 @@ public class XPathEngineImpl implements XPathEngine {
 	 * 		whether current token matches the given node
 	 */
 	public static boolean matchToken(Node n, TokenIterator it) {
+		return matchToken(n, it, null);
+	}
+
+	static boolean matchToken(Node n, TokenIterator it, EvaluationContext ctx) {
 		if (!it.hasCurr()) {
 			return true;
 		}
@@ -76,7 +928,7 @@ public class XPathEngineImpl implements XPathEngine {
 		
 		// XPath -> axis step
 		case XPATH:
-			return matchAxisStep(n, it);
+			return matchAxisStep(n, it, ctx);
 		
 		// axis -> /
 		case AXIS:
@@ -85,62 +937,16 @@ public class XPathEngineImpl implements XPathEngine {
 			
 		// step -> nodename([test])*(axis step)?
 		case NODENAME:
-			// check if current node equals node name required
-			String nodeName = n.getNodeName();
-			boolean equals = curr.val.equals(nodeName);
-			
-			// if not equal then further checking is not necessary
-			if (!equals) {
+			if (!matchNodeTests(n, it, ctx)) {
 				return false;
 			}
-
-			// increment pointer to token after nodename
-			it.step();
-			Token afterName = it.curr();
-			// perform tests (if they exist) until no more tests are present
-			while (afterName != null && afterName.type != Type.AXIS) {
-				if (afterName.type != Type.TEST) {
-					break;
-				}
-				TestType tt = XPathQuery.getTestType(afterName);
-				switch (tt) {
-				/*
-				 * test -> text() = "..."
-				 * test -> contains(text(), "...")
-				 * test -> @attname = "..."
-				 */
-				case ATTNAME:
-				case CONTAINS:
-				case TEXT:
-					if (!matchNonStepTest(n, afterName.val, tt)) {
-						return false;
-					}
-					break;
-					
-				// test -> step
-				case STEP:
-					// treat step within test as an XPath of its own
-					Token[] testTokens = 
-						XPathQuery.getAllTokens(afterName.val);
-					
-					TokenIterator testIt = new TokenIterator(testTokens);
-					if (!matchStep(n, testIt)) {
-						return false;
-					}
-					break;
-				}
-				// move pointer to next token
-				it.step();
-				afterName = it.curr();
-			}
-			
 			// end of query
-			if (afterName == null) {
+			if (!it.hasCurr()) {
 				return true;
 			// match path for lower levels in DOM tree
 			} else {
 				it.stepBack();
-				return matchAxisStep(n, it);
+				return matchAxisStep(n, it, ctx);
 			}
 		case TEST:
 			// test should be considered directly after nodename
@@ -151,50 +957,138 @@ public class XPathEngineImpl implements XPathEngine {
 	}
 
 	/**
-	 * Performs test for tests that are a step
+	 * Checks the nodename at the current position of the iterator and all
+	 * tests directly following it against a single node, without descending
+	 * to lower levels of the DOM tree
+	 * @param n
+	 * 		node in DOM in consideration
+	 * @param it
+	 * 		positioned at a NODENAME token. On success, the pointer is left at
+	 * 		the first token after the tests
+	 * @param ctx
+	 * 		evaluation context, may be null
+	 * @return
+	 * 		whether the node has the required name and passes all tests
 	 */
-	private static boolean matchNonStepTest(Node n, String val, 
-			TestType testType) {
-		switch (testType) {
-		case ATTNAME: {
-			String[] eqSplit = val.split("=");
-			String attName = eqSplit[0].replace("@", "");
-			String expect = eqSplit[1];
-			expect = expect.substring(1, expect.length() - 1);
-
-			NamedNodeMap attribs = n.getAttributes();
-			Node valNode = attribs.getNamedItem(attName);
-			// attribute does not exist
-			if (valNode == null) {
+	static boolean matchNodeTests(Node n, TokenIterator it, 
+			EvaluationContext ctx) {
+		if (ctx != null && ++ctx.nodesVisited > ctx.budgetCheckpoint) {
+			ctx.checkBudget();
+		}
+		Token curr = it.curr();
+		// check if current node equals node name required
+		String nodeName = n.getNodeName();
+		boolean equals = curr.val.equals(nodeName);
+		
+		// if not equal then further checking is not necessary
+		if (!equals) {
+			return false;
+		}
+
+		// increment pointer to token after nodename
+		it.step();
+		Token afterName = it.curr();
+		/*
+		 * on probed nodes all tests are run and timed, even after one has
+		 * failed, so that the statistics of each test do not depend on the
+		 * tests run before it
+		 */
+		boolean probe = ctx != null && ctx.collectStatistics && afterName != null 
+				&& afterName.type == Type.TEST 
+				&& (ctx.nodesTested++ & PROBE_MASK) == 0;
+		boolean matched = true;
+		// perform tests (if they exist) until no more tests are present
+		while (afterName != null && afterName.type != Type.AXIS) {
+			if (afterName.type != Type.TEST) {
+				break;
+			}
+			if (probe && afterName.stats != null) {
+				long start = System.nanoTime();
+				boolean passed = matchSharedTest(n, afterName, ctx);
+				afterName.stats.record(passed, System.nanoTime() - start);
+				matched &= passed;
+			} else if (matched && !matchSharedTest(n, afterName, ctx)) {
 				return false;
 			}
-			String attVal = valNode.getNodeValue();
-			return attVal.equals(expect);
+			// move pointer to next token
+			it.step();
+			afterName = it.curr();
 		}
-		case CONTAINS: {
-			String test = val.replace("contains", "");
-			test = test.substring(1, test.length() - 1);
-			if (test.length() > 0) {
-				String[] commaSplit = test.split(",", 2);
-				String expected = commaSplit[1].trim();
-				expected = expected.substring(1, expected.length() - 1);
-				
-				String nodeText = getTextVal(n);
-				// text for current node does not exist
-				if (nodeText == null) {
-					return false;
-				} else {
-					return nodeText.contains(expected);
-				}
+		return matched;
+	}
+
+	/**
+	 * Performs a single test against a node, reusing the result of a test
+	 * shared with another query if it has already been run on the node
+	 */
+	private static boolean matchSharedTest(Node n, Token test, 
+			EvaluationContext ctx) {
+		PredicateCache cache = ctx != null ? ctx.predicates : null;
+		if (cache == null || test.predicateId < 0) {
+			return matchTest(n, test, ctx);
+		}
+		int node = ctx.nodeNumber(n);
+		int cached = cache.lookup(node, test.predicateId);
+		if (cached >= 0) {
+			return cached == 1;
+		}
+		boolean passed = matchTest(n, test, ctx);
+		cache.store(node, test.predicateId, passed);
+		return passed;
+	}
+
+	/**
+	 * Performs a single test against a node
+	 */
+	private static boolean matchTest(Node n, Token test, EvaluationContext ctx) {
+		if (ctx != null) {
+			ctx.predicatesEvaluated++;
+		}
+		TestType tt = XPathQuery.getTestType(test);
+		switch (tt) {
+		/*
+		 * test -> text() = "..."
+		 * test -> contains(text(), "...")
+		 * test -> @attname = "..."
+		 */
+		case ATTNAME:
+		case CONTAINS:
+		case TEXT:
+			return matchNonStepTest(n, test, tt, ctx);
+			
+		// test -> step
+		case STEP:
+			// treat step within test as an XPath of its own
+			Token[] testTokens = XPathQuery.getStepTokens(test);
+			if (ctx == null) {
+				return matchStep(n, new TokenIterator(testTokens), ctx);
 			}
+			return ctx.getMatcher().matchStep(n, testTokens, ctx);
+		default:
 			return false;
 		}
+	}
+
+	/**
+	 * Performs test for tests that are not a step
+	 */
+	private static boolean matchNonStepTest(Node n, Token test, 
+			TestType testType, EvaluationContext ctx) {
+		switch (testType) {
+		case ATTNAME: {
+			String[] attTest = XPathQuery.getAttributeTest(test);
+			if (ctx != null && ctx.attributes != null) {
+				return ctx.attributes.hasAttribute(n, attTest[0], attTest[1]);
+			}
+			return AttributeIndex.hasAttributeValue(n, attTest[0], attTest[1]);
+		}
+		case CONTAINS: {
+			TextMatcher matcher = XPathQuery.getMatcher(test);
+			// text for current node does not exist
+			return matcher != null && matcher.containedIn(getTextVal(n));
+		}
 		case TEXT: {
-			String[] equalSplit = val.split("=");
-			String expectText = equalSplit[1];
-			expectText = expectText.substring(1, expectText.length() - 1);
-			String nodeText = getTextVal(n);
-			return expectText.equals(nodeText);
+			return XPathQuery.getMatcher(test).equalTo(getTextVal(n));
 		}
 		default:
 			return false;
@@ -207,10 +1101,9 @@ public class XPathEngineImpl implements XPathEngine {
 	 * @return
 	 * 		null if text does not exist
 	 */
-	private static String getTextVal(Node n) {
-		NodeList children = n.getChildNodes();
-		for (int i = 0; i < children.getLength(); i++) {
-			Node child = children.item(i);
+	static String getTextVal(Node n) {
+		for (Node child = n.getFirstChild(); child != null; 
+				child = child.getNextSibling()) {
 			if (child.getNodeType() == Node.TEXT_NODE) {
 				return child.getNodeValue();
 			}
@@ -221,13 +1114,13 @@ public class XPathEngineImpl implements XPathEngine {
 	/**
 	 * Invokes matching a step for children of a given node
 	 */
-	private static boolean matchStep(Node n, TokenIterator it) {
+	private static boolean matchStep(Node n, TokenIterator it, 
+			EvaluationContext ctx) {
 		int currPos = it.getPos();
-		NodeList children = n.getChildNodes();
-		for (int i = 0; i < children.getLength(); i++) {
-			Node child = children.item(i);
+		for (Node child = n.getFirstChild(); child != null; 
+				child = child.getNextSibling()) {
 			it.setPos(currPos);
-			boolean step = matchToken(child, it);
+			boolean step = matchToken(child, it, ctx);
 			if (step) {
 				return step;
 			}
@@ -240,20 +1133,20 @@ public class XPathEngineImpl implements XPathEngine {
 	 * Invokes matching an axis for the next token, then matching
 	 * a step for the children of the given node
 	 */
-	private static boolean matchAxisStep(Node n, TokenIterator it) {
+	private static boolean matchAxisStep(Node n, TokenIterator it, 
+			EvaluationContext ctx) {
 		int currPos = it.getPos();
 		it.step();
-		boolean axis = matchToken(n, it);
+		boolean axis = matchToken(n, it, ctx);
 		// if axis does not match, there is no need to check further
 		if (!axis) {
 			return false;
 		}
-		NodeList children = n.getChildNodes();
-		for (int i = 0; i < children.getLength(); i++) {
-			Node child = children.item(i);
+		for (Node child = n.getFirstChild(); child != null; 
+				child = child.getNextSibling()) {
 			it.setPos(currPos); //reset pointer
 			it.step(2); //set to step token
-			boolean step = matchToken(child, it);
+			boolean step = matchToken(child, it, ctx);
 			if (step) {
 				return axis && step;
 			}
@@ -4,9 +4,14 @@
 package xpathengine;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.Stack;
 
+import models.TextMatcher;
 import xpathengine.Token.Type;
 import xpathengine.Token.TestType;
 
@@ -15,20 +20,211 @@ public class XPathQuery {
 	public static final String TEXT = "text()";
 	public static final String CONTAINS = "contains";
 	
+	/**
+	 * Minimum probed evaluations of each test of a step before the tests
+	 * are reordered
+	 */
+	static final int MIN_EVALUATIONS = 50;
+	
 	private String originalQuery;
-	private Token[] tokens;
+	// tokens in the current order of tests, replaced as a whole on reordering
+	private volatile Token[] tokens;
+	// tokens in the order written in the query
+	private final Token[] writtenTokens;
+	private String[] stepNames;
+	private Set<String> requiredNames;
 	public XPathQuery(String query) {
+		this(query, compile(query));
+	}
+	
+	/**
+	 * Creates a query from tokens already checked, such as those of a
+	 * QuerySnapshot
+	 */
+	XPathQuery(String query, Token[] tokens) {
 		this.originalQuery = query;
-		this.tokens = getCheckedTokens(query);
-		if (this.tokens == null) {
+		this.tokens = tokens;
+		this.writtenTokens = tokens;
+		for (Token t : tokens) {
+			if (t.type == Type.TEST) {
+				t.stats = new PredicateStatistics(t.val);
+			}
+		}
+		List<String> steps = new ArrayList<>();
+		for (Token t : tokens) {
+			if (t.type == Type.NODENAME) {
+				steps.add(t.val);
+			}
+		}
+		this.stepNames = steps.toArray(new String[steps.size()]);
+		Set<String> names = new LinkedHashSet<>();
+		collectNames(tokens, names);
+		this.requiredNames = Collections.unmodifiableSet(names);
+	}
+	
+	/**
+	 * @return
+	 * 		checked tokens of the query
+	 * @throws IllegalArgumentException
+	 * 		if the query is invalid
+	 */
+	private static Token[] compile(String query) {
+		CompileEvent event = new CompileEvent();
+		event.begin();
+		Token[] tokens = getCheckedTokens(query);
+		event.end();
+		if (event.shouldCommit()) {
+			event.query = query;
+			event.tokens = tokens != null ? tokens.length : 0;
+			event.valid = tokens != null;
+			event.commit();
+		}
+		if (tokens == null) {
 			throw new IllegalArgumentException("invalid xpath");
 		}
+		return tokens;
 	}
 	
+	/**
+	 * @return
+	 * 		tokens of the query in the order written
+	 */
+	Token[] getWrittenTokens() {
+		return writtenTokens;
+	}
+	
+	/**
+	 * @return
+	 * 		tokens of the query, with the tests of each step in the order
+	 * 		in which they are currently run
+	 */
 	public Token[] getTokens() {
 		return this.tokens;
 	}
 	
+	/**
+	 * @return
+	 * 		statistics of the tests on the main path of the query, in the
+	 * 		order in which they are currently run
+	 */
+	public List<PredicateStatistics> getPredicateStatistics() {
+		List<PredicateStatistics> stats = new ArrayList<>();
+		for (Token t : tokens) {
+			if (t.type == Type.TEST) {
+				stats.add(t.stats);
+			}
+		}
+		return stats;
+	}
+	
+	/**
+	 * Reorders the tests of each step by increasing rank, once each of
+	 * them has been run often enough. Tests on a single node are
+	 * independent of each other, so the order does not change results.
+	 * The token array is replaced rather than modified, so evaluations
+	 * in progress keep the order they started with.
+	 * @return
+	 * 		whether the order changed
+	 */
+	public boolean reorderTests() {
+		Token[] next = tokens.clone();
+		boolean changed = false;
+		int start = 0;
+		while (start < next.length) {
+			if (next[start].type != Type.TEST) {
+				start++;
+				continue;
+			}
+			int end = start;
+			while (end < next.length && next[end].type == Type.TEST) {
+				end++;
+			}
+			if (end - start > 1 && isTrained(next, start, end)) {
+				changed |= sortByRank(next, start, end);
+			}
+			start = end;
+		}
+		if (changed) {
+			this.tokens = next;
+		}
+		return changed;
+	}
+	
+	/**
+	 * Restores the order of tests written in the query, and discards the
+	 * statistics collected so far
+	 */
+	public void resetTestOrder() {
+		this.tokens = writtenTokens;
+		for (Token t : writtenTokens) {
+			if (t.stats != null) {
+				t.stats.reset();
+			}
+		}
+	}
+	
+	private static boolean isTrained(Token[] tokens, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (tokens[i].stats.getEvaluations() < MIN_EVALUATIONS) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Stable insertion sort of a run of tests, on a snapshot of their ranks
+	 * @return
+	 * 		whether any test moved
+	 */
+	private static boolean sortByRank(Token[] tokens, int start, int end) {
+		double[] ranks = new double[end - start];
+		for (int i = start; i < end; i++) {
+			ranks[i - start] = tokens[i].stats.getRank();
+		}
+		Token[] before = Arrays.copyOfRange(tokens, start, end);
+		for (int i = 1; i < ranks.length; i++) {
+			Token t = tokens[start + i];
+			double rank = ranks[i];
+			int j = i - 1;
+			while (j >= 0 && ranks[j] > rank) {
+				tokens[start + j + 1] = tokens[start + j];
+				ranks[j + 1] = ranks[j];
+				j--;
+			}
+			tokens[start + j + 1] = t;
+			ranks[j + 1] = rank;
+		}
+		return !Arrays.equals(before, Arrays.copyOfRange(tokens, start, end));
+	}
+	
+	/**
+	 * @return
+	 * 		node names of the steps on the main path of the query, in order
+	 */
+	public String[] getStepNames() {
+		return this.stepNames;
+	}
+	
+	/**
+	 * @return
+	 * 		all node names that must occur in a document matching the query,
+	 * 		including the names in tests that are a step
+	 */
+	public Set<String> getRequiredNames() {
+		return this.requiredNames;
+	}
+	
+	private static void collectNames(Token[] tokens, Set<String> names) {
+		for (Token t : tokens) {
+			if (t.type == Type.NODENAME) {
+				names.add(t.val);
+			} else if (t.type == Type.TEST && getTestType(t) == TestType.STEP) {
+				collectNames(getStepTokens(t), names);
+			}
+		}
+	}
+	
 	public String getOriginalQuery() {
 		return this.originalQuery;
 	}
@@ -165,6 +361,15 @@ public class XPathQuery {
 		if (token.type != Type.TEST) {
 			return null;
 		}
+		TestType testType = token.testType;
+		if (testType == null) {
+			testType = parseTestType(token);
+			token.testType = testType;
+		}
+		return testType;
+	}
+	
+	private static TestType parseTestType(Token token) {
 		String val = token.val;
 		
 		// text() = "..."
@@ -222,6 +427,109 @@ public class XPathQuery {
 		return null;
 	}
 	
+	/**
+	 * Splits an attribute test into its attribute name and expected value
+	 * @param val
+	 * 		value of an ATTNAME test token, e.g. @att="abc"
+	 * @return
+	 * 		two element array of attribute name and unquoted expected value
+	 */
+	static String[] getAttributeTest(String val) {
+		String[] eqSplit = val.split("=");
+		String attName = eqSplit[0].replace("@", "");
+		String expect = eqSplit[1];
+		expect = expect.substring(1, expect.length() - 1);
+		return new String[] { attName, expect };
+	}
+
+	/**
+	 * Gets the attribute name and expected value of an ATTNAME test token,
+	 * splitting it on first use
+	 */
+	static String[] getAttributeTest(Token test) {
+		String[] attTest = test.attributeTest;
+		if (attTest == null) {
+			attTest = getAttributeTest(test.val);
+			test.attributeTest = attTest;
+		}
+		return attTest;
+	}
+	
+	/**
+	 * Gets the compiled literal of a CONTAINS, TEXT or ATTNAME test token,
+	 * compiling it on first use. Racing threads compile equal matchers, so
+	 * the last one stored wins harmlessly.
+	 * @return
+	 * 		null if a CONTAINS test has no arguments
+	 */
+	static TextMatcher getMatcher(Token test) {
+		TextMatcher matcher = test.matcher;
+		if (matcher == null) {
+			String literal;
+			switch (getTestType(test)) {
+			case CONTAINS:
+				literal = getContainsLiteral(test.val);
+				break;
+			case TEXT:
+				literal = getTextLiteral(test.val);
+				break;
+			case ATTNAME:
+				literal = getAttributeTest(test)[1];
+				break;
+			default:
+				literal = null;
+			}
+			if (literal == null) {
+				return null;
+			}
+			matcher = new TextMatcher(literal);
+			test.matcher = matcher;
+		}
+		return matcher;
+	}
+	
+	/**
+	 * Gets the tokens of a STEP test token, tokenizing it on first use
+	 */
+	static Token[] getStepTokens(Token test) {
+		Token[] tokens = test.stepTokens;
+		if (tokens == null) {
+			tokens = getAllTokens(test.val);
+			test.stepTokens = tokens;
+		}
+		return tokens;
+	}
+	
+	/**
+	 * Gets the unquoted literal of a text() = "..." test
+	 * @param val
+	 * 		value of a TEXT test token
+	 * @return
+	 */
+	static String getTextLiteral(String val) {
+		String[] equalSplit = val.split("=");
+		String expectText = equalSplit[1];
+		return expectText.substring(1, expectText.length() - 1);
+	}
+
+	/**
+	 * Gets the unquoted literal of a contains(text(), "...") test
+	 * @param val
+	 * 		value of a CONTAINS test token
+	 * @return
+	 * 		null if the test has no arguments
+	 */
+	static String getContainsLiteral(String val) {
+		String test = val.replace(CONTAINS, "");
+		test = test.substring(1, test.length() - 1);
+		if (test.length() == 0) {
+			return null;
+		}
+		String[] commaSplit = test.split(",", 2);
+		String expected = commaSplit[1].trim();
+		return expected.substring(1, expected.length() - 1);
+	}
+
 	private static boolean isStartEndChar(String s, char c) {
 		if (s == null || s.length() < 2) {
 			return false;
@@ -236,6 +544,29 @@ public class XPathQuery {
 		return s.charAt(0) == '(' && s.charAt(s.length() - 1) == ')';
 	}
 	
+	/**
+	 * @return
+	 * 		name of the first step of the query, read without parsing the
+	 * 		rest of it, null if the query does not start with a step. A query
+	 * 		with a first step may still be invalid.
+	 */
+	public static String getRootName(String query) {
+		if (query == null) {
+			return null;
+		}
+		StringBuffer buffer = new StringBuffer(query);
+		try {
+			Token axis = getNextToken(buffer);
+			if (axis == null || axis.type != Type.AXIS) {
+				return null;
+			}
+			Token name = getNextToken(buffer);
+			return name != null && name.type == Type.NODENAME ? name.val : null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+	
 	/**
 	 * Checks whether a string is a valid XML identifier.
 	 * Rules according to: http://www.w3schools.com/xml/xml_elements.asp